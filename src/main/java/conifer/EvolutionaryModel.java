@@ -21,6 +21,19 @@ public interface EvolutionaryModel
   public void buildTransition(TreeNode parent, TreeNode children, LikelihoodFactoryContext context);
   public void buildInitialDistribution(TreeNode node, LikelihoodFactoryContext context);
   
+  /**
+   * Prepares the computation of the likelihood of the observations for the given tree.
+   * 
+   * The default way of doing this is to wrap the output of EvolutionaryModelUtils.buildFactorGraphs(),
+   * but implementations can provide more efficient specialized alternatives.
+   * 
+   * @param tree
+   * @param root
+   * @param observations
+   * @return
+   */
+  public LikelihoodComputationContext buildLikelihoodComputationContext(UnrootedTree tree, TreeNode root, TreeObservations observations);
+  
   public double computeLogLikelihood(LikelihoodComputationContext context);
 
   /**
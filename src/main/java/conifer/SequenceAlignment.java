@@ -32,6 +32,18 @@ public class SequenceAlignment implements TreeObservations
   @SkipDependency(isMutable = false)
   public final PhylogeneticObservationFactory factory;
   
+  /**
+   * Cached compressed view, see sitePatterns(). Reset when the data is modified.
+   */
+  @SkipDependency(isMutable = true)
+  private SitePatterns sitePatterns = null;
+  
+  /**
+   * Cached encoded view, see tipStates(). Reset when the data is modified.
+   */
+  @SkipDependency(isMutable = true)
+  private TipStates tipStates = null;
+  
   public SequenceAlignment(PhylogeneticObservationFactory factory, int nSites) 
   {
     this.factory = factory;
@@ -80,12 +92,38 @@ public class SequenceAlignment implements TreeObservations
       throw new RuntimeException("Make sure the data is aligned. Number of sites seems to differ for different leaves: " + cast.length + " vs " + nSites);
     
     data.put(leaf, cast);
+    sitePatterns = null;
+    tipStates = null;
   }
 
   @Override
   public void clear()
   {
     data.clear();
+    sitePatterns = null;
+    tipStates = null;
+  }
+  
+  /**
+   * @return A view where identical columns are stored once, along with their 
+   *   multiplicities. Computed lazily and cached until the data is modified.
+   */
+  public SitePatterns sitePatterns()
+  {
+    if (sitePatterns == null)
+      sitePatterns = SitePatterns.compress(this, factory);
+    return sitePatterns;
+  }
+
+  /**
+   * @return A compact encoding of the observations (see TipStates). Computed 
+   *   lazily and cached until the data is modified.
+   */
+  public TipStates tipStates()
+  {
+    if (tipStates == null)
+      tipStates = TipStates.encode(this);
+    return tipStates;
   }
 
   @Override
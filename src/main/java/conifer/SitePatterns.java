@@ -0,0 +1,245 @@
+package conifer;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Ints;
+
+import conifer.io.PhylogeneticObservationFactory;
+import conifer.io.TreeObservations;
+
+/**
+ * A read-only, compressed view of an alignment where each distinct column
+ * (site pattern) is stored only once, together with the number of sites
+ * sharing it.
+ *
+ * The likelihood of the original alignment is obtained by computing the
+ * likelihood of each pattern once and multiplying its log by the weight of
+ * the pattern.
+ *
+ * Since sites sharing a pattern still have independent posterior
+ * reconstructions, code producing per-site output should use expand()
+ * to go back to the original sites.
+ */
+public class SitePatterns implements TreeObservations
+{
+  private final LinkedHashMap<TreeNode, double[][]> patterns;
+
+  /**
+   * Indexed by pattern. Number of sites in the original alignment with that pattern.
+   */
+  private final int [] weights;
+
+  /**
+   * Indexed by site in the original alignment. Index of the corresponding pattern.
+   */
+  private final int [] site2Pattern;
+
+  /**
+   * Used when expanding, can be null.
+   */
+  private final PhylogeneticObservationFactory factory;
+
+  /**
+   * Computed lazily, see tipStates().
+   */
+  private TipStates tipStates = null;
+
+  private SitePatterns(
+      LinkedHashMap<TreeNode, double[][]> patterns,
+      int[] weights,
+      int[] site2Pattern,
+      PhylogeneticObservationFactory factory)
+  {
+    this.patterns = patterns;
+    this.weights = weights;
+    this.site2Pattern = site2Pattern;
+    this.factory = factory;
+  }
+
+  /**
+   * @param observations
+   * @return The compressed version of the observations, or null if they are null.
+   *         If the observations are already compressed they are returned as is,
+   *         and SequenceAlignments return their cached compressed view.
+   */
+  public static SitePatterns of(TreeObservations observations)
+  {
+    if (observations == null)
+      return null;
+    if (observations instanceof SitePatterns)
+      return (SitePatterns) observations;
+    if (observations instanceof SequenceAlignment)
+      return ((SequenceAlignment) observations).sitePatterns();
+    return compress(observations, null);
+  }
+
+  /**
+   * Find the distinct columns of the provided observations.
+   *
+   * @param observations Should map each observed node to a double[nSites][nStates] array.
+   * @param factory Passed to the alignment created by expand(), can be null.
+   * @return
+   */
+  public static SitePatterns compress(TreeObservations observations, PhylogeneticObservationFactory factory)
+  {
+    final List<TreeNode> nodes = observations.getObservedTreeNodes();
+    final int nSites = observations.nSites();
+
+    // give an integer code to each distinct indicator row, so that columns can be compared cheaply
+    Map<List<Double>, Integer> rowCodes = Maps.newHashMap();
+    final int [][] columns = new int[nSites][nodes.size()];
+    for (int nodeIndex = 0; nodeIndex < nodes.size(); nodeIndex++)
+    {
+      double [][] data = (double[][]) observations.get(nodes.get(nodeIndex));
+      for (int site = 0; site < nSites; site++)
+      {
+        List<Double> row = Doubles.asList(data[site]);
+        Integer code = rowCodes.get(row);
+        if (code == null)
+        {
+          code = rowCodes.size();
+          rowCodes.put(row, code);
+        }
+        columns[site][nodeIndex] = code;
+      }
+    }
+
+    // find distinct columns
+    Map<List<Integer>, Integer> patternIndices = Maps.newHashMap();
+    List<Integer> representativeSites = Lists.newArrayList();
+    int [] site2Pattern = new int[nSites];
+    for (int site = 0; site < nSites; site++)
+    {
+      List<Integer> column = Ints.asList(columns[site]);
+      Integer pattern = patternIndices.get(column);
+      if (pattern == null)
+      {
+        pattern = patternIndices.size();
+        patternIndices.put(column, pattern);
+        representativeSites.add(site);
+      }
+      site2Pattern[site] = pattern;
+    }
+    final int nPatterns = representativeSites.size();
+    int [] weights = new int[nPatterns];
+    for (int site = 0; site < nSites; site++)
+      weights[site2Pattern[site]]++;
+
+    LinkedHashMap<TreeNode, double[][]> patterns = Maps.newLinkedHashMap();
+    for (TreeNode node : nodes)
+    {
+      double [][] data = (double[][]) observations.get(node);
+      double [][] compressed = new double[nPatterns][];
+      for (int pattern = 0; pattern < nPatterns; pattern++)
+        compressed[pattern] = data[representativeSites.get(pattern)];
+      patterns.put(node, compressed);
+    }
+
+    return new SitePatterns(patterns, weights, site2Pattern, factory);
+  }
+
+  /**
+   * @return An alignment with one row per site of the original alignment
+   *         (rows are shared with this object, not copied).
+   */
+  public SequenceAlignment expand()
+  {
+    SequenceAlignment result = new SequenceAlignment(factory, nOriginalSites());
+    for (TreeNode node : patterns.keySet())
+      result.set(node, expand(patterns.get(node)));
+    return result;
+  }
+
+  /**
+   * @param perPattern An array indexed by pattern.
+   * @return An array indexed by site in the original alignment (rows are shared, not copied).
+   */
+  public double [][] expand(double [][] perPattern)
+  {
+    if (perPattern.length != nSites())
+      throw new RuntimeException();
+    double [][] result = new double[nOriginalSites()][];
+    for (int site = 0; site < result.length; site++)
+      result[site] = perPattern[site2Pattern[site]];
+    return result;
+  }
+
+  /**
+   * @return The compact encoding of the patterns (see TipStates), computed lazily.
+   */
+  public TipStates tipStates()
+  {
+    if (tipStates == null)
+      tipStates = TipStates.encode(this);
+    return tipStates;
+  }
+
+  public int getWeight(int pattern)
+  {
+    return weights[pattern];
+  }
+
+  public int [] getWeights()
+  {
+    return weights;
+  }
+
+  public int getPattern(int site)
+  {
+    return site2Pattern[site];
+  }
+
+  public int nOriginalSites()
+  {
+    return site2Pattern.length;
+  }
+
+  @Override
+  public List<TreeNode> getObservedTreeNodes()
+  {
+    return Lists.newArrayList(patterns.keySet());
+  }
+
+  @Override
+  public double[][] get(TreeNode leaf)
+  {
+    return patterns.get(leaf);
+  }
+
+  @Override
+  public void set(TreeNode leaf, Object data)
+  {
+    throw new RuntimeException("SitePatterns is a read-only view, modify the original alignment instead.");
+  }
+
+  @Override
+  public void clear()
+  {
+    throw new RuntimeException("SitePatterns is a read-only view, modify the original alignment instead.");
+  }
+
+  /**
+   * @return The number of patterns (see nOriginalSites() for the number of sites).
+   */
+  @Override
+  public int nSites()
+  {
+    return weights.length;
+  }
+
+  @Override
+  public String toString()
+  {
+    StringBuilder result = new StringBuilder();
+    result.append("weights : " + Arrays.toString(weights) + " ");
+    for (TreeNode node : patterns.keySet())
+      result.append(node.toString() + " : " + Arrays.deepToString(patterns.get(node)) + " ");
+    return result.toString();
+  }
+}
@@ -0,0 +1,120 @@
+package conifer;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Doubles;
+
+import conifer.io.TreeObservations;
+
+/**
+ * A compact encoding of the observations at the leaves, where each site of
+ * each observed node is represented by a short code, an index into a table
+ * of the distinct indicator rows (one per actual symbol, plus one per
+ * ambiguous symbol or missing data pattern occurring in the data).
+ *
+ * This is used by the likelihood kernels to avoid storing partials for the
+ * leaves and to replace matrix vector products at the leaves by table
+ * lookups (see FelsensteinPruning).
+ */
+public class TipStates
+{
+  private final LinkedHashMap<TreeNode, short[]> codes;
+
+  /**
+   * code -> indicator row
+   */
+  private final double [][] indicators;
+
+  private final int nSites;
+
+  private TipStates(LinkedHashMap<TreeNode, short[]> codes, double [][] indicators, int nSites)
+  {
+    this.codes = codes;
+    this.indicators = indicators;
+    this.nSites = nSites;
+  }
+
+  /**
+   * @param observations
+   * @return The encoded observations, or null if they are null or have too many
+   *         distinct indicator rows to be encoded with shorts. SequenceAlignments and
+   *         SitePatterns return their cached encoding.
+   */
+  public static TipStates of(TreeObservations observations)
+  {
+    if (observations == null)
+      return null;
+    if (observations instanceof SequenceAlignment)
+      return ((SequenceAlignment) observations).tipStates();
+    if (observations instanceof SitePatterns)
+      return ((SitePatterns) observations).tipStates();
+    return encode(observations);
+  }
+
+  /**
+   * @param observations Should map each observed node to a double[nSites][nStates] array.
+   * @return The encoded observations, or null if there are more than Short.MAX_VALUE + 1
+   *         distinct indicator rows.
+   */
+  public static TipStates encode(TreeObservations observations)
+  {
+    final int nSites = observations.nSites();
+    Map<List<Double>, Short> rowCodes = Maps.newHashMap();
+    List<double[]> indicators = Lists.newArrayList();
+    LinkedHashMap<TreeNode, short[]> codes = Maps.newLinkedHashMap();
+    for (TreeNode node : observations.getObservedTreeNodes())
+    {
+      double [][] data = (double[][]) observations.get(node);
+      if (data.length != nSites)
+        throw new RuntimeException("Number of sites in the observations (" + data.length + ") differs from " + nSites);
+      short [] current = new short[nSites];
+      for (int site = 0; site < nSites; site++)
+      {
+        List<Double> row = Doubles.asList(data[site]);
+        Short code = rowCodes.get(row);
+        if (code == null)
+        {
+          if (indicators.size() > Short.MAX_VALUE)
+            return null;
+          code = (short) indicators.size();
+          rowCodes.put(row, code);
+          indicators.add(data[site].clone());
+        }
+        current[site] = code;
+      }
+      codes.put(node, current);
+    }
+    return new TipStates(codes, indicators.toArray(new double[indicators.size()][]), nSites);
+  }
+
+  /**
+   * @return The code of each site for the given node, or null if the node is not observed.
+   *   Should not be modified.
+   */
+  public short [] getCodes(TreeNode node)
+  {
+    return codes.get(node);
+  }
+
+  /**
+   * @return The indicator row corresponding to the given code. Should not be modified.
+   */
+  public double [] getIndicators(int code)
+  {
+    return indicators[code];
+  }
+
+  public int nCodes()
+  {
+    return indicators.length;
+  }
+
+  public int nSites()
+  {
+    return nSites;
+  }
+}
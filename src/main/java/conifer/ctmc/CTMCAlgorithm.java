@@ -0,0 +1,50 @@
+package conifer.ctmc;
+
+/**
+ * How the transition probabilities of a rate matrix are computed, see 
+ * SimpleRateMatrix.
+ */
+public enum CTMCAlgorithm
+{
+  /**
+   * See EigenCTMC.
+   */
+  EIGEN 
+  {
+    @Override
+    public CTMC create(double [][] rates, double tolerance)
+    {
+      return new EigenCTMC(rates);
+    }
+  },
+  
+  /**
+   * See UniformizationCTMC.
+   */
+  UNIFORMIZATION
+  {
+    @Override
+    public CTMC create(double [][] rates, double tolerance)
+    {
+      return new UniformizationCTMC(rates, tolerance);
+    }
+  },
+  
+  /**
+   * See HKYCTMC. Rate matrices without this structure fall back to EIGEN.
+   */
+  CLOSED_FORM
+  {
+    @Override
+    public CTMC create(double [][] rates, double tolerance)
+    {
+      CTMC result = HKYCTMC.fromRateMatrix(rates);
+      return result == null ? EIGEN.create(rates, tolerance) : result;
+    }
+  };
+  
+  /**
+   * @param tolerance Only used by approximations with error control.
+   */
+  public abstract CTMC create(double [][] rates, double tolerance);
+}
@@ -0,0 +1,286 @@
+package conifer.ctmc;
+
+import Jama.EigenvalueDecomposition;
+import Jama.Matrix;
+
+/**
+ * Expected sufficient statistics (holding times and transition counts) of a
+ * CTMC path conditioned on its end points, computed from a single
+ * eigendecomposition Q = U diag(lambda) U^{-1} of the rate matrix, following
+ * Hobolth and Jensen (2011), Summary statistics for endpoint-conditioned
+ * continuous-time Markov chains (the EVD method):
+ *
+ *   P(T)(i, j) E[T(a) | X_0=i, X_T=j] = sum_{k,l} U(i,k) U^{-1}(k,a) U(a,l) U^{-1}(l,j) J(k,l)
+ *
+ * with J(k,l) = (exp(lambda_k T) - exp(lambda_l T)) / (lambda_k - lambda_l), or
+ * T exp(lambda_k T) when lambda_k = lambda_l, and similarly for the number of
+ * a -> b transitions, with U(b,l) in place of U(a,l) and a factor Q(a,b).
+ *
+ * When these are weighted by end point counts C(i, j) and summed, the sum
+ * over i, j can be done first, so that all the statistics of an edge are
+ * obtained with a few n by n matrix products, compared to one 2n by 2n
+ * matrix exponential per statistic in RateMtxExpectations (which is kept as
+ * a reference implementation).
+ *
+ * The decomposition is shared by all the branch lengths. For reversible rate
+ * matrices, it is taken from the symmetric decomposition of ReversibleCTMC.
+ */
+public class EigenRateMtxExpectations
+{
+  /**
+   * Imaginary parts of eigenvalues larger than this (relative to the largest
+   * eigenvalue) are not supported.
+   */
+  public static final double IMAGINARY_TOLERANCE = 1e-10;
+
+  private final double [][] rates;
+  private final double [] eigenvalues;
+
+  /**
+   * U and U^{-1}
+   */
+  private final double [][] left, right;
+
+  /**
+   * Uses the symmetric decomposition of the given reversible process.
+   */
+  public EigenRateMtxExpectations(ReversibleCTMC process)
+  {
+    this.rates = process.getRateMatrix();
+    this.eigenvalues = process.getEigenvalues();
+    final double [][] orthonormal = process.getSymmetricEigenvectors();
+    final double [] sqrtStationary = process.getSqrtStationary();
+    final int size = rates.length;
+    this.left = new double[size][size];
+    this.right = new double[size][size];
+    for (int i = 0; i < size; i++)
+      for (int k = 0; k < size; k++)
+      {
+        left[i][k] = orthonormal[i][k] / sqrtStationary[i];
+        right[k][i] = orthonormal[i][k] * sqrtStationary[i];
+      }
+  }
+
+  /**
+   * Uses a general eigendecomposition, which should have real eigenvalues.
+   */
+  public EigenRateMtxExpectations(double [][] rates)
+  {
+    RateMatrixUtils.checkValidRateMatrix(rates);
+    this.rates = rates;
+    EigenvalueDecomposition decomposition = new Matrix(rates).eig();
+    this.eigenvalues = decomposition.getRealEigenvalues();
+    double scale = 0.0;
+    for (double eigenvalue : eigenvalues)
+      scale = Math.max(scale, Math.abs(eigenvalue));
+    for (double imaginary : decomposition.getImagEigenvalues())
+      if (Math.abs(imaginary) > IMAGINARY_TOLERANCE * scale)
+        throw new RuntimeException("Rate matrices with complex eigenvalues are not supported");
+    Matrix eigenvectors = decomposition.getV();
+    this.left = eigenvectors.getArray();
+    this.right = eigenvectors.inverse().getArray();
+  }
+
+  /**
+   * @return An instance using the symmetric decomposition when the process is
+   *   reversible with respect to its stationary distribution, a general one otherwise.
+   */
+  public static EigenRateMtxExpectations fromProcess(CTMC process)
+  {
+    if (process instanceof ReversibleCTMC)
+      return new EigenRateMtxExpectations((ReversibleCTMC) process);
+    final double [][] rates = process.getRateMatrix();
+    final double [] stationary = process.stationaryDistribution();
+    if (ReversibleCTMC.isReversible(rates, stationary))
+      return new EigenRateMtxExpectations(new ReversibleCTMC(rates, stationary));
+    return new EigenRateMtxExpectations(rates);
+  }
+
+  public double [][] getRateMatrix()
+  {
+    return rates;
+  }
+
+  /**
+   * Same as RateMtxExpectations.expectations(marginalCounts, rateMtx, T):
+   *
+   * result[a][b] = sum_{i,j} marginalCounts[i][j] E[N(a->b)|X_0=i, X_T=j] for a != b,
+   * result[a][a] = sum_{i,j} marginalCounts[i][j] E[T(a)|X_0=i, X_T=j]
+   */
+  public double [][] expectations(double [][] marginalCounts, double T)
+  {
+    return expectations(marginalCounts, kernel(T));
+  }
+
+  /**
+   * @return The quantities depending only on the rate matrix and T, see Kernel.
+   */
+  public Kernel kernel(double T)
+  {
+    final int n = rates.length;
+    final double [] exponentials = new double[n];
+    for (int k = 0; k < n; k++)
+      exponentials[k] = Math.exp(eigenvalues[k] * T);
+    double [][] transitions = new double[n][n], integrals = new double[n][n];
+    final double [] scaledRow = new double[n];
+    for (int i = 0; i < n; i++)
+    {
+      for (int k = 0; k < n; k++)
+        scaledRow[k] = left[i][k] * exponentials[k];
+      for (int j = 0; j < n; j++)
+      {
+        double transition = 0.0;
+        for (int k = 0; k < n; k++)
+          transition += scaledRow[k] * right[k][j];
+        transitions[i][j] = transition;
+      }
+    }
+    for (int k = 0; k < n; k++)
+      for (int l = 0; l < n; l++)
+        integrals[k][l] = integral(k, l, T, exponentials);
+    return new Kernel(this, T, transitions, integrals);
+  }
+
+  /**
+   * Same as expectations(marginalCounts, T), with the kernel of T, which should 
+   * have been created by this instance.
+   */
+  public double [][] expectations(double [][] marginalCounts, Kernel kernel)
+  {
+    if (kernel.decomposition != this)
+      throw new RuntimeException("The kernel was created from a different decomposition");
+    final int n = rates.length;
+
+    final Workspace workspace = workspace(n);
+    final double [][] weights = workspace.weights, work = workspace.work, product = workspace.product;
+
+    // W = C / P, entrywise
+    for (int i = 0; i < n; i++)
+      for (int j = 0; j < n; j++)
+      {
+        final double count = marginalCounts[i][j];
+        weights[i][j] = count == 0.0 ? 0.0 : count / kernel.transitions[i][j];
+      }
+
+    // M = U' W U^{-1}', then F = M * J entrywise
+    for (int k = 0; k < n; k++)
+      for (int j = 0; j < n; j++)
+        product[k][j] = 0.0;
+    for (int i = 0; i < n; i++)
+      for (int k = 0; k < n; k++)
+      {
+        final double factor = left[i][k];
+        for (int j = 0; j < n; j++)
+          product[k][j] += factor * weights[i][j];
+      }
+    for (int k = 0; k < n; k++)
+      for (int l = 0; l < n; l++)
+      {
+        double sum = 0.0;
+        for (int j = 0; j < n; j++)
+          sum += product[k][j] * right[l][j];
+        work[k][l] = sum * kernel.integrals[k][l];
+      }
+
+    // S = U^{-1}' F U'
+    for (int a = 0; a < n; a++)
+      for (int l = 0; l < n; l++)
+      {
+        double sum = 0.0;
+        for (int k = 0; k < n; k++)
+          sum += right[k][a] * work[k][l];
+        product[a][l] = sum;
+      }
+    double [][] result = new double[n][n];
+    for (int a = 0; a < n; a++)
+      for (int b = 0; b < n; b++)
+      {
+        double sum = 0.0;
+        for (int l = 0; l < n; l++)
+          sum += product[a][l] * left[b][l];
+        result[a][b] = (a == b ? 1.0 : rates[a][b]) * sum;
+      }
+    return result;
+  }
+
+  /**
+   * Temporary n by n matrices of expectations(), allocated once per thread and size.
+   */
+  private static final class Workspace
+  {
+    private final double [][] weights, work, product;
+    private Workspace(int n)
+    {
+      this.weights = new double[n][n];
+      this.work = new double[n][n];
+      this.product = new double[n][n];
+    }
+  }
+
+  private static final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>();
+
+  private static Workspace workspace(int n)
+  {
+    Workspace result = workspaces.get();
+    if (result == null || result.weights.length != n)
+    {
+      result = new Workspace(n);
+      workspaces.set(result);
+    }
+    return result;
+  }
+
+  /**
+   * @return Approximate memory used by this instance, in bytes.
+   */
+  public long nBytes()
+  {
+    final long n = rates.length;
+    return 8L * (2 * n * n + n);
+  }
+
+  /**
+   * What the expected statistics for one branch length T need besides the end point
+   * counts: P(T), computed from the decomposition, and the integrals J(k, l).
+   * These can be cached and reused across edges and calls, see ExpectedStatisticsCache.
+   */
+  public static final class Kernel
+  {
+    private final EigenRateMtxExpectations decomposition;
+    public final double T;
+    private final double [][] transitions, integrals;
+
+    private Kernel(EigenRateMtxExpectations decomposition, double T, double [][] transitions, double [][] integrals)
+    {
+      this.decomposition = decomposition;
+      this.T = T;
+      this.transitions = transitions;
+      this.integrals = integrals;
+    }
+
+    public EigenRateMtxExpectations getDecomposition()
+    {
+      return decomposition;
+    }
+
+    /**
+     * @return Approximate memory used by this kernel, in bytes.
+     */
+    public long nBytes()
+    {
+      final long n = transitions.length;
+      return 8L * 2 * n * n;
+    }
+  }
+
+  /**
+   * @return J(k, l), the integral from 0 to T of exp(lambda_k s) exp(lambda_l (T - s)) ds.
+   */
+  private double integral(int k, int l, double T, double [] exponentials)
+  {
+    final double difference = eigenvalues[k] - eigenvalues[l];
+    if (Math.abs(difference) * T < 1e-8)
+      return T * Math.exp((eigenvalues[k] + eigenvalues[l]) / 2.0 * T);
+    return (exponentials[k] - exponentials[l]) / difference;
+  }
+}
@@ -3,8 +3,6 @@ package conifer.ctmc;
 import java.util.List;
 import java.util.Random;
 
-import org.jblas.DoubleMatrix;
-
 import com.google.common.collect.Lists;
 
 import bayonet.distributions.Multinomial;
@@ -26,9 +24,10 @@ public class EndPointSampler
 {
   private static final int MAX_N_TRANSITION = 1000000;
   private final CTMC ctmc;
-  private final DoubleMatrix uniformizedTransition;
+  private final double [][] uniformizedTransition;
   public final double maxDepartureRate;
-  private final List<DoubleMatrix> cache;
+  private final List<double[][]> cache;
+  private final UniformizationCTMC uniformization;
   private double [] sojournWorkArray = new double[10];
   private final double [] transitionWorkArray;
 
@@ -38,8 +37,9 @@ public class EndPointSampler
   {
     this.ctmc = ctmc;
     this.maxDepartureRate = maxDepartureRate(ctmc.getRateMatrix());
-    this.uniformizedTransition = new DoubleMatrix(uniformizedTransition(ctmc.getRateMatrix(), maxDepartureRate));
+    this.uniformizedTransition = uniformizedTransition(ctmc.getRateMatrix(), maxDepartureRate);
     this.cache = initCache();
+    this.uniformization = uniformization(ctmc);
     this.transitionWorkArray = new double[ctmc.getRateMatrix().length];
   }
   
@@ -134,7 +134,7 @@ public class EndPointSampler
       final double logNum = 
         logConstant + 
         nTransition * logMuT + 
-        Math.log(getUniformizedTransitionPower(nTransition,cached).get(startPoint, endPoint));
+        Math.log(getUniformizedTransitionPower(nTransition,cached)[startPoint][endPoint]);
       final double logDenom = SpecialFunctions.logFactorial(nTransition);
       final double current = Math.exp(logNum - logDenom);
       sum += current;
@@ -157,8 +157,8 @@ public class EndPointSampler
       // compute transition probabilities
       for (int candidateState = 0; candidateState < transitionWorkArray.length; candidateState++)
         transitionWorkArray[candidateState] = 
-          uniformizedTransition.get(currentPoint, candidateState) * 
-          getUniformizedTransitionPower(nTransitions - transitionIndex - 1,cached).get(candidateState, endPoint);
+          uniformizedTransition[currentPoint][candidateState] * 
+          getUniformizedTransitionPower(nTransitions - transitionIndex - 1,cached)[candidateState][endPoint];
       Multinomial.normalize(transitionWorkArray);
       int nextState = Multinomial.sampleMultinomial(rand, transitionWorkArray);
       if (resultPath != null)
@@ -205,33 +205,66 @@ public class EndPointSampler
     return sojournWorkArray;
   }
   
-  private DoubleMatrix getUniformizedTransitionPower(int power)
+  private double[][] getUniformizedTransitionPower(int power)
   {
     ensureCache(power);
     return cache.get(power);
   }
 
-  private DoubleMatrix getUniformizedTransitionPower(int power, boolean cached)
+  private double[][] getUniformizedTransitionPower(int power, boolean cached)
   {
     if(cached){
       return getUniformizedTransitionPower(power);
     }else{
-      DoubleMatrix result = DoubleMatrix.eye(uniformizedTransition.columns);
+      // borrowed from the process if it already holds it, without asking it to keep more powers
+      final double [][] borrowed = uniformization == null ? null : uniformization.getCachedUniformizedTransitionPower(power);
+      if (borrowed != null)
+        return borrowed;
+      // recomputed without keeping the intermediate powers, reusing two buffers
+      ensureBuffers();
+      double [][] result = powerBuffer, other = productBuffer;
+      MatrixKernels.setIdentity(result);
       for(int i=0; i< power; i++)
       {
-        result = result.mmul(uniformizedTransition);
-
+        MatrixKernels.multiply(result, uniformizedTransition, other);
+        double [][] swap = result; result = other; other = swap;
       }
       return result;
 
     }
 
   }
+  
+  private double [][] powerBuffer = null, productBuffer = null;
+  private void ensureBuffers()
+  {
+    if (powerBuffer != null)
+      return;
+    final int size = uniformizedTransition.length;
+    powerBuffer = new double[size][size];
+    productBuffer = new double[size][size];
+  }
+
+  /**
+   * @return The uniformization process sharing the uniformized matrix of ctmc, if any.
+   *   Scaling the rate matrix does not change the uniformized matrix.
+   */
+  private static UniformizationCTMC uniformization(CTMC ctmc)
+  {
+    if (ctmc instanceof ScaledCTMC)
+      ctmc = ((ScaledCTMC) ctmc).getBase();
+    if (ctmc instanceof UniformizationCTMC)
+      return (UniformizationCTMC) ctmc;
+    return null;
+  }
 
-  private List<DoubleMatrix> initCache()
+  private List<double[][]> initCache()
   {
-    List<DoubleMatrix> result = Lists.newArrayList();
-    result.add(DoubleMatrix.eye(uniformizedTransition.columns));
+    List<double[][]> result = Lists.newArrayList();
+    final int size = uniformizedTransition.length;
+    double [][] identity = new double[size][size];
+    MatrixKernels.setIdentity(identity);
+    result.add(identity);
     return result;
   }
 
@@ -240,8 +273,18 @@ public class EndPointSampler
     int maxPowerInCache = cache.size() - 1;
     for (int curPower = maxPowerInCache + 1; curPower <= power; curPower++)
     {
-      DoubleMatrix tmpMatrix = cache.get(curPower-1);
-      cache.add(tmpMatrix.mmul(uniformizedTransition));
+      // same uniformized matrix, so reuse the powers already computed by the process
+      final double [][] borrowed = uniformization == null ? null : uniformization.getCachedUniformizedTransitionPower(curPower);
+      if (borrowed != null)
+      {
+        cache.add(borrowed);
+        continue;
+      }
+      double [][] tmpMatrix = cache.get(curPower-1);
+      final int size = uniformizedTransition.length;
+      double [][] next = new double[size][size];
+      MatrixKernels.multiply(tmpMatrix, uniformizedTransition, next);
+      cache.add(next);
     }
       
   }
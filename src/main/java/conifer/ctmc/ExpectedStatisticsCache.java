@@ -0,0 +1,254 @@
+package conifer.ctmc;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+
+import conifer.ctmc.EigenRateMtxExpectations.Kernel;
+
+/**
+ * A cache for the computation of expected sufficient statistics (see
+ * EigenRateMtxExpectations), bounded in memory:
+ *
+ * - the decomposition of the rate matrix of each category is recomputed only
+ *   when the content of that rate matrix changes (e.g. not between two E-steps
+ *   with the same parameters);
+ * - the kernel of each (rate matrix, branch length) pair is kept until evicted,
+ *   least recently used first, once the memory used by the kernels and the
+ *   decompositions exceeds the budget. Trees with repeated branch lengths and
+ *   repeated E-steps hence share kernels.
+ *
+ * The cached objects are shared, they should not be modified by callers.
+ */
+public class ExpectedStatisticsCache
+{
+  private final long maxBytes;
+
+  private final LinkedHashMap<Key, Kernel> kernels = new LinkedHashMap<Key, Kernel>(16, 0.75f, true);
+
+  /**
+   * category -> last rate matrix seen, its version and decomposition
+   */
+  private final List<double[][]> rateMatrices = Lists.newArrayList();
+  private final List<Long> versions = Lists.newArrayList();
+  private final List<EigenRateMtxExpectations> decompositions = Lists.newArrayList();
+  private long nextVersion = 0;
+
+  private long nBytes = 0;
+  private long nHits = 0, nMisses = 0, nEvictions = 0, nDecompositions = 0;
+
+  /**
+   * @param maxBytes Memory budget for the kernels and decompositions (and the copies of
+   *   the rate matrices they were computed from). The decompositions currently in use
+   *   are always kept, even when they exceed it.
+   */
+  public ExpectedStatisticsCache(long maxBytes)
+  {
+    if (maxBytes < 0)
+      throw new RuntimeException();
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * @param category
+   * @param process The current process of that category.
+   * @return The decomposition of its rate matrix, recomputed only if the content of the
+   *   rate matrix differs from the one of the previous call for that category.
+   */
+  public synchronized EigenRateMtxExpectations decomposition(int category, CTMC process)
+  {
+    final double [][] rateMatrix = process.getRateMatrix();
+    while (rateMatrices.size() <= category)
+    {
+      rateMatrices.add(null);
+      versions.add(null);
+      decompositions.add(null);
+    }
+    if (rateMatrices.get(category) != null && Arrays.deepEquals(rateMatrices.get(category), rateMatrix))
+      return decompositions.get(category);
+    // invalidate the kernels of that category
+    if (versions.get(category) != null)
+    {
+      final long stale = versions.get(category);
+      for (Iterator<Map.Entry<Key, Kernel>> iterator = kernels.entrySet().iterator(); iterator.hasNext(); )
+      {
+        Map.Entry<Key, Kernel> entry = iterator.next();
+        if (entry.getKey().version == stale)
+        {
+          nBytes -= entry.getValue().nBytes();
+          iterator.remove();
+        }
+      }
+      nBytes -= decompositions.get(category).nBytes() + nBytes(rateMatrices.get(category));
+    }
+    double [][] copy = new double[rateMatrix.length][];
+    for (int i = 0; i < rateMatrix.length; i++)
+      copy[i] = rateMatrix[i].clone();
+    EigenRateMtxExpectations decomposition = EigenRateMtxExpectations.fromProcess(process);
+    nDecompositions++;
+    nBytes += decomposition.nBytes() + nBytes(copy);
+    rateMatrices.set(category, copy);
+    versions.set(category, nextVersion++);
+    decompositions.set(category, decomposition);
+    evict();
+    return decomposition;
+  }
+
+  /**
+   * @param category
+   * @param decomposition The current decomposition of that category, as returned by decomposition().
+   * @param branchLength
+   * @return The kernel for that branch length.
+   */
+  public Kernel kernel(int category, EigenRateMtxExpectations decomposition, double branchLength)
+  {
+    final Key key;
+    synchronized (this)
+    {
+      if (category >= decompositions.size() || decompositions.get(category) != decomposition)
+        throw new RuntimeException("Not the current decomposition of category " + category);
+      key = new Key(versions.get(category), category, branchLength);
+      Kernel result = kernels.get(key);
+      if (result != null)
+      {
+        nHits++;
+        return result;
+      }
+      nMisses++;
+    }
+    // computed outside of the lock
+    Kernel result = decomposition.kernel(branchLength);
+    synchronized (this)
+    {
+      // the category may have been updated in the meantime
+      if (decompositions.get(category) == decomposition && !kernels.containsKey(key))
+      {
+        kernels.put(key, result);
+        nBytes += result.nBytes();
+        evict();
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return Memory used by the copy of a rate matrix kept to detect changes.
+   */
+  private static long nBytes(double [][] matrix)
+  {
+    final long n = matrix.length;
+    return 8L * n * n;
+  }
+
+  private void evict()
+  {
+    for (Iterator<Kernel> iterator = kernels.values().iterator(); nBytes > maxBytes && iterator.hasNext(); )
+    {
+      nBytes -= iterator.next().nBytes();
+      iterator.remove();
+      nEvictions++;
+    }
+  }
+
+  public synchronized long nHits()
+  {
+    return nHits;
+  }
+
+  public synchronized long nMisses()
+  {
+    return nMisses;
+  }
+
+  public synchronized double hitRate()
+  {
+    return nHits + nMisses == 0 ? 0.0 : ((double) nHits) / (nHits + nMisses);
+  }
+
+  public synchronized long nEvictions()
+  {
+    return nEvictions;
+  }
+
+  /**
+   * @return Number of decompositions computed so far.
+   */
+  public synchronized long nDecompositions()
+  {
+    return nDecompositions;
+  }
+
+  /**
+   * @return Approximate memory used by the cached kernels and decompositions, including
+   *   the copies of the rate matrices they were computed from.
+   */
+  public synchronized long nBytes()
+  {
+    return nBytes;
+  }
+
+  public synchronized int size()
+  {
+    return kernels.size();
+  }
+
+  public synchronized void clear()
+  {
+    kernels.clear();
+    rateMatrices.clear();
+    versions.clear();
+    decompositions.clear();
+    nBytes = 0;
+  }
+
+  @Override
+  public synchronized String toString()
+  {
+    return "ExpectedStatisticsCache[size=" + kernels.size() + ",bytes=" + nBytes + ",maxBytes=" + maxBytes +
+        ",hits=" + nHits + ",misses=" + nMisses + ",hitRate=" + hitRate() + ",evictions=" + nEvictions +
+        ",decompositions=" + nDecompositions + "]";
+  }
+
+  private static final class Key
+  {
+    private final long version;
+    private final int category;
+    private final double branchLength;
+
+    private Key(long version, int category, double branchLength)
+    {
+      this.version = version;
+      this.category = category;
+      this.branchLength = branchLength;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      final int prime = 31;
+      int result = 1;
+      result = prime * result + (int) (version ^ (version >>> 32));
+      result = prime * result + category;
+      long temp = Double.doubleToLongBits(branchLength);
+      result = prime * result + (int) (temp ^ (temp >>> 32));
+      return result;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (this == obj)
+        return true;
+      if (!(obj instanceof Key))
+        return false;
+      Key other = (Key) obj;
+      return version == other.version &&
+          category == other.category &&
+          Double.doubleToLongBits(branchLength) == Double.doubleToLongBits(other.branchLength);
+    }
+  }
+}
@@ -0,0 +1,201 @@
+package conifer.ctmc;
+
+
+
+/**
+ * A continuous time Markov chain on four states with a rate matrix of the
+ * form of Hasegawa, Kishino and Yano (1985):
+ *
+ *   Q(i, j) = kappa beta pi_j  if i and j are partners (a transition, e.g. A <-> G),
+ *   Q(i, j) = beta pi_j        otherwise (a transversion),
+ *
+ * where the states are grouped in two pairs of partners. This includes
+ * Jukes-Cantor (1969, uniform pi and kappa = 1), Kimura (1980, uniform pi) and
+ * Felsenstein (1981, kappa = 1).
+ *
+ * The transition probabilities are filled from closed form formulas, so no
+ * decomposition of the rate matrix is needed and, with
+ * marginalTransitionProbability(double, double[]), no allocation either.
+ * Instances are obtained from a rate matrix with fromRateMatrix(), which
+ * detects whether it has this structure (the pairing of the states is detected
+ * as well, so the order of the states does not matter).
+ */
+public class HKYCTMC implements CTMC
+{
+  public static final int N_STATES = 4;
+
+  /**
+   * Relative tolerance used when checking the structure of a rate matrix.
+   */
+  public static final double DETECTION_TOLERANCE = 1e-10;
+
+  private final double [][] rates;
+  private final double [] stationary;
+  private final double kappa;
+  private final double beta;
+
+  /**
+   * state -> the other state of its pair
+   */
+  private final int [] partners;
+
+  /**
+   * state -> sum of the stationary probabilities of its pair
+   */
+  private final double [] pairProbabilities;
+
+  private HKYCTMC(double [][] rates, double [] stationary, double kappa, double beta, int [] partners)
+  {
+    this.rates = rates;
+    this.stationary = stationary;
+    this.kappa = kappa;
+    this.beta = beta;
+    this.partners = partners;
+    this.pairProbabilities = new double[N_STATES];
+    for (int state = 0; state < N_STATES; state++)
+      pairProbabilities[state] = stationary[state] + stationary[partners[state]];
+  }
+
+  /**
+   * @return A closed form process for the given rate matrix, or null if it does
+   *   not have the structure described in the class comment.
+   */
+  public static HKYCTMC fromRateMatrix(double [][] rates)
+  {
+    if (rates.length != N_STATES)
+      return null;
+    for (int row = 0; row < N_STATES; row++)
+    {
+      if (rates[row].length != N_STATES)
+        return null;
+      double sum = 0.0;
+      for (int column = 0; column < N_STATES; column++)
+        sum += rates[row][column];
+      if (Math.abs(sum) > DETECTION_TOLERANCE * Math.abs(rates[row][row]))
+        return null;
+    }
+    // try the three ways of pairing the states
+    for (int partnerOfFirst = 1; partnerOfFirst < N_STATES; partnerOfFirst++)
+    {
+      int [] partners = new int[N_STATES];
+      partners[0] = partnerOfFirst;
+      partners[partnerOfFirst] = 0;
+      int first = -1;
+      for (int state = 1; state < N_STATES; state++)
+        if (state != partnerOfFirst)
+        {
+          if (first == -1)
+            first = state;
+          else
+          {
+            partners[first] = state;
+            partners[state] = first;
+          }
+        }
+      HKYCTMC result = fromRateMatrix(rates, partners);
+      if (result != null)
+        return result;
+    }
+    return null;
+  }
+
+  private static HKYCTMC fromRateMatrix(double [][] rates, int [] partners)
+  {
+    // column j: transversions all equal to beta pi_j, the transition to kappa beta pi_j
+    double [] transversions = new double[N_STATES];
+    double kappa = Double.NaN, beta = 0.0;
+    for (int column = 0; column < N_STATES; column++)
+    {
+      double transversion = Double.NaN;
+      for (int row = 0; row < N_STATES; row++)
+        if (row != column && row != partners[column])
+        {
+          if (Double.isNaN(transversion))
+            transversion = rates[row][column];
+          else if (!isClose(transversion, rates[row][column]))
+            return null;
+        }
+      if (!(transversion > 0.0))
+        return null;
+      final double currentKappa = rates[partners[column]][column] / transversion;
+      if (Double.isNaN(kappa))
+        kappa = currentKappa;
+      else if (!isClose(kappa, currentKappa))
+        return null;
+      transversions[column] = transversion;
+      beta += transversion;
+    }
+    double [] stationary = new double[N_STATES];
+    for (int state = 0; state < N_STATES; state++)
+      stationary[state] = transversions[state] / beta;
+    return new HKYCTMC(rates, stationary, kappa, beta, partners);
+  }
+
+  private static boolean isClose(double first, double second)
+  {
+    return Math.abs(first - second) <= DETECTION_TOLERANCE * Math.max(Math.abs(first), Math.abs(second));
+  }
+
+  @Override
+  public double [][] marginalTransitionProbability(double branchLength)
+  {
+    double [] flat = new double[N_STATES * N_STATES];
+    marginalTransitionProbability(branchLength, flat);
+    double [][] result = new double[N_STATES][N_STATES];
+    for (int row = 0; row < N_STATES; row++)
+      System.arraycopy(flat, row * N_STATES, result[row], 0, N_STATES);
+    return result;
+  }
+
+  /**
+   * @param result Filled with P(t), flattened in row major order.
+   */
+  public void marginalTransitionProbability(double branchLength, double [] result)
+  {
+    if (!(branchLength >= 0.0) || Double.isInfinite(branchLength))
+      throw new RuntimeException("Invalid branch length: " + branchLength);
+    final double transversionDecay = Math.exp(-beta * branchLength);
+    for (int row = 0; row < N_STATES; row++)
+    {
+      final double pair = pairProbabilities[row];
+      final double pairDecay = Math.exp(-beta * branchLength * (1.0 + pair * (kappa - 1.0)));
+      for (int column = 0; column < N_STATES; column++)
+      {
+        final double pi = stationary[column];
+        final double value;
+        if (column == row)
+          value = pi + pi * (1.0 / pair - 1.0) * transversionDecay + (pair - pi) / pair * pairDecay;
+        else if (column == partners[row])
+          value = pi + pi * (1.0 / pair - 1.0) * transversionDecay - pi / pair * pairDecay;
+        else
+          value = pi * (1.0 - transversionDecay);
+        result[row * N_STATES + column] = Math.max(0.0, value);
+      }
+    }
+  }
+
+  @Override
+  public double [] stationaryDistribution()
+  {
+    return stationary;
+  }
+
+  @Override
+  public double [][] getRateMatrix()
+  {
+    return rates;
+  }
+
+  public double getKappa()
+  {
+    return kappa;
+  }
+
+  /**
+   * @return The transversion rate, beta in the class comment.
+   */
+  public double getBeta()
+  {
+    return beta;
+  }
+}
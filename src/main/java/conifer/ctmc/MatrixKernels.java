@@ -0,0 +1,127 @@
+package conifer.ctmc;
+
+import org.jblas.DoubleMatrix;
+
+/**
+ * Pure Java dense matrix kernels for the small square matrices found in
+ * this package (4 to 61 states, 2n by 2n auxiliary matrices), where the cost of
+ * calling native code dominates. None of them allocate: all outputs and
+ * work arrays are provided by the caller.
+ *
+ * Setting useJBLAS to true routes multiply() to jblas instead, which can be
+ * faster for larger matrices but requires the native library.
+ */
+public class MatrixKernels
+{
+  public static boolean useJBLAS = false;
+
+  /**
+   * result = first second. The result should not be the same array as either input.
+   */
+  public static void multiply(double [][] first, double [][] second, double [][] result)
+  {
+    final int n = result.length, inner = second.length, m = result[0].length;
+    if (useJBLAS)
+    {
+      copy(new DoubleMatrix(first).mmul(new DoubleMatrix(second)).toArray2(), result);
+      return;
+    }
+    for (int i = 0; i < n; i++)
+    {
+      final double [] resultRow = result[i], firstRow = first[i];
+      for (int j = 0; j < m; j++)
+        resultRow[j] = 0.0;
+      for (int k = 0; k < inner; k++)
+      {
+        final double factor = firstRow[k];
+        if (factor == 0.0)
+          continue;
+        final double [] secondRow = second[k];
+        for (int j = 0; j < m; j++)
+          resultRow[j] += factor * secondRow[j];
+      }
+    }
+  }
+
+  public static void copy(double [][] source, double [][] destination)
+  {
+    for (int i = 0; i < source.length; i++)
+      System.arraycopy(source[i], 0, destination[i], 0, source[i].length);
+  }
+
+  public static void setIdentity(double [][] matrix)
+  {
+    for (int i = 0; i < matrix.length; i++)
+      for (int j = 0; j < matrix[i].length; j++)
+        matrix[i][j] = (i == j ? 1.0 : 0.0);
+  }
+
+  /**
+   * @return The maximum absolute column sum.
+   */
+  public static double norm1(double [][] matrix)
+  {
+    double result = 0.0;
+    for (int j = 0; j < matrix[0].length; j++)
+    {
+      double sum = 0.0;
+      for (int i = 0; i < matrix.length; i++)
+        sum += Math.abs(matrix[i][j]);
+      result = Math.max(result, sum);
+    }
+    return result;
+  }
+
+  /**
+   * Solve system X = rightHandSide by Gaussian elimination with partial pivoting.
+   *
+   * @param system Overwritten by its LU decomposition.
+   * @param rightHandSide Overwritten by the solution X.
+   */
+  public static void solve(double [][] system, double [][] rightHandSide)
+  {
+    final int n = system.length, m = rightHandSide[0].length;
+    for (int column = 0; column < n; column++)
+    {
+      int pivot = column;
+      for (int row = column + 1; row < n; row++)
+        if (Math.abs(system[row][column]) > Math.abs(system[pivot][column]))
+          pivot = row;
+      if (system[pivot][column] == 0.0)
+        throw new RuntimeException("Singular system");
+      if (pivot != column)
+      {
+        double [] swap = system[pivot]; system[pivot] = system[column]; system[column] = swap;
+        swap = rightHandSide[pivot]; rightHandSide[pivot] = rightHandSide[column]; rightHandSide[column] = swap;
+      }
+      final double [] pivotRow = system[column], pivotRight = rightHandSide[column];
+      for (int row = column + 1; row < n; row++)
+      {
+        final double factor = system[row][column] / pivotRow[column];
+        if (factor == 0.0)
+          continue;
+        final double [] currentRow = system[row], currentRight = rightHandSide[row];
+        for (int j = column; j < n; j++)
+          currentRow[j] -= factor * pivotRow[j];
+        for (int j = 0; j < m; j++)
+          currentRight[j] -= factor * pivotRight[j];
+      }
+    }
+    for (int row = n - 1; row >= 0; row--)
+    {
+      final double [] currentRow = system[row], currentRight = rightHandSide[row];
+      for (int k = row + 1; k < n; k++)
+      {
+        final double factor = currentRow[k];
+        if (factor == 0.0)
+          continue;
+        final double [] solvedRow = rightHandSide[k];
+        for (int j = 0; j < m; j++)
+          currentRight[j] -= factor * solvedRow[j];
+      }
+      final double diagonal = currentRow[row];
+      for (int j = 0; j < m; j++)
+        currentRight[j] /= diagonal;
+    }
+  }
+}
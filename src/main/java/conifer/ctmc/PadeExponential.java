@@ -0,0 +1,160 @@
+package conifer.ctmc;
+
+/**
+ * Matrix exponential by Pade approximation with scaling and squaring, following
+ * Higham (2005), The scaling and squaring method for the matrix exponential
+ * revisited: the degree of the approximant (3, 5, 7, 9 or 13) and the number of
+ * squarings are picked from the 1-norm of the matrix so that the backward error
+ * is at the level of the double precision unit roundoff.
+ *
+ * Works for any square matrix (not only rate matrices, e.g. the auxiliary
+ * matrices of RateMtxExpectations). All the work arrays are allocated by the
+ * constructor, so exp() does not allocate; as a consequence, an instance
+ * should not be shared by several threads.
+ */
+public class PadeExponential
+{
+  private static final int [] DEGREES = {3, 5, 7, 9, 13};
+
+  /**
+   * Largest 1-norm for which each degree is accurate enough.
+   */
+  private static final double [] THETAS = {1.495585217958292e-2, 2.539398330063230e-1, 9.504178996162932e-1, 2.097847961257068, 5.371920351148152};
+
+  private static final double [][] COEFFICIENTS = {
+    {120, 60, 12, 1},
+    {30240, 15120, 3360, 420, 30, 1},
+    {17297280, 8648640, 1995840, 277200, 25200, 1512, 56, 1},
+    {17643225600.0, 8821612800.0, 2075673600, 302702400, 30270240, 2162160, 110880, 3960, 90, 1},
+    {64764752532480000.0, 32382376266240000.0, 7771770303897600.0, 1187353796428800.0, 129060195264000.0,
+      10559470521600.0, 670442572800.0, 33522128640.0, 1323241920, 40840800, 960960, 16380, 182, 1}};
+
+  private final int size;
+  private final double [][] scaled, square, fourth, sixth, eighth, odd, even, numerator, denominator, work;
+
+  public PadeExponential(int size)
+  {
+    this.size = size;
+    this.scaled = new double[size][size];
+    this.square = new double[size][size];
+    this.fourth = new double[size][size];
+    this.sixth = new double[size][size];
+    this.eighth = new double[size][size];
+    this.odd = new double[size][size];
+    this.even = new double[size][size];
+    this.numerator = new double[size][size];
+    this.denominator = new double[size][size];
+    this.work = new double[size][size];
+  }
+
+  public int size()
+  {
+    return size;
+  }
+
+  /**
+   * result = exp(t matrix)
+   *
+   * @param result Can be the same array as matrix.
+   */
+  public void exp(double [][] matrix, double t, double [][] result)
+  {
+    if (matrix.length != size || result.length != size)
+      throw new RuntimeException("Expected a matrix of size " + size);
+    for (int i = 0; i < size; i++)
+      for (int j = 0; j < size; j++)
+      {
+        final double entry = t * matrix[i][j];
+        if (Double.isNaN(entry) || Double.isInfinite(entry))
+          throw new RuntimeException("Invalid matrix entry: " + entry);
+        scaled[i][j] = entry;
+      }
+    final double norm = MatrixKernels.norm1(scaled);
+    int degreeIndex = 0;
+    while (degreeIndex < DEGREES.length - 1 && norm > THETAS[degreeIndex])
+      degreeIndex++;
+    int nSquarings = 0;
+    if (norm > THETAS[DEGREES.length - 1])
+    {
+      nSquarings = (int) Math.ceil(Math.log(norm / THETAS[DEGREES.length - 1]) / Math.log(2.0));
+      final double factor = Math.scalb(1.0, -nSquarings);
+      for (int i = 0; i < size; i++)
+        for (int j = 0; j < size; j++)
+          scaled[i][j] *= factor;
+    }
+    final double [] b = COEFFICIENTS[degreeIndex];
+    MatrixKernels.multiply(scaled, scaled, square);
+    if (DEGREES[degreeIndex] == 13)
+    {
+      MatrixKernels.multiply(square, square, fourth);
+      MatrixKernels.multiply(fourth, square, sixth);
+      // odd part before the last product by A: A6 (b13 A6 + b11 A4 + b9 A2) + b7 A6 + b5 A4 + b3 A2 + b1 I
+      combine(b[13], b[11], b[9], work);
+      MatrixKernels.multiply(sixth, work, numerator);
+      addCombination(b[7], b[5], b[3], b[1], numerator);
+      MatrixKernels.multiply(scaled, numerator, odd);
+      // even part: A6 (b12 A6 + b10 A4 + b8 A2) + b6 A6 + b4 A4 + b2 A2 + b0 I
+      combine(b[12], b[10], b[8], work);
+      MatrixKernels.multiply(sixth, work, even);
+      addCombination(b[6], b[4], b[2], b[0], even);
+    }
+    else
+    {
+      // sum_k b_{2k+1} A^{2k} and sum_k b_{2k} A^{2k}, with A^{2k} in square, fourth, ...
+      final int nPowers = DEGREES[degreeIndex] / 2;
+      if (nPowers >= 2) MatrixKernels.multiply(square, square, fourth);
+      if (nPowers >= 3) MatrixKernels.multiply(fourth, square, sixth);
+      if (nPowers >= 4) MatrixKernels.multiply(sixth, square, eighth);
+      for (int i = 0; i < size; i++)
+        for (int j = 0; j < size; j++)
+        {
+          final double identity = (i == j ? 1.0 : 0.0);
+          double oddSum = b[1] * identity + b[3] * square[i][j], evenSum = b[0] * identity + b[2] * square[i][j];
+          if (nPowers >= 2) { oddSum += b[5] * fourth[i][j]; evenSum += b[4] * fourth[i][j]; }
+          if (nPowers >= 3) { oddSum += b[7] * sixth[i][j];  evenSum += b[6] * sixth[i][j]; }
+          if (nPowers >= 4) { oddSum += b[9] * eighth[i][j]; evenSum += b[8] * eighth[i][j]; }
+          work[i][j] = oddSum;
+          even[i][j] = evenSum;
+        }
+      MatrixKernels.multiply(scaled, work, odd);
+    }
+    // solve (V - U) X = V + U
+    for (int i = 0; i < size; i++)
+      for (int j = 0; j < size; j++)
+      {
+        numerator[i][j] = even[i][j] + odd[i][j];
+        denominator[i][j] = even[i][j] - odd[i][j];
+      }
+    MatrixKernels.solve(denominator, numerator);
+    double [][] current = numerator, other = work;
+    for (int i = 0; i < nSquarings; i++)
+    {
+      MatrixKernels.multiply(current, current, other);
+      double [][] swap = current; current = other; other = swap;
+    }
+    MatrixKernels.copy(current, result);
+  }
+
+  /**
+   * result = c6 A6 + c4 A4 + c2 A2
+   */
+  private void combine(double c6, double c4, double c2, double [][] result)
+  {
+    for (int i = 0; i < size; i++)
+      for (int j = 0; j < size; j++)
+        result[i][j] = c6 * sixth[i][j] + c4 * fourth[i][j] + c2 * square[i][j];
+  }
+
+  /**
+   * result += c6 A6 + c4 A4 + c2 A2 + c0 I
+   */
+  private void addCombination(double c6, double c4, double c2, double c0, double [][] result)
+  {
+    for (int i = 0; i < size; i++)
+    {
+      for (int j = 0; j < size; j++)
+        result[i][j] += c6 * sixth[i][j] + c4 * fourth[i][j] + c2 * square[i][j];
+      result[i][i] += c0;
+    }
+  }
+}
@@ -16,6 +16,11 @@ public class RateMatrices
     return SimpleRateMatrix.fromResource("/conifer/ctmc/kimura1980.txt");
   }
   
+  public static SimpleRateMatrix jukesCantor1969()
+  {
+    return SimpleRateMatrix.fromResource("/conifer/ctmc/jukesCantor1969.txt");
+  }
+  
   public static SimpleRateMatrix accordance()
   {
     return SimpleRateMatrix.fromResource("/conifer/ctmc/accordance.txt");
@@ -72,7 +77,8 @@ public class RateMatrices
     for (int i = 0; i < thetas.length; i++)
       thetas[i] = rand.nextDouble();
     double [][] matrix = RateMatrixUtils.gtrFromOverParam(stationary, thetas, size);
-    return new SimpleRateMatrix(matrix, null);
+    // the stationary distribution is known, no need to solve for it
+    return new ReversibleRateMatrix(matrix, stationary.clone(), null);
   }
   
   /**
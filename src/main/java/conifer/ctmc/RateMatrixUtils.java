@@ -37,6 +37,19 @@ public class RateMatrixUtils
     }
   }
   
+  /**
+   * @return A new matrix with each entry of the provided one multiplied by the given factor.
+   */
+  public static double [][] scale(final double [][] rate, final double factor)
+  {
+    final int size = rate.length;
+    double [][] result = new double[size][size];
+    for (int i = 0; i < size; i++)
+      for (int j = 0; j < size; j++)
+        result[i][j] = rate[i][j] * factor;
+    return result;
+  }
+  
   public static double [][] getJumpProcess(double [][] rate)
   {
     final int size = rate.length;
@@ -132,6 +145,21 @@ public class RateMatrixUtils
                 return p;
             }
         },
+        /**
+         * Pure Java, see PadeExponential. 
+         */
+        PADE {
+            @Override
+            public double[][] marginalTransitionMtx(double[][] rate, double t)
+            {
+                double [][] result = new double[rate.length][rate.length];
+                new PadeExponential(rate.length).exp(rate, t, result);
+                return result;
+            }
+        },
+        /**
+         * Pade approximation from jblas, requires its native library.
+         */
         BLAS {
             @Override
             public double[][] marginalTransitionMtx(double[][] rate, double t)
@@ -144,20 +172,26 @@ public class RateMatrixUtils
         public abstract double [][] marginalTransitionMtx(final double [][] rate, final double t);
     }
 
+    /**
+     * Used when no algorithm is specified, set to BLAS to use jblas instead of 
+     * the pure Java implementation.
+     */
+    public static MatrixExponentialAlgorithm defaultMatrixExponentialAlgorithm = MatrixExponentialAlgorithm.PADE;
+
     public static MatrixExponentialAlgorithm defaultsMatrixExponentialAlgorithm(boolean useDiag){
 
         MatrixExponentialAlgorithm result;
         if(useDiag)
             result = MatrixExponentialAlgorithm.DIAGONALIZATION;
         else
-            result = MatrixExponentialAlgorithm.BLAS;
+            result = defaultMatrixExponentialAlgorithm;
 
         return result;
     }
 
     public static double [][] marginalTransitionMtx(final double [][] rate, final double t){
 
-        return MatrixExponentialAlgorithm.BLAS.marginalTransitionMtx(rate, t);
+        return defaultMatrixExponentialAlgorithm.marginalTransitionMtx(rate, t);
     }
 
 
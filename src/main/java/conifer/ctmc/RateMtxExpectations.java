@@ -18,6 +18,10 @@ public class RateMtxExpectations
      * where
      * N(a->b) is the number of transitions from a to b in the interval [0,T] and
      * T(a) is the time spent at time in state a in the interval [0,T]
+     * 
+     * Warning: the result takes n^4 doubles (about 110MB for codons), when only
+     * sums weighted by end point counts are needed, use expectations(marginalCounts, rateMtx, T) 
+     * or expectation() instead.
      * @param T
      * @param rateMtx
      * @return sufficient statistics of the the holding time and transitions
@@ -28,10 +32,11 @@ public class RateMtxExpectations
         double [][] simpleExp = RateMatrixUtils.marginalTransitionMtx(rateMtx, T);
         double [][][][] result = new double[n][n][n][n];
         double [][] emptyMtx = new double[2*n][2*n];
+        Workspace workspace = new Workspace(n);
         for (int state1 = 0; state1 < n; state1++)
             for (int state2 = 0; state2 < n; state2++)
             {
-                double [][] current = _expectations(rateMtx, T, state1, state2, simpleExp, emptyMtx);
+                double [][] current = _expectations(rateMtx, T, state1, state2, simpleExp, emptyMtx, workspace);
                 for (int i = 0; i < n; i++)
                     for (int j = 0; j < n; j++)
                         result[i][j][state1][state2] = current[i][j];
@@ -39,25 +44,78 @@ public class RateMtxExpectations
         return result;
     }
 
+    /**
+     * result[state1][state2] = sum_{i,j} marginalCounts[i][j] A[i][j][state1][state2], 
+     * with A as in expectations(rateMtx, T), computed one statistic at a time (see expectation()).
+     */
     public static double[][] expectations(double [][] marginalCounts, double [][] rateMtx, double T)
     {
         final int dim = rateMtx.length;
         double [][] result = new double[dim][dim];
-        double [][] auxMtx = new double[2*dim][2*dim];
         double [][] simpleExp = RateMatrixUtils.marginalTransitionMtx(rateMtx, T);//MatrixFunctions.expm(new DoubleMatrix(rateMtx).mul(T)).toArray2();
         for (int state1 = 0; state1 < dim; state1++)
             for (int state2 = 0; state2 < dim; state2++)
+                result[state1][state2] = expectation(marginalCounts, rateMtx, T, state1, state2, simpleExp);
+        return result;
+    }
+
+    /**
+     * Streaming computation of one statistic, without materializing the tensor of 
+     * expectations(rateMtx, T):
+     * 
+     * sum_{i,j} marginalCounts[i][j] E[N(state1->state2)|X_0=i, X_T=j] if state1 != state2,
+     * sum_{i,j} marginalCounts[i][j] E[T(state1)|X_0=i, X_T=j] otherwise.
+     * 
+     * Only uses a workspace of O(n^2) memory, allocated once per thread and matrix size.
+     * @param matrixExponential exp(rateMtx T)
+     */
+    public static double expectation(double [][] marginalCounts, double [][] rateMtx, double T, int state1, int state2, double [][] matrixExponential)
+    {
+        final int n = rateMtx.length;
+        if (rateMtx[0].length != n || matrixExponential.length != n)
+            throw new RuntimeException();
+        Workspace workspace = workspace(n);
+        double [][] aux = workspace.aux;
+        for (int i = 0; i < n; i++)
+            for (int j = 0; j < n; j++)
             {
-                double [][] current = _expectations(rateMtx, T, state1, state2, simpleExp, auxMtx);
-                double sum = 0.0;
-                for (int i = 0; i < dim; i++)
-                    for (int j = 0; j < dim; j++)
-                        sum += current[i][j] * marginalCounts[i][j];
-                result[state1][state2] = sum;
+                aux[i][j] = aux[i+n][j+n] = rateMtx[i][j] * T;
+                aux[i][j+n] = aux[i+n][j] = 0.0;
             }
+        aux[state1][state2+n] = 1.0 * T;
+        double [][] exponentiatedAux = exponentiate(aux, workspace);
+        double sum = 0.0;
+        for (int i = 0; i < n; i++)
+        {
+            final double [] countRow = marginalCounts[i], auxRow = exponentiatedAux[i], expRow = matrixExponential[i];
+            for (int j = 0; j < n; j++)
+                if (countRow[j] != 0.0)
+                    sum += countRow[j] * auxRow[n+j] / expRow[j];
+        }
+        return sum * (state1 == state2 ? 1.0 : rateMtx[state1][state2]);
+    }
+
+    private static final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>();
+
+    private static Workspace workspace(int n)
+    {
+        Workspace result = workspaces.get();
+        if (result == null || result.n != n)
+        {
+            result = new Workspace(n);
+            workspaces.set(result);
+        }
         return result;
     }
 
+    private static double [][] exponentiate(double [][] aux, Workspace workspace)
+    {
+        if (RateMatrixUtils.defaultMatrixExponentialAlgorithm != RateMatrixUtils.MatrixExponentialAlgorithm.PADE)
+            return RateMatrixUtils.marginalTransitionMtx(aux, 1.0);
+        workspace.exponential.exp(aux, 1.0, workspace.exponentiatedAux);
+        return workspace.exponentiatedAux;
+    }
+
     public static double [][] _expectedWaitingTimes(double [][] rateMtx, double T, int state, double [][] matrixExponential, double[][] emptyMtx)
     {
         return _expectations(rateMtx, T, state, state, matrixExponential, emptyMtx);
@@ -75,6 +133,31 @@ public class RateMtxExpectations
      * @return entry (i,j) of the returned matrix gives the
      */
     public static double [][] _expectations(double [][] rateMtx, double T, int state1, int state2, double [][] matrixExponential, double[][] emptyMtx)
+    {
+        return _expectations(rateMtx, T, state1, state2, matrixExponential, emptyMtx, null);
+    }
+
+    /**
+     * Buffers reused across the calls to _expectations() for a given matrix size,
+     * so that, with the pure Java matrix exponential (the default, see 
+     * RateMatrixUtils.defaultMatrixExponentialAlgorithm), only the returned 
+     * matrix is allocated.
+     */
+    private static final class Workspace
+    {
+        private final int n;
+        private final PadeExponential exponential;
+        private final double [][] aux, exponentiatedAux;
+        private Workspace(int n)
+        {
+            this.n = n;
+            this.exponential = new PadeExponential(2*n);
+            this.aux = new double[2*n][2*n];
+            this.exponentiatedAux = new double[2*n][2*n];
+        }
+    }
+
+    private static double [][] _expectations(double [][] rateMtx, double T, int state1, int state2, double [][] matrixExponential, double[][] emptyMtx, Workspace workspace)
     {
         final int n = rateMtx.length;
         if (rateMtx[0].length != n || matrixExponential.length != n)
@@ -85,8 +168,9 @@ public class RateMtxExpectations
                 aux[i][j] = aux[i+n][j+n] = rateMtx[i][j] * T;
         aux[state1][state2+n] = 1.0 * T;
 
-        // if we use RateMatrixUtils.marginalTransitionMtx(double [][] rates, double T) we are using MatrixFunctions.expm().toArray2() in jblas
-        double [][] exponentiatedAux = RateMatrixUtils.marginalTransitionMtx(aux, 1.0);
+        double [][] exponentiatedAux = workspace == null ? 
+            RateMatrixUtils.marginalTransitionMtx(aux, 1.0) : 
+            exponentiate(aux, workspace);
 
         double [][] result = new double[n][n];
 
@@ -0,0 +1,173 @@
+package conifer.ctmc;
+
+import Jama.EigenvalueDecomposition;
+import Jama.Matrix;
+import bayonet.distributions.Multinomial;
+import bayonet.math.NumericalUtils;
+
+/**
+ * A continuous time Markov chain with a reversible rate matrix Q, i.e. such that
+ * pi_i Q(i, j) = pi_j Q(j, i) for a known stationary distribution pi.
+ *
+ * The matrix S = diag(pi)^(1/2) Q diag(pi)^(-1/2) is then symmetric, so it can be
+ * decomposed as S = U diag(lambda) U' with a symmetric eigensolver, which is faster
+ * than a general one, gives real eigenvalues and orthonormal eigenvectors (hence
+ * no ill conditioned matrix inversion), and
+ *
+ *   P(t)(i, j) = sqrt(pi_j / pi_i) sum_k U(i, k) exp(lambda_k t) U(j, k).
+ *
+ * Unlike EigenCTMC, the stationary distribution is provided, e.g. from the
+ * parameters of a reversible model (see ExpFamParameters.getStationaryDistribution()),
+ * instead of being computed by a second eigenvector problem.
+ */
+public class ReversibleCTMC implements CTMC
+{
+  /**
+   * Relative tolerance on the detailed balance equations checked by the constructor.
+   */
+  public static final double DETAILED_BALANCE_TOLERANCE = 1e-6;
+
+  private final double [][] rates;
+  private final double [] stationaryDistribution;
+  private final double [] sqrtStationary;
+
+  /**
+   * Eigenvectors of S, U(i, k) = eigenvectors[i][k].
+   */
+  private final double [][] eigenvectors;
+  private final double [] eigenvalues;
+
+  /**
+   * Note: if the rate matrix is changed in place,
+   * these changes will not be mirrored by this class.
+   *
+   * @param rates A rate matrix, reversible with respect to stationaryDistribution.
+   * @param stationaryDistribution Should have positive entries.
+   */
+  public ReversibleCTMC(double [][] rates, double [] stationaryDistribution)
+  {
+    RateMatrixUtils.checkValidRateMatrix(rates);
+    final int size = rates.length;
+    if (stationaryDistribution.length != size)
+      throw new RuntimeException("The stationary distribution should have one entry per state");
+    this.rates = rates;
+    this.stationaryDistribution = stationaryDistribution;
+    this.sqrtStationary = new double[size];
+    for (int i = 0; i < size; i++)
+    {
+      if (!(stationaryDistribution[i] > 0.0))
+        throw new RuntimeException("The stationary distribution should have positive entries: " + stationaryDistribution[i]);
+      sqrtStationary[i] = Math.sqrt(stationaryDistribution[i]);
+    }
+    if (!isReversible(rates, stationaryDistribution))
+      throw new RuntimeException("The rate matrix is not reversible with respect to the provided stationary distribution");
+    // symmetrize, averaging the two sides to remove rounding errors
+    double [][] symmetric = new double[size][size];
+    for (int i = 0; i < size; i++)
+    {
+      symmetric[i][i] = rates[i][i];
+      for (int j = i + 1; j < size; j++)
+      {
+        final double forward = stationaryDistribution[i] * rates[i][j], backward = stationaryDistribution[j] * rates[j][i];
+        symmetric[i][j] = symmetric[j][i] = (forward + backward) / 2.0 / sqrtStationary[i] / sqrtStationary[j];
+      }
+    }
+    // Jama uses a symmetric tridiagonal QL algorithm when the matrix is exactly symmetric
+    EigenvalueDecomposition decomposition = new Matrix(symmetric).eig();
+    this.eigenvalues = decomposition.getRealEigenvalues();
+    this.eigenvectors = decomposition.getV().getArray();
+  }
+
+  /**
+   * @return If pi_i Q(i, j) = pi_j Q(j, i) for all i, j, up to DETAILED_BALANCE_TOLERANCE 
+   *   (relative), and pi has positive entries.
+   */
+  public static boolean isReversible(double [][] rates, double [] stationaryDistribution)
+  {
+    final int size = rates.length;
+    if (stationaryDistribution == null || stationaryDistribution.length != size)
+      return false;
+    for (int i = 0; i < size; i++)
+    {
+      if (!(stationaryDistribution[i] > 0.0))
+        return false;
+      for (int j = i + 1; j < size; j++)
+      {
+        final double forward = stationaryDistribution[i] * rates[i][j], backward = stationaryDistribution[j] * rates[j][i];
+        if (Math.abs(forward - backward) > DETAILED_BALANCE_TOLERANCE * Math.max(forward, backward))
+          return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public double [][] getRateMatrix()
+  {
+    return rates;
+  }
+
+  @Override
+  public double [] stationaryDistribution()
+  {
+    return stationaryDistribution;
+  }
+
+  @Override
+  public double [][] marginalTransitionProbability(double branchLength)
+  {
+    if (!(branchLength >= 0.0) || Double.isInfinite(branchLength))
+      throw new RuntimeException("Invalid branch length: " + branchLength);
+    final int size = rates.length;
+    final double [] exponentials = new double[size], scaledRow = new double[size];
+    for (int k = 0; k < size; k++)
+      exponentials[k] = Math.exp(eigenvalues[k] * branchLength);
+    double [][] result = new double[size][size];
+    // U diag(exp) U' is symmetric, so only half of it is computed
+    for (int i = 0; i < size; i++)
+    {
+      final double [] rowI = eigenvectors[i];
+      for (int k = 0; k < size; k++)
+        scaledRow[k] = rowI[k] * exponentials[k];
+      for (int j = i; j < size; j++)
+      {
+        final double [] rowJ = eigenvectors[j];
+        double sum = 0.0;
+        for (int k = 0; k < size; k++)
+          sum += scaledRow[k] * rowJ[k];
+        result[i][j] = sum * sqrtStationary[j] / sqrtStationary[i];
+        result[j][i] = sum * sqrtStationary[i] / sqrtStationary[j];
+      }
+    }
+    RateMatrixUtils.removeSmallNegativeEntries(result);
+    NumericalUtils.checkIsTransitionMatrix(result);
+    for (int row = 0; row < size; row++)
+      Multinomial.normalize(result[row]);
+    return result;
+  }
+
+  /**
+   * @return The eigenvalues of the rate matrix (the same as the ones of its symmetrized version).
+   */
+  public double [] getEigenvalues()
+  {
+    return eigenvalues;
+  }
+
+  /**
+   * @return U, the orthonormal eigenvectors of the symmetrized matrix S (see class comment), 
+   *   U(i, k) = result[i][k]. Should not be modified.
+   */
+  double [][] getSymmetricEigenvectors()
+  {
+    return eigenvectors;
+  }
+
+  /**
+   * @return pi^(1/2), entrywise. Should not be modified.
+   */
+  double [] getSqrtStationary()
+  {
+    return sqrtStationary;
+  }
+}
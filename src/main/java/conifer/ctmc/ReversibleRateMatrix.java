@@ -0,0 +1,41 @@
+package conifer.ctmc;
+
+/**
+ * A dense reversible rate matrix with a known stationary distribution, so that
+ * its process is a ReversibleCTMC (symmetric eigendecomposition, no second
+ * eigenvector problem for the stationary distribution). Matrices with a closed
+ * form (see HKYCTMC) use it instead.
+ * 
+ * withAlgorithm() gives back a SimpleRateMatrix using the requested algorithm.
+ */
+public class ReversibleRateMatrix extends SimpleRateMatrix
+{
+  private final double [] stationaryDistribution;
+  private transient CTMC process = null;
+
+  public ReversibleRateMatrix(double [][] rateMatrix, double [] stationaryDistribution, RateMatrixToEmissionModel emissionModel)
+  {
+    super(rateMatrix, emissionModel);
+    this.stationaryDistribution = stationaryDistribution;
+  }
+
+  /**
+   * The process is created the first time it is needed, then shared.
+   */
+  @Override
+  public synchronized CTMC getProcess()
+  {
+    if (process == null)
+    {
+      process = HKYCTMC.fromRateMatrix(getRateMatrix());
+      if (process == null)
+        process = new ReversibleCTMC(getRateMatrix(), stationaryDistribution);
+    }
+    return process;
+  }
+
+  public double [] getStationaryDistribution()
+  {
+    return stationaryDistribution;
+  }
+}
@@ -0,0 +1,57 @@
+package conifer.ctmc;
+
+
+
+/**
+ * The process with rate matrix r * Q, where Q is the rate matrix of a 
+ * base process, for example one category of a discrete gamma mixture.
+ * 
+ * Since exp(r Q t) = exp(Q (r t)), the transition probabilities are obtained 
+ * from the base process (e.g. from its eigendecomposition, see EigenCTMC), 
+ * so several scaled processes can share the same decomposition. The 
+ * stationary distribution is the same as the base process'.
+ */
+public class ScaledCTMC implements CTMC
+{
+  private final CTMC base;
+  private final double rate;
+  private double [][] rateMatrix = null;
+  
+  public ScaledCTMC(CTMC base, double rate)
+  {
+    if (rate < 0.0)
+      throw new RuntimeException();
+    this.base = base;
+    this.rate = rate;
+  }
+
+  @Override
+  public double[][] marginalTransitionProbability(double branchLength)
+  {
+    return base.marginalTransitionProbability(rate * branchLength);
+  }
+
+  @Override
+  public double[] stationaryDistribution()
+  {
+    return base.stationaryDistribution();
+  }
+
+  @Override
+  public double[][] getRateMatrix()
+  {
+    if (rateMatrix == null)
+      rateMatrix = RateMatrixUtils.scale(base.getRateMatrix(), rate);
+    return rateMatrix;
+  }
+  
+  public CTMC getBase()
+  {
+    return base;
+  }
+  
+  public double getRate()
+  {
+    return rate;
+  }
+}
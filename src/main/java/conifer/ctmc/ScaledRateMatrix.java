@@ -0,0 +1,45 @@
+package conifer.ctmc;
+
+
+
+/**
+ * Parameters of a ScaledCTMC: a rate matrix r * Q where the process with 
+ * rate matrix Q has already been created (and decomposed), and can be
+ * shared by several instances.
+ */
+public class ScaledRateMatrix implements CTMCParameters
+{
+  private final CTMC baseProcess;
+  private final double rate;
+  private final RateMatrixToEmissionModel emissionModel;
+  
+  public ScaledRateMatrix(CTMC baseProcess, double rate, RateMatrixToEmissionModel emissionModel)
+  {
+    this.baseProcess = baseProcess;
+    this.rate = rate;
+    this.emissionModel = emissionModel;
+  }
+
+  @Override
+  public CTMC getProcess()
+  {
+    return new ScaledCTMC(baseProcess, rate);
+  }
+
+  @Override
+  public RateMatrixToEmissionModel getEmissionModel()
+  {
+    return emissionModel;
+  }
+
+  @Override
+  public double[][] getRateMatrix()
+  {
+    return RateMatrixUtils.scale(baseProcess.getRateMatrix(), rate);
+  }
+  
+  public double getRate()
+  {
+    return rate;
+  }
+}
@@ -14,11 +14,43 @@ public class SimpleRateMatrix implements CTMCParameters
   private final double [][] rateMatrix;
   private final RateMatrixToEmissionModel emissionModel;
   
+  /**
+   * Null (e.g. when loaded from JSON) is interpreted as CTMCAlgorithm.EIGEN.
+   */
+  private final CTMCAlgorithm algorithm;
+  
+  /**
+   * Only used by CTMCAlgorithm.UNIFORMIZATION, zero meaning UniformizationCTMC.DEFAULT_TOLERANCE.
+   */
+  private final double tolerance;
+  
   public SimpleRateMatrix(double[][] rateMatrix,
       RateMatrixToEmissionModel emissionModel)
+  {
+    this(rateMatrix, emissionModel, CTMCAlgorithm.EIGEN, 0.0);
+  }
+  
+  public SimpleRateMatrix(double[][] rateMatrix,
+      RateMatrixToEmissionModel emissionModel, CTMCAlgorithm algorithm, double tolerance)
   {
     this.rateMatrix = rateMatrix;
     this.emissionModel = emissionModel;
+    this.algorithm = algorithm;
+    this.tolerance = tolerance;
+  }
+  
+  /**
+   * @return A copy of this rate matrix where the transition probabilities are computed
+   *   with the given algorithm.
+   */
+  public SimpleRateMatrix withAlgorithm(CTMCAlgorithm algorithm, double tolerance)
+  {
+    return new SimpleRateMatrix(rateMatrix, emissionModel, algorithm, tolerance);
+  }
+  
+  public CTMCAlgorithm getAlgorithm()
+  {
+    return algorithm == null ? CTMCAlgorithm.EIGEN : algorithm;
   }
   
   @Override
@@ -27,10 +59,14 @@ public class SimpleRateMatrix implements CTMCParameters
     return rateMatrix;
   }
 
+  /**
+   * Four state matrices with the structure of HKYCTMC (e.g. Jukes-Cantor, Kimura)
+   * use its closed form transition probabilities with CTMCAlgorithm.CLOSED_FORM.
+   */
   @Override
   public CTMC getProcess()
   {
-    return new EigenCTMC(rateMatrix);
+    return getAlgorithm().create(rateMatrix, tolerance == 0.0 ? UniformizationCTMC.DEFAULT_TOLERANCE : tolerance);
   }
 
   @Override
@@ -61,7 +97,7 @@ public class SimpleRateMatrix implements CTMCParameters
   public String toString()
   {
     return "SimpleRateMatrix [rateMatrix=" + Arrays.deepToString(rateMatrix)
-        + ", emissionModel=" + emissionModel + "]";
+        + ", emissionModel=" + emissionModel + ", algorithm=" + getAlgorithm() + "]";
   }
 
   public static void main(String [] args)
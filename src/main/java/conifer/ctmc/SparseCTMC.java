@@ -0,0 +1,158 @@
+package conifer.ctmc;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import bayonet.distributions.Multinomial;
+
+/**
+ * A continuous time Markov chain with a sparse rate matrix, where transition
+ * probabilities are computed by uniformization: with mu the largest exit rate
+ * and R = I + Q / mu,
+ *
+ *   P(t) = sum_k Poisson(k; mu t) R^k,
+ *
+ * truncated once the remaining Poisson mass is below a tolerance. No
+ * decomposition of the rate matrix is computed, so creating an instance is
+ * essentially free. The sparse matrix is only used to build the powers of R,
+ * each row of R^(k+1) being obtained from the same row of R^k with one sparse
+ * product, i.e. O(n nnz) per power. The powers themselves are dense n x n
+ * matrices, computed once and shared by all branch lengths. Each transition
+ * matrix is then formed explicitly as a dense weighted sum of K powers, i.e.
+ * O(K n^2). For large mu t, P(t / 2^j) is computed first, then squared j times
+ * with dense products, O(j n^3) (see UniformizationCTMC, which does the same
+ * for dense rate matrices).
+ *
+ * The pruning applies the resulting dense P(t) to the partials of each site.
+ * Computing P(t) v with sparse products instead would cost O(K nnz) per site
+ * and branch, more than the O(n^2) product with P(t) unless K nnz is below n^2.
+ *
+ * The stationary distribution is provided rather than computed, e.g. from the
+ * parameters of a reversible model (see ExpFamParameters.getStationaryDistribution()).
+ */
+public class SparseCTMC implements CTMC
+{
+  /**
+   * Rate matrices with at most this fraction of non zero entries are considered sparse
+   * enough for this implementation to beat a dense eigendecomposition.
+   */
+  public static final double MAX_DENSITY = 0.25;
+
+  public static final double DEFAULT_TOLERANCE = 1e-12;
+
+  private final SparseRateMatrix rates;
+  private final double [] stationaryDistribution;
+  private final double tolerance;
+  private double [][] denseRates = null;
+
+  /**
+   * Powers of the uniformized matrix R = I + Q / mu.
+   */
+  private final List<double[][]> powers = Lists.newArrayList();
+
+  public SparseCTMC(SparseRateMatrix rates, double [] stationaryDistribution)
+  {
+    this(rates, stationaryDistribution, DEFAULT_TOLERANCE);
+  }
+
+  /**
+   * @param tolerance Bound on the Poisson mass ignored when truncating the series.
+   */
+  public SparseCTMC(SparseRateMatrix rates, double [] stationaryDistribution, double tolerance)
+  {
+    if (stationaryDistribution.length != rates.nStates())
+      throw new RuntimeException("The stationary distribution should have one entry per state");
+    if (!(tolerance > 0.0 && tolerance < 1.0))
+      throw new RuntimeException("The tolerance should be in (0, 1): " + tolerance);
+    this.rates = rates;
+    this.stationaryDistribution = stationaryDistribution;
+    this.tolerance = tolerance;
+  }
+
+  public SparseRateMatrix getSparseRateMatrix()
+  {
+    return rates;
+  }
+
+  @Override
+  public synchronized double [][] getRateMatrix()
+  {
+    if (denseRates == null)
+      denseRates = rates.toDense();
+    return denseRates;
+  }
+
+  @Override
+  public double [] stationaryDistribution()
+  {
+    return stationaryDistribution;
+  }
+
+  @Override
+  public double [][] marginalTransitionProbability(double branchLength)
+  {
+    checkBranchLength(branchLength);
+    final int size = rates.nStates();
+    double mean = rates.maxExitRate() * branchLength;
+    int nSquarings = 0;
+    while (mean > UniformizationCTMC.MAX_POISSON_MEAN)
+    {
+      mean /= 2.0;
+      nSquarings++;
+    }
+    // the truncation errors add up when squaring
+    final double [] weights = UniformizationCTMC.poissonWeights(mean, Math.scalb(tolerance, -nSquarings));
+    final double [][][] powers = powers(weights.length);
+    double [][] result = new double[size][size];
+    for (int k = 0; k < weights.length; k++)
+    {
+      final double weight = weights[k];
+      final double [][] power = powers[k];
+      for (int row = 0; row < size; row++)
+        for (int column = 0; column < size; column++)
+          result[row][column] += weight * power[row][column];
+    }
+    for (int i = 0; i < nSquarings; i++)
+      result = UniformizationCTMC.square(result);
+    for (int row = 0; row < size; row++)
+      Multinomial.normalize(result[row]);
+    return result;
+  }
+
+  /**
+   * @return R^0, R^1, ..., R^(n-1), computed the first time they are needed and
+   *   shared by all the branch lengths.
+   */
+  private synchronized double [][][] powers(int n)
+  {
+    final int size = rates.nStates();
+    final double rate = rates.maxExitRate();
+    if (powers.isEmpty())
+    {
+      double [][] identity = new double[size][size];
+      for (int i = 0; i < size; i++)
+        identity[i][i] = 1.0;
+      powers.add(identity);
+    }
+    while (powers.size() < n)
+    {
+      final double [][] previous = powers.get(powers.size() - 1);
+      double [][] next = new double[size][size];
+      for (int row = 0; row < size; row++)
+      {
+        rates.leftMultiply(previous[row], next[row]);
+        for (int column = 0; column < size; column++)
+          next[row][column] = previous[row][column] + next[row][column] / rate;
+      }
+      powers.add(next);
+    }
+    return powers.subList(0, n).toArray(new double[n][][]);
+  }
+
+  private static void checkBranchLength(double branchLength)
+  {
+    if (!(branchLength >= 0.0) || Double.isInfinite(branchLength))
+      throw new RuntimeException("Invalid branch length: " + branchLength);
+  }
+}
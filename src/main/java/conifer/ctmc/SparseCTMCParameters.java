@@ -0,0 +1,35 @@
+package conifer.ctmc;
+
+/**
+ * Parameters backed by a sparse rate matrix and a known stationary distribution,
+ * see SparseCTMC.
+ */
+public class SparseCTMCParameters implements CTMCParameters
+{
+  private final SparseCTMC process;
+  private final RateMatrixToEmissionModel emissionModel;
+
+  public SparseCTMCParameters(SparseRateMatrix rateMatrix, double [] stationaryDistribution, RateMatrixToEmissionModel emissionModel)
+  {
+    this.process = new SparseCTMC(rateMatrix, stationaryDistribution);
+    this.emissionModel = emissionModel;
+  }
+
+  @Override
+  public CTMC getProcess()
+  {
+    return process;
+  }
+
+  @Override
+  public RateMatrixToEmissionModel getEmissionModel()
+  {
+    return emissionModel;
+  }
+
+  @Override
+  public double[][] getRateMatrix()
+  {
+    return process.getRateMatrix();
+  }
+}
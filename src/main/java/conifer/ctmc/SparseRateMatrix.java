@@ -0,0 +1,183 @@
+package conifer.ctmc;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A rate matrix stored in compressed sparse row (CSR) format: the off diagonal
+ * entries of row i are values[rowStarts[i]], ..., values[rowStarts[i+1] - 1], in
+ * the columns given by the same entries of columns (in increasing order). The
+ * diagonal is stored separately and is always equal to the negative of the
+ * sum of the off diagonal entries of the row.
+ *
+ * Used for state spaces where most transitions are impossible, e.g. codon
+ * models where only single nucleotide changes are allowed (see SparseCTMC).
+ */
+public class SparseRateMatrix
+{
+  private final int [] rowStarts;
+  private final int [] columns;
+  private final double [] values;
+  private final double [] diagonal;
+
+  /**
+   * @param supports Row index -> columns of the non zero off diagonal entries (in any order).
+   * @param rates Row index -> rate of the transition to the corresponding entry of supports.
+   */
+  public SparseRateMatrix(int [][] supports, double [][] rates)
+  {
+    final int size = supports.length;
+    if (rates.length != size)
+      throw new RuntimeException("The supports and the rates should have the same number of rows");
+    this.rowStarts = new int[size + 1];
+    for (int row = 0; row < size; row++)
+      rowStarts[row + 1] = rowStarts[row] + supports[row].length;
+    this.columns = new int[rowStarts[size]];
+    this.values = new double[rowStarts[size]];
+    this.diagonal = new double[size];
+    for (int row = 0; row < size; row++)
+    {
+      final int [] support = supports[row];
+      if (rates[row].length != support.length)
+        throw new RuntimeException("The supports and the rates should have the same number of entries in each row");
+      final int [] order = sortedOrder(support);
+      double sum = 0.0;
+      for (int i = 0; i < support.length; i++)
+      {
+        final int column = support[order[i]];
+        final double rate = rates[row][order[i]];
+        if (column == row || column < 0 || column >= size || (i > 0 && column == columns[rowStarts[row] + i - 1]))
+          throw new RuntimeException("Invalid support for row " + row + ": " + Arrays.toString(support));
+        if (!(rate >= 0.0) || Double.isInfinite(rate))
+          throw new RuntimeException("Off diagonal rates should be non-negative: " + rate);
+        columns[rowStarts[row] + i] = column;
+        values[rowStarts[row] + i] = rate;
+        sum += rate;
+      }
+      diagonal[row] = -sum;
+    }
+  }
+
+  /**
+   * @param rates A rate matrix, only the non-zero off diagonal entries are kept.
+   */
+  public static SparseRateMatrix fromDense(double [][] rates)
+  {
+    RateMatrixUtils.checkValidRateMatrix(rates);
+    final int size = rates.length;
+    int [][] supports = new int[size][];
+    double [][] values = new double[size][];
+    for (int row = 0; row < size; row++)
+    {
+      int count = 0;
+      for (int column = 0; column < size; column++)
+        if (column != row && rates[row][column] != 0.0)
+          count++;
+      supports[row] = new int[count];
+      values[row] = new double[count];
+      count = 0;
+      for (int column = 0; column < size; column++)
+        if (column != row && rates[row][column] != 0.0)
+        {
+          supports[row][count] = column;
+          values[row][count++] = rates[row][column];
+        }
+    }
+    return new SparseRateMatrix(supports, values);
+  }
+
+  public int nStates()
+  {
+    return diagonal.length;
+  }
+
+  /**
+   * @return Number of non zero off diagonal entries.
+   */
+  public int nOffDiagonalEntries()
+  {
+    return values.length;
+  }
+
+  /**
+   * @return Fraction of the entries (including the diagonal) that are stored.
+   */
+  public double density()
+  {
+    final double size = nStates();
+    return (values.length + size) / (size * size);
+  }
+
+  /**
+   * @return The largest exit rate, max_i -Q(i, i).
+   */
+  public double maxExitRate()
+  {
+    double result = 0.0;
+    for (double entry : diagonal)
+      result = Math.max(result, -entry);
+    return result;
+  }
+
+  /**
+   * result = Q vector
+   */
+  public void multiply(double [] vector, double [] result)
+  {
+    for (int row = 0; row < diagonal.length; row++)
+    {
+      double sum = diagonal[row] * vector[row];
+      for (int i = rowStarts[row]; i < rowStarts[row + 1]; i++)
+        sum += values[i] * vector[columns[i]];
+      result[row] = sum;
+    }
+  }
+
+  /**
+   * result = vector' Q
+   */
+  public void leftMultiply(double [] vector, double [] result)
+  {
+    for (int column = 0; column < diagonal.length; column++)
+      result[column] = diagonal[column] * vector[column];
+    for (int row = 0; row < diagonal.length; row++)
+    {
+      final double factor = vector[row];
+      if (factor == 0.0)
+        continue;
+      for (int i = rowStarts[row]; i < rowStarts[row + 1]; i++)
+        result[columns[i]] += values[i] * factor;
+    }
+  }
+
+  public double [][] toDense()
+  {
+    final int size = nStates();
+    double [][] result = new double[size][size];
+    for (int row = 0; row < size; row++)
+    {
+      result[row][row] = diagonal[row];
+      for (int i = rowStarts[row]; i < rowStarts[row + 1]; i++)
+        result[row][columns[i]] = values[i];
+    }
+    return result;
+  }
+
+  private static int [] sortedOrder(final int [] keys)
+  {
+    Integer [] order = new Integer[keys.length];
+    for (int i = 0; i < keys.length; i++)
+      order[i] = i;
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer first, Integer second)
+      {
+        return Integer.compare(keys[first], keys[second]);
+      }
+    });
+    int [] result = new int[keys.length];
+    for (int i = 0; i < keys.length; i++)
+      result[i] = order[i];
+    return result;
+  }
+}
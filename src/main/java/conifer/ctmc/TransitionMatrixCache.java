@@ -0,0 +1,183 @@
+package conifer.ctmc;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+
+/**
+ * A bounded cache of marginal transition probability matrices P(t),
+ * keyed by (rate matrix version, category, branch length), with least
+ * recently used eviction.
+ *
+ * The version of a category is obtained by calling version() with the
+ * current rate matrix of that category: it changes (and the stale entries
+ * of that category are discarded) only when the content of the rate matrix
+ * differs from the one seen previously.
+ *
+ * The cached matrices are shared, they should not be modified by callers.
+ */
+public class TransitionMatrixCache
+{
+  private final int capacity;
+
+  private final LinkedHashMap<Key, double[][]> matrices;
+
+  /**
+   * category -> last rate matrix seen and its version
+   */
+  private final List<double[][]> rateMatrices = Lists.newArrayList();
+  private final List<Long> versions = Lists.newArrayList();
+  private long nextVersion = 0;
+
+  private long nHits = 0, nMisses = 0;
+
+  /**
+   * @param capacity Maximum number of matrices kept. For the cache to be effective,
+   *   this should be at least the number of categories times the number of edges.
+   */
+  @SuppressWarnings("serial")
+  public TransitionMatrixCache(final int capacity)
+  {
+    if (capacity < 0)
+      throw new RuntimeException();
+    this.capacity = capacity;
+    this.matrices = new LinkedHashMap<Key, double[][]>(16, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, double[][]> eldest)
+      {
+        return size() > TransitionMatrixCache.this.capacity;
+      }
+    };
+  }
+
+  /**
+   * @param category
+   * @param rateMatrix The current rate matrix of that category.
+   * @return A version number, which changes only when the content of the rate matrix does.
+   */
+  public synchronized long version(int category, double [][] rateMatrix)
+  {
+    while (rateMatrices.size() <= category)
+    {
+      rateMatrices.add(null);
+      versions.add(null);
+    }
+    if (rateMatrices.get(category) != null && Arrays.deepEquals(rateMatrices.get(category), rateMatrix))
+      return versions.get(category);
+    // invalidate the entries of that category
+    if (versions.get(category) != null)
+    {
+      final long stale = versions.get(category);
+      for (Iterator<Key> iterator = matrices.keySet().iterator(); iterator.hasNext(); )
+        if (iterator.next().version == stale)
+          iterator.remove();
+    }
+    double [][] copy = new double[rateMatrix.length][];
+    for (int i = 0; i < rateMatrix.length; i++)
+      copy[i] = rateMatrix[i].clone();
+    rateMatrices.set(category, copy);
+    versions.set(category, nextVersion);
+    return nextVersion++;
+  }
+
+  /**
+   * @param version See version()
+   * @param category
+   * @param ctmc Used to compute the matrix in case of a cache miss.
+   * @param branchLength
+   * @return The marginal transition probability matrix (should not be modified).
+   */
+  public double [][] marginalTransitionProbability(long version, int category, CTMC ctmc, double branchLength)
+  {
+    final Key key = new Key(version, category, branchLength);
+    synchronized (this)
+    {
+      double [][] result = matrices.get(key);
+      if (result != null)
+      {
+        nHits++;
+        return result;
+      }
+      nMisses++;
+    }
+    // computed outside of the lock
+    double [][] result = ctmc.marginalTransitionProbability(branchLength);
+    synchronized (this)
+    {
+      matrices.put(key, result);
+    }
+    return result;
+  }
+
+  public synchronized long nHits()
+  {
+    return nHits;
+  }
+
+  public synchronized long nMisses()
+  {
+    return nMisses;
+  }
+
+  public synchronized int size()
+  {
+    return matrices.size();
+  }
+
+  public synchronized void clear()
+  {
+    matrices.clear();
+    rateMatrices.clear();
+    versions.clear();
+  }
+
+  @Override
+  public synchronized String toString()
+  {
+    return "TransitionMatrixCache[size=" + matrices.size() + ",capacity=" + capacity + ",hits=" + nHits + ",misses=" + nMisses + "]";
+  }
+
+  private static final class Key
+  {
+    private final long version;
+    private final int category;
+    private final double branchLength;
+
+    private Key(long version, int category, double branchLength)
+    {
+      this.version = version;
+      this.category = category;
+      this.branchLength = branchLength;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      final int prime = 31;
+      int result = 1;
+      result = prime * result + (int) (version ^ (version >>> 32));
+      result = prime * result + category;
+      long temp = Double.doubleToLongBits(branchLength);
+      result = prime * result + (int) (temp ^ (temp >>> 32));
+      return result;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (this == obj)
+        return true;
+      if (!(obj instanceof Key))
+        return false;
+      Key other = (Key) obj;
+      return version == other.version &&
+          category == other.category &&
+          Double.doubleToLongBits(branchLength) == Double.doubleToLongBits(other.branchLength);
+    }
+  }
+}
@@ -0,0 +1,227 @@
+package conifer.ctmc;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import Jama.Matrix;
+import bayonet.distributions.Multinomial;
+
+/**
+ * A continuous time Markov chain where transition probabilities are computed
+ * by uniformization: with mu the largest departure rate and B = I + Q / mu,
+ *
+ *   P(t) = sum_k Poisson(k; mu t) B^k.
+ *
+ * The series is truncated at the smallest K past mu t such that the ignored
+ * Poisson mass is below a tolerance. Since B is a transition matrix, each entry
+ * of the truncated sum is then within the tolerance of the exact value. For
+ * mu t larger than a few units, P(t / 2^j) is computed first (with tolerance
+ * divided by 2^j, to account for the error growth), then squared j times.
+ *
+ * Unlike EigenCTMC, no eigendecomposition is needed, so this is robust to nearly
+ * defective rate matrices. The powers of B are computed once, shared by all
+ * branch lengths, and also used by EndPointSampler when sampling paths from
+ * this process. The stationary distribution is obtained by solving a linear
+ * system.
+ */
+public class UniformizationCTMC implements CTMC
+{
+  public static final double DEFAULT_TOLERANCE = 1e-12;
+
+  /**
+   * Largest value of mu t handled without squaring. The number of terms needed is
+   * then at most a few dozens.
+   */
+  static final double MAX_POISSON_MEAN = 8.0;
+
+  private final double [][] rates;
+  private final double tolerance;
+  private final double maxDepartureRate;
+  private final double [][] uniformized;
+  private final double [] stationaryDistribution;
+
+  /**
+   * Powers of the uniformized matrix B = I + Q / mu.
+   */
+  private final List<double[][]> powers = Lists.newArrayList();
+
+  public UniformizationCTMC(double [][] rates)
+  {
+    this(rates, DEFAULT_TOLERANCE);
+  }
+
+  /**
+   * @param tolerance Bound on the Poisson mass ignored when truncating the series,
+   *   and hence on the error of each entry of the transition matrices.
+   */
+  public UniformizationCTMC(double [][] rates, double tolerance)
+  {
+    RateMatrixUtils.checkValidRateMatrix(rates);
+    if (!(tolerance > 0.0 && tolerance < 1.0))
+      throw new RuntimeException("The tolerance should be in (0, 1): " + tolerance);
+    this.rates = rates;
+    this.tolerance = tolerance;
+    double max = 0.0;
+    for (int i = 0; i < rates.length; i++)
+      max = Math.max(max, -rates[i][i]);
+    this.maxDepartureRate = max;
+    this.uniformized = new double[rates.length][rates.length];
+    for (int i = 0; i < rates.length; i++)
+      for (int j = 0; j < rates.length; j++)
+        uniformized[i][j] = (i == j ? 1.0 : 0.0) + (max == 0.0 ? 0.0 : rates[i][j] / max);
+    this.stationaryDistribution = computeStationary(rates);
+  }
+
+  @Override
+  public double [][] getRateMatrix()
+  {
+    return rates;
+  }
+
+  @Override
+  public double [] stationaryDistribution()
+  {
+    return stationaryDistribution;
+  }
+
+  public double getMaxDepartureRate()
+  {
+    return maxDepartureRate;
+  }
+
+  public double getTolerance()
+  {
+    return tolerance;
+  }
+
+  @Override
+  public double [][] marginalTransitionProbability(double branchLength)
+  {
+    if (!(branchLength >= 0.0) || Double.isInfinite(branchLength))
+      throw new RuntimeException("Invalid branch length: " + branchLength);
+    final int size = rates.length;
+    double mean = maxDepartureRate * branchLength;
+    int nSquarings = 0;
+    while (mean > MAX_POISSON_MEAN)
+    {
+      mean /= 2.0;
+      nSquarings++;
+    }
+    final double [] weights = poissonWeights(mean, Math.scalb(tolerance, -nSquarings));
+    double [][] result = new double[size][size];
+    for (int k = 0; k < weights.length; k++)
+    {
+      final double weight = weights[k];
+      final double [][] power = getUniformizedTransitionPower(k);
+      for (int row = 0; row < size; row++)
+        for (int column = 0; column < size; column++)
+          result[row][column] += weight * power[row][column];
+    }
+    for (int i = 0; i < nSquarings; i++)
+      result = square(result);
+    for (int row = 0; row < size; row++)
+      Multinomial.normalize(result[row]);
+    return result;
+  }
+
+  /**
+   * @return B^power, computed the first time it is needed. Should not be modified.
+   */
+  public synchronized double [][] getUniformizedTransitionPower(int power)
+  {
+    final int size = rates.length;
+    if (powers.isEmpty())
+    {
+      double [][] identity = new double[size][size];
+      for (int i = 0; i < size; i++)
+        identity[i][i] = 1.0;
+      powers.add(identity);
+    }
+    while (powers.size() <= power)
+    {
+      final double [][] previous = powers.get(powers.size() - 1);
+      double [][] next = new double[size][size];
+      for (int i = 0; i < size; i++)
+        for (int k = 0; k < size; k++)
+        {
+          final double factor = previous[i][k];
+          if (factor == 0.0)
+            continue;
+          for (int j = 0; j < size; j++)
+            next[i][j] += factor * uniformized[k][j];
+        }
+      powers.add(next);
+    }
+    return powers.get(power);
+  }
+
+  /**
+   * @return B^power if it was already computed, null otherwise (in which case nothing 
+   *   is computed). Should not be modified.
+   */
+  public synchronized double [][] getCachedUniformizedTransitionPower(int power)
+  {
+    return power < powers.size() ? powers.get(power) : null;
+  }
+
+  /**
+   * @return Poisson(k; mean) for k = 0, 1, ..., K, where K is the smallest index
+   *   past the mean such that the remaining mass is below the tolerance.
+   */
+  static double [] poissonWeights(double mean, double tolerance)
+  {
+    double [] result = new double[16];
+    double weight = Math.exp(-mean), sum = weight;
+    result[0] = weight;
+    int k = 0;
+    while (k < mean || (1.0 - sum > tolerance && weight > 0.0))
+    {
+      k++;
+      weight *= mean / k;
+      sum += weight;
+      if (k == result.length)
+        result = Arrays.copyOf(result, 2 * k);
+      result[k] = weight;
+    }
+    return Arrays.copyOf(result, k + 1);
+  }
+
+  static double [][] square(double [][] matrix)
+  {
+    final int size = matrix.length;
+    double [][] result = new double[size][size];
+    for (int i = 0; i < size; i++)
+      for (int k = 0; k < size; k++)
+      {
+        final double factor = matrix[i][k];
+        if (factor == 0.0)
+          continue;
+        final double [] row = matrix[k];
+        for (int j = 0; j < size; j++)
+          result[i][j] += factor * row[j];
+      }
+    return result;
+  }
+
+  /**
+   * Solve pi Q = 0, with the constraint sum_i pi_i = 1 replacing the last equation.
+   */
+  private static double [] computeStationary(double [][] rates)
+  {
+    final int size = rates.length;
+    Matrix system = new Matrix(size, size);
+    for (int i = 0; i < size; i++)
+      for (int j = 0; j < size; j++)
+        system.set(i, j, i == size - 1 ? 1.0 : rates[j][i]);
+    Matrix constraints = new Matrix(size, 1);
+    constraints.set(size - 1, 0, 1.0);
+    double [] result = system.solve(constraints).getColumnPackedCopy();
+    for (int i = 0; i < size; i++)
+      if (result[i] < 0.0)
+        result[i] = 0.0;
+    Multinomial.normalize(result);
+    return result;
+  }
+}
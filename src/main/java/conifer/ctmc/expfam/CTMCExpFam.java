@@ -18,9 +18,14 @@ import bayonet.opt.OptimizationOptions;
 import briefj.Indexer;
 import briefj.collections.Counter;
 import conifer.UnrootedTree;
+import conifer.ctmc.ExpectedStatisticsCache;
 import conifer.ctmc.RateMatrixUtils;
+import conifer.ctmc.SparseRateMatrix;
 import conifer.io.TreeObservations;
+import conifer.models.LikelihoodOptions;
 import conifer.models.MultiCategorySubstitutionModel;
+import conifer.models.ParallelTasks;
+import conifer.models.ParallelTasks.Task;
 import utils.MultiVariateObj;
 import utils.Objective;
 
@@ -38,6 +43,25 @@ public class CTMCExpFam<S>
     public final Indexer<Object> featuresIndexer = new Indexer<Object>();
     public final  boolean  isNormalized;
     public int nFeatures() { return nFeatures; }
+
+    /**
+     * S index -> position of its first transition when the supports are flattened, 
+     * i.e. transition (s, supports[s][i]) has position supportOffsets[s] + i
+     */
+    private final int [] supportOffsets;
+
+    /**
+     * The features above, in compressed sparse row format (rows indexed by S index, 
+     * and by flattened transition position respectively), built when first needed.
+     */
+    private FeatureMatrix univariateMatrix = null, bivariateMatrix = null;
+
+    /**
+     * Number of start states processed by each task of the objectives. The
+     * objectives only use several threads (LikelihoodOptions.nThreads) when the 
+     * number of states is larger.
+     */
+    public static final int OBJECTIVE_BLOCK_SIZE = 16;
     
 
     public CTMCExpFam(
@@ -67,6 +91,28 @@ public class CTMCExpFam<S>
             Arrays.sort(this.supports[state]);
             this.bivariateFeatures[state] = new SparseVector[nbhr.size()];
         }
+        this.supportOffsets = new int[nStates + 1];
+        for (int state = 0; state < nStates; state++)
+            supportOffsets[state + 1] = supportOffsets[state] + supports[state].length;
+    }
+
+    private synchronized FeatureMatrix univariateMatrix()
+    {
+        if (univariateMatrix == null)
+            univariateMatrix = new FeatureMatrix(Arrays.asList(univariateFeatures));
+        return univariateMatrix;
+    }
+
+    private synchronized FeatureMatrix bivariateMatrix()
+    {
+        if (bivariateMatrix == null)
+        {
+            List<SparseVector> rows = new ArrayList<SparseVector>();
+            for (int state = 0; state < nStates; state++)
+                rows.addAll(Arrays.asList(bivariateFeatures[state]));
+            bivariateMatrix = new FeatureMatrix(rows);
+        }
+        return bivariateMatrix;
     }
 
     
@@ -130,9 +176,17 @@ public class CTMCExpFam<S>
      * @return
      */
     public ExpectedCompleteReversibleObjective getExpectedCompleteReversibleObjective(double kappa, ExpectedStatistics<S> stats)
+    {
+        return getExpectedCompleteReversibleObjective(kappa, stats, new LikelihoodOptions());
+    }
+
+    /**
+     * @param options Only its number of threads is used.
+     */
+    public ExpectedCompleteReversibleObjective getExpectedCompleteReversibleObjective(double kappa, ExpectedStatistics<S> stats, LikelihoodOptions options)
     {
         checkFeaturesInitialized();
-        return new ExpectedCompleteReversibleObjective(kappa, stats);
+        return new ExpectedCompleteReversibleObjective(kappa, stats, options.nThreads);
     }
 
     public ExpectedReversibleObjectiveUpdateExpectedStat
@@ -170,9 +224,12 @@ public class CTMCExpFam<S>
         private double[] lastDerivative;
         double[] lastX = null;
 
-        private ExpectedCompleteReversibleObjective(double kappa, ExpectedStatistics<S> stats)
+        private final ObjectiveTerms terms;
+
+        private ExpectedCompleteReversibleObjective(double kappa, ExpectedStatistics<S> stats, int nThreads)
         {
             this.kappa = kappa;
+            this.terms = new ObjectiveTerms(nThreads);
             this.holdTimes = stats.holdTimes;
             this.nInit = stats.nInit;
             this.nTrans = stats.nTrans;
@@ -219,68 +276,15 @@ public class CTMCExpFam<S>
 
         private double [] _fixedDerivative()
         {
-            double [] result = new double[nFeatures];
-            for (int startState = 0; startState < nStates; startState++)
-            {
-                univariateFeatures[startState].linearIncrement(nInit[startState] + nTransStar[startState], result); // (4) & (7)
-                for (int endStateIdx = 0; endStateIdx < supports[startState].length; endStateIdx++)
-                    bivariateFeatures[startState][endStateIdx].linearIncrement(nTrans[startState][endStateIdx], result); // (6)
-            }
-            return result;
+            return fixedDerivative(nInit, nTrans, nTransStar);
         }
 
         private Pair<Double, double[]> calculate(double[] x)
         {
-            final double [] gradient = fixedDerivative.clone();
-            double value = 0.0;
             LearnedReversibleModel w = new LearnedReversibleModel(x, isNormalized);
-            final double [] mStar = new double[nStates];
-            double mStarStar = 0.0;
-
-            for (int startState = 0; startState < nStates; startState++)
-            {
-                final SparseVector curPiFeatures = univariateFeatures[startState];
-                curPiFeatures.linearIncrement(-w.pi[startState] * ( nInitStar + nTransStarStar ), gradient); // (5) & (8)
-                value += Math.log(w.pi[startState]) * nInit[startState]; // (1)
-                final double currentHold = holdTimes[startState];
-                final SparseVector qs = w.qs(startState);
-                double sumQs = 0.0;
-                final int [] curSupports = supports[startState];
-                for (int endStateIdx = 0; endStateIdx < curSupports.length; endStateIdx++)
-                {
-                    final double currentQ = qs.values[endStateIdx];
-                    value += nTrans[startState][endStateIdx] * Math.log(currentQ); // (2)
-                    sumQs += currentQ;  // (3)
-                    final double currentM = currentHold * currentQ;
-                    bivariateFeatures[startState][endStateIdx].linearIncrement(-currentM, gradient); // (9)
-                    mStar[curSupports[endStateIdx]] += currentM;
-                    mStarStar += currentM;
-                }
-                value = value - sumQs * currentHold; // (3) continued
-            }
-
-            for (int startState = 0; startState < nStates; startState++)
-                univariateFeatures[startState].linearIncrement(w.pi[startState] * mStarStar - mStar[startState], gradient); // (10) & (11)
-
-            if(isNormalized)  // the matrix needs to be normalized
-            {
-                for (int startState = 0; startState < nStates; startState++)
-                {
-                    final SparseVector qs = w.qs(startState);
-                    double sumQs = 0.0;
-                    final int [] curSupports = supports[startState];
+            final double [] gradient = fixedDerivative.clone();
+            double value = terms.addTerms(w, holdTimes, nInit, nTrans, nInitStar, nTransStarStar, gradient);
 
-                    for (int endStateIdx = 0; endStateIdx < curSupports.length; endStateIdx++)
-                    {
-                        final double currentQ = qs.values[endStateIdx];
-                        univariateFeatures[qs.indices[endStateIdx]].linearIncrement(qs.values[endStateIdx]*w.pi[startState]*(nTransStarStar-mStarStar)*(-1),  gradient);
-                        bivariateFeatures[startState][endStateIdx].linearIncrement(w.pi[startState]*qs.values[endStateIdx]*(nTransStarStar-mStarStar)*(-1),  gradient);
-                        sumQs+=currentQ;
-                    }
-                    univariateFeatures[startState].linearIncrement(w.pi[startState]*sumQs*(nTransStarStar-mStarStar)*(-1), gradient);
-                    univariateFeatures[startState].linearIncrement(2*w.pi[startState]*(mStarStar-nTransStarStar)*(-1), gradient);// derivative beta term
-                }
-            }
             for (int f = 0; f < nFeatures; f++)
             {
                 final double curX = x[f]; 
@@ -348,6 +352,10 @@ public class CTMCExpFam<S>
         private double[] lastDerivative;
         double[] lastX = null;
 
+        private final ObjectiveTerms terms;
+
+        private int nExpectationSteps = 0;
+
         private ExpectedReversibleObjectiveUpdateExpectedStat(double kappa, TreeObservations treeObservations, UnrootedTree tree,
                                                               MultiCategorySubstitutionModel<ExpFamMixture> likelihood, ExpectedStatistics<S> stats,
                                                               ExpFamParameters parameters)
@@ -357,6 +365,7 @@ public class CTMCExpFam<S>
             this.tree = tree;
             this.likelihood = likelihood;
             this.parameters = parameters;
+            this.terms = new ObjectiveTerms(likelihood.likelihoodOptions.nThreads);
             this.holdTimes = stats.holdTimes;
             this.nInit = stats.nInit;
             this.nTrans = stats.nTrans;
@@ -374,6 +383,23 @@ public class CTMCExpFam<S>
             this.fixedDerivative = _fixedDerivative();
         }
 
+        /**
+         * @return The cache of decompositions and kernels reused across the E-steps of this 
+         *   objective, with its hit, miss, eviction and memory counters.
+         */
+        public ExpectedStatisticsCache getExpectedStatisticsCache()
+        {
+            return likelihood.getExpectedStatisticsCache();
+        }
+
+        /**
+         * @return Number of E-steps performed so far, i.e. number of calls to updateExpectedStatistics().
+         */
+        public int nExpectationSteps()
+        {
+            return nExpectationSteps;
+        }
+
         public void updateExpectedStatistics(double [] weights){
 
             // whenever the values of weights change, we should update the expected values of the sufficient statistics
@@ -384,6 +410,9 @@ public class CTMCExpFam<S>
 
             // How to make the generic type of the CTMCState to be "S" to be more general
             ExpectedStatistics<CTMCState> expectedStatistics = likelihood.getTotalExpectedStatistics(treeObservations, tree, parameters.globalExponentialFamily);
+            nExpectationSteps++;
+            if (likelihood.likelihoodOptions.printCacheStatistics)
+                System.out.println("E-step " + nExpectationSteps + ": " + getExpectedStatisticsCache());
             holdTimes = expectedStatistics.holdTimes;
             nInit = expectedStatistics.nInit;
             nTrans = expectedStatistics.nTrans;
@@ -432,14 +461,7 @@ public class CTMCExpFam<S>
 
         private double [] _fixedDerivative()
         {
-            double [] result = new double[nFeatures];
-            for (int startState = 0; startState < nStates; startState++)
-            {
-                univariateFeatures[startState].linearIncrement(nInit[startState] + nTransStar[startState], result); // (4) & (7)
-                for (int endStateIdx = 0; endStateIdx < supports[startState].length; endStateIdx++)
-                    bivariateFeatures[startState][endStateIdx].linearIncrement(nTrans[startState][endStateIdx], result); // (6)
-            }
-            return result;
+            return fixedDerivative(nInit, nTrans, nTransStar);
         }
 
         private Pair<Double, double[]> calculate(double[] x)
@@ -458,56 +480,8 @@ public class CTMCExpFam<S>
             updateExpectedStatistics(x);
 
             final double [] gradient = fixedDerivative.clone();
+            double value = terms.addTerms(w, holdTimes, nInit, nTrans, nInitStar, nTransStarStar, gradient);
 
-            double value = 0.0;
-
-            final double [] mStar = new double[nStates];
-            double mStarStar = 0.0;
-
-            for (int startState = 0; startState < nStates; startState++)
-            {
-                final SparseVector curPiFeatures = univariateFeatures[startState];
-                curPiFeatures.linearIncrement(-w.pi[startState] * ( nInitStar + nTransStarStar ), gradient); // (5) & (8)
-                value += Math.log(w.pi[startState]) * nInit[startState]; // (1)
-                final double currentHold = holdTimes[startState];
-                final SparseVector qs = w.qs(startState);
-                double sumQs = 0.0;
-                final int [] curSupports = supports[startState];
-                for (int endStateIdx = 0; endStateIdx < curSupports.length; endStateIdx++)
-                {
-                    final double currentQ = qs.values[endStateIdx];
-                    value += nTrans[startState][endStateIdx] * Math.log(currentQ); // (2)
-                    sumQs += currentQ;  // (3)
-                    final double currentM = currentHold * currentQ;
-                    bivariateFeatures[startState][endStateIdx].linearIncrement(-currentM, gradient); // (9)
-                    mStar[curSupports[endStateIdx]] += currentM;
-                    mStarStar += currentM;
-                }
-                value = value - sumQs * currentHold; // (3) continued
-            }
-
-            for (int startState = 0; startState < nStates; startState++)
-                univariateFeatures[startState].linearIncrement(w.pi[startState] * mStarStar - mStar[startState], gradient); // (10) & (11)
-
-            if(isNormalized)  // the matrix needs to be normalized
-            {
-                for (int startState = 0; startState < nStates; startState++)
-                {
-                    final SparseVector qs = w.qs(startState);
-                    double sumQs = 0.0;
-                    final int [] curSupports = supports[startState];
-
-                    for (int endStateIdx = 0; endStateIdx < curSupports.length; endStateIdx++)
-                    {
-                        final double currentQ = qs.values[endStateIdx];
-                        univariateFeatures[qs.indices[endStateIdx]].linearIncrement(qs.values[endStateIdx]*w.pi[startState]*(nTransStarStar-mStarStar)*(-1),  gradient);
-                        bivariateFeatures[startState][endStateIdx].linearIncrement(w.pi[startState]*qs.values[endStateIdx]*(nTransStarStar-mStarStar)*(-1),  gradient);
-                        sumQs+=currentQ;
-                    }
-                    univariateFeatures[startState].linearIncrement(w.pi[startState]*sumQs*(nTransStarStar-mStarStar)*(-1), gradient);
-                    univariateFeatures[startState].linearIncrement(2*w.pi[startState]*(mStarStar-nTransStarStar)*(-1), gradient);// derivative beta term
-                }
-            }
             for (int f = 0; f < nFeatures; f++)
             {
                 final double curX = x[f];
@@ -547,6 +521,145 @@ public class CTMCExpFam<S>
         }
     }
 
+    /**
+     * Terms (4), (6) and (7) of the gradient, which do not depend on the parameters.
+     */
+    private double [] fixedDerivative(double [] nInit, double [][] nTrans, double [] nTransStar)
+    {
+        final FeatureMatrix univariate = univariateMatrix(), bivariate = bivariateMatrix();
+        double [] result = new double[nFeatures];
+        for (int startState = 0; startState < nStates; startState++)
+        {
+            univariate.linearIncrement(startState, nInit[startState] + nTransStar[startState], result); // (4) & (7)
+            for (int endStateIdx = 0; endStateIdx < supports[startState].length; endStateIdx++)
+                bivariate.linearIncrement(supportOffsets[startState] + endStateIdx, nTrans[startState][endStateIdx], result); // (6)
+        }
+        return result;
+    }
+
+    /**
+     * The parameter dependent terms of the objectives, computed on blocks of OBJECTIVE_BLOCK_SIZE 
+     * start states, concurrently when nThreads > 1. Each block accumulates in its own buffers 
+     * (kept between evaluations), which are then added in block order, so the result does 
+     * not depend on the number of threads. An instance should be used by one objective at a time.
+     */
+    private class ObjectiveTerms
+    {
+        private final int nBlocks = (nStates + OBJECTIVE_BLOCK_SIZE - 1) / OBJECTIVE_BLOCK_SIZE;
+        private final int nThreads;
+        private double [][] blockGradients = null;
+        private double [][] blockMStar = null;
+        private final double [] blockMStarStar = new double[nBlocks];
+
+        private ObjectiveTerms(int nThreads)
+        {
+            this.nThreads = nThreads;
+        }
+
+        /**
+         * Adds to gradient the terms (5) and (8) to (11), and the derivative of the normalization
+         * if isNormalized.
+         *
+         * @return The terms (1) to (3) of the value
+         */
+        private double addTerms(
+                final LearnedReversibleModel w,
+                final double [] holdTimes, final double [] nInit, final double [][] nTrans,
+                final double nInitStar, final double nTransStarStar,
+                double [] gradient)
+        {
+            if (blockGradients == null || blockGradients[0].length != nFeatures)
+            {
+                blockGradients = new double[nBlocks][nFeatures];
+                blockMStar = new double[nBlocks][nStates];
+            }
+            final FeatureMatrix univariate = univariateMatrix(), bivariate = bivariateMatrix();
+
+            // first pass: value, (5), (8), (9), and the expected number of transitions m
+            List<Double> blockValues = ParallelTasks.map(nBlocks, nThreads, new Task<Double>() {
+                @Override
+                public Double compute(int block)
+                {
+                    final double [] blockGradient = blockGradients[block], mStar = blockMStar[block];
+                    Arrays.fill(blockGradient, 0.0);
+                    Arrays.fill(mStar, 0.0);
+                    double value = 0.0, mStarStar = 0.0;
+                    for (int startState = block * OBJECTIVE_BLOCK_SIZE; startState < Math.min(nStates, (block + 1) * OBJECTIVE_BLOCK_SIZE); startState++)
+                    {
+                        univariate.linearIncrement(startState, -w.pi[startState] * ( nInitStar + nTransStarStar ), blockGradient); // (5) & (8)
+                        value += Math.log(w.pi[startState]) * nInit[startState]; // (1)
+                        final double currentHold = holdTimes[startState];
+                        double sumQs = 0.0;
+                        final int [] curSupports = supports[startState];
+                        for (int endStateIdx = 0; endStateIdx < curSupports.length; endStateIdx++)
+                        {
+                            final int position = supportOffsets[startState] + endStateIdx;
+                            final double currentQ = w.rates[position];
+                            value += nTrans[startState][endStateIdx] * Math.log(currentQ); // (2)
+                            sumQs += currentQ;  // (3)
+                            final double currentM = currentHold * currentQ;
+                            bivariate.linearIncrement(position, -currentM, blockGradient); // (9)
+                            mStar[curSupports[endStateIdx]] += currentM;
+                            mStarStar += currentM;
+                        }
+                        value = value - sumQs * currentHold; // (3) continued
+                    }
+                    blockMStarStar[block] = mStarStar;
+                    return value;
+                }
+            });
+            double value = 0.0, total = 0.0;
+            final double [] mStar = new double[nStates];
+            for (int block = 0; block < nBlocks; block++)
+            {
+                value += blockValues.get(block);
+                total += blockMStarStar[block];
+                add(blockGradients[block], gradient);
+                add(blockMStar[block], mStar);
+            }
+            final double mStarStar = total;
+
+            // second pass: (10), (11) and normalization
+            ParallelTasks.map(nBlocks, nThreads, new Task<Void>() {
+                @Override
+                public Void compute(int block)
+                {
+                    final double [] blockGradient = blockGradients[block];
+                    Arrays.fill(blockGradient, 0.0);
+                    for (int startState = block * OBJECTIVE_BLOCK_SIZE; startState < Math.min(nStates, (block + 1) * OBJECTIVE_BLOCK_SIZE); startState++)
+                    {
+                        univariate.linearIncrement(startState, w.pi[startState] * mStarStar - mStar[startState], blockGradient); // (10) & (11)
+                        if (!isNormalized)
+                            continue;
+                        final double factor = w.pi[startState] * (nTransStarStar - mStarStar) * (-1);
+                        double sumQs = 0.0;
+                        final int [] curSupports = supports[startState];
+                        for (int endStateIdx = 0; endStateIdx < curSupports.length; endStateIdx++)
+                        {
+                            final int position = supportOffsets[startState] + endStateIdx;
+                            final double currentQ = w.rates[position];
+                            univariate.linearIncrement(curSupports[endStateIdx], currentQ * factor, blockGradient);
+                            bivariate.linearIncrement(position, currentQ * factor, blockGradient);
+                            sumQs += currentQ;
+                        }
+                        univariate.linearIncrement(startState, sumQs * factor, blockGradient);
+                        univariate.linearIncrement(startState, 2*w.pi[startState]*(mStarStar-nTransStarStar)*(-1), blockGradient);// derivative beta term
+                    }
+                    return null;
+                }
+            });
+            for (int block = 0; block < nBlocks; block++)
+                add(blockGradients[block], gradient);
+            return value;
+        }
+    }
+
+    private static void add(double [] increment, double [] result)
+    {
+        for (int i = 0; i < result.length; i++)
+            result[i] += increment[i];
+    }
+
     private void track(Object c) {}
     private void end_track() {}
     private void logs(Object c) {}
@@ -603,6 +716,11 @@ public class CTMCExpFam<S>
             }
         end_track();
         nFeatures = featureIndexer.size();
+        synchronized (this)
+        {
+            univariateMatrix = null;
+            bivariateMatrix = null;
+        }
     }
 
     public class LearnedReversibleModel
@@ -611,61 +729,62 @@ public class CTMCExpFam<S>
         public final double [] pi;
         public final double normalization;
 
+        /**
+         * Flattened transition position (see supportOffsets) -> rate
+         */
+        private final double [] rates;
+
         private LearnedReversibleModel(double [] w, boolean isNormalized)
         {
             this.weights = w;
             this.pi = _buildPi();
-            this.normalization = isNormalized ? normalization(w) : 1.0;
+            // unnormalized rates first, then scaled so that the expected number of transitions per unit time is one
+            this.rates = new double[supportOffsets[nStates]];
+            final FeatureMatrix features = bivariateMatrix();
+            double betainv = 0.0;
+            for (int startState = 0; startState < nStates; startState++)
+            {
+                final int [] curSupports = supports[startState];
+                double sumQs = 0.0;
+                for (int endStateIdx = 0; endStateIdx < curSupports.length; endStateIdx++)
+                {
+                    final int position = supportOffsets[startState] + endStateIdx;
+                    rates[position] = Math.exp(features.dotProduct(position, weights)) * pi[curSupports[endStateIdx]];
+                    sumQs += rates[position];
+                }
+                betainv += pi[startState] * sumQs;
+            }
+            this.normalization = isNormalized ? 1.0 / betainv : 1.0;
+            if (isNormalized)
+                for (int position = 0; position < rates.length; position++)
+                    rates[position] *= normalization;
         }
 
         private double [] _buildPi()
         {
+            final FeatureMatrix features = univariateMatrix();
             double [] pi = new double[nStates];
             for (int i = 0; i < nStates; i++)
-                pi[i] = univariateFeatures[i].dotProduct(weights);
+                pi[i] = features.dotProduct(i, weights);
             Multinomial.expNormalize(pi);
             return pi;
         }
 
-        private double normalization(double [] x)
-        {
-            //if (!isNormalized)
-            //    throw new RuntimeException();
-            if(!isNormalized)
-                System.out.println("Un-normalized rate matrix is used");
-            LearnedReversibleModel w = new LearnedReversibleModel(x, false);
-            double betainv = 0;
-            for (int startState=0; startState < nStates; startState++)
-            {
-                final int [] curSupports = supports[startState];
-                final SparseVector qs = w.qs(startState);
-                double sumQs = 0.0;
-                for (int endStateIdx=0; endStateIdx < curSupports.length; endStateIdx++)
-                    sumQs += qs.values[endStateIdx];
-                betainv = betainv + w.pi[startState]*sumQs;
-            }
-            return 1.0/betainv;
-        }
-
-        private SparseVector qs(int startState)
+        /**
+         * @return The rate from startState to supports[startState][supportIdx]
+         */
+        private double rate(int startState, int supportIdx)
         {
-            int [] support = supports[startState];
-            final int supportSize = support.length;
-            double [] values = new double[supportSize];
-
-            for (int i = 0; i < supportSize; i++)
-                values[i] = Math.exp(bivariateFeatures[startState][i].dotProduct(weights)) * pi[support[i]]*normalization;
-            return new SparseVector(support, values);
+            return rates[supportOffsets[startState] + supportIdx];
         }
 
         public Counter<S> getRates(S source)
         {
             int s = stateIndexer.o2i(source);
-            SparseVector qs = qs(s);
             int [] support = supports[s];
             Counter<S> result = new Counter<S>();
             for (int j = 0; j < support.length; j++)
-                result.setCount(stateIndexer.i2o(support[j]), qs.values[j]);
+                result.setCount(stateIndexer.i2o(support[j]), rate(s, j));
             return result;
         }
 
@@ -682,15 +801,76 @@ public class CTMCExpFam<S>
             double [][] result = new double[nStates][nStates];
             for (int s1 = 0 ; s1 < nStates; s1++)
             {
-                SparseVector qs = qs(s1);
                 int [] support = supports[s1];
                 for (int j = 0; j < support.length; j++)
-                    result[s1][support[j]] = qs.values[j];
+                    result[s1][support[j]] = rate(s1, j);
             }
 
             RateMatrixUtils.fillRateMatrixDiagonalEntries(result);
             return result;
         }
+
+        /**
+         * Same as getSparseRateMatrix(states), as a dense matrix, filled directly from the 
+         * supports (no state objects or counters are created).
+         *
+         * @param states Indices (in stateIndexer) of the states to keep, in the order
+         *    of the rows of the result. Transitions to other states are ignored.
+         * @return The rate matrix restricted to the given states.
+         */
+        public double[][] getRateMatrix(int [] states)
+        {
+            final int [] localIndices = new int[nStates];
+            Arrays.fill(localIndices, -1);
+            for (int i = 0; i < states.length; i++)
+                localIndices[states[i]] = i;
+            double [][] result = new double[states.length][states.length];
+            for (int i = 0; i < states.length; i++)
+            {
+                final int [] support = supports[states[i]];
+                for (int j = 0; j < support.length; j++)
+                    if (localIndices[support[j]] != -1 && localIndices[support[j]] != i)
+                        result[i][localIndices[support[j]]] = rate(states[i], j);
+            }
+            RateMatrixUtils.fillRateMatrixDiagonalEntries(result);
+            return result;
+        }
+
+        /**
+         * Built directly from the supports, without forming the dense matrix.
+         *
+         * @param states Indices (in stateIndexer) of the states to keep, in the order
+         *    of the rows of the result. Transitions to other states are ignored.
+         * @return The rate matrix restricted to the given states.
+         */
+        public SparseRateMatrix getSparseRateMatrix(int [] states)
+        {
+            final int [] localIndices = new int[nStates];
+            Arrays.fill(localIndices, -1);
+            for (int i = 0; i < states.length; i++)
+                localIndices[states[i]] = i;
+            final int [][] localSupports = new int[states.length][];
+            final double [][] rates = new double[states.length][];
+            for (int i = 0; i < states.length; i++)
+            {
+                final int [] support = supports[states[i]];
+                int count = 0;
+                for (int j = 0; j < support.length; j++)
+                    if (localIndices[support[j]] != -1)
+                        count++;
+                localSupports[i] = new int[count];
+                rates[i] = new double[count];
+                count = 0;
+                for (int j = 0; j < support.length; j++)
+                    if (localIndices[support[j]] != -1)
+                    {
+                        localSupports[i][count] = localIndices[support[j]];
+                        rates[i][count++] = rate(states[i], j);
+                    }
+            }
+            return new SparseRateMatrix(localSupports, rates);
+        }
+
         public Counter<String> getWeights()
         {
             Counter<String> result = new Counter<String>();
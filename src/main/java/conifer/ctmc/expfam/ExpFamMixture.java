@@ -5,9 +5,15 @@ import java.util.List;
 
 import blang.inits.DesignatedConstructor;
 import briefj.Indexer;
+import conifer.ctmc.CTMCAlgorithm;
 import conifer.ctmc.CTMCParameters;
 import conifer.ctmc.RateMatrixToEmissionModel;
+import conifer.ctmc.ReversibleRateMatrix;
 import conifer.ctmc.SimpleRateMatrix;
+import conifer.ctmc.SparseCTMC;
+import conifer.ctmc.SparseCTMCParameters;
+import conifer.ctmc.SparseRateMatrix;
+import conifer.ctmc.UniformizationCTMC;
 import conifer.ctmc.expfam.features.IdentityBivariate;
 import conifer.ctmc.expfam.features.IdentityUnivariate;
 import conifer.io.Indexers;
@@ -27,6 +33,13 @@ public class ExpFamMixture implements RateMatrixMixture
   
   public final CTMCStateSpace stateSpace;
   
+  /**
+   * Used for the categories whose rate matrix is not sparse enough for SparseCTMC,
+   * EIGEN meaning the symmetric eigendecomposition of ReversibleCTMC.
+   */
+  public CTMCAlgorithm ctmcAlgorithm = CTMCAlgorithm.EIGEN;
+  public double ctmcTolerance = UniformizationCTMC.DEFAULT_TOLERANCE;
+  
   public static int nFeatures;
   public int nFeatures() { return nFeatures; }
   
@@ -94,10 +107,21 @@ public class ExpFamMixture implements RateMatrixMixture
     this.stateSpace = stateSpace;
   }
 
+  /**
+   * Models with sparse supports (e.g. codon models allowing only single nucleotide
+   * changes) use uniformization on a sparse rate matrix instead of a dense
+   * eigendecomposition, see SparseCTMC. Others use, by default, the symmetric
+   * eigendecomposition of ReversibleCTMC, since the model is reversible.
+   */
   @Override
   public CTMCParameters getRateMatrix(int categoryIndex)
   {
-    SimpleRateMatrix result = new SimpleRateMatrix(parameters.getRateMatrix(categoryIndex), emissionModel);
+    SparseRateMatrix sparse = parameters.getSparseRateMatrix(categoryIndex);
+    if (sparse.density() <= SparseCTMC.MAX_DENSITY)
+      return new SparseCTMCParameters(sparse, parameters.getStationaryDistribution(categoryIndex), emissionModel);
+    if (ctmcAlgorithm == CTMCAlgorithm.EIGEN)
+      return new ReversibleRateMatrix(parameters.getRateMatrix(categoryIndex), parameters.getStationaryDistribution(categoryIndex), emissionModel);
+    SimpleRateMatrix result = new SimpleRateMatrix(parameters.getRateMatrix(categoryIndex), emissionModel, ctmcAlgorithm, ctmcTolerance);
     // TODO: will need some special treatment for invariant case
     return result;
   }
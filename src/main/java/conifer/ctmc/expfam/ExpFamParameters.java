@@ -5,8 +5,10 @@ import java.util.List;
 import java.util.Map;
 import com.google.common.collect.Lists;
 
+import bayonet.distributions.Multinomial;
 import blang.core.WritableRealVar;
 import conifer.ctmc.RateMatrixUtils;
+import conifer.ctmc.SparseRateMatrix;
 
 import briefj.Indexer;
 import briefj.collections.Counter;
@@ -45,6 +47,7 @@ public class ExpFamParameters
     {
         this._cachedModel = null;
         this._rateCache = null;
+        this._sparseRateCache = null;
         this._cachedLogPriorPrs = null;
     }
 
@@ -55,28 +58,60 @@ public class ExpFamParameters
             return _rateCache[categoryIndex];
         if (_rateCache == null)
             _rateCache = new double[stateSpace.nCategories][][];
-        final int nLatentStates = stateSpace.latentIndexer.size();
-        double [][] rateMatrix = new double[nLatentStates][nLatentStates];
-        _rateCache[categoryIndex] = rateMatrix;
+        // filled by index (see stateIndices()), rather than by looking up each pair of states
+        _rateCache[categoryIndex] = getModel().getRateMatrix(stateIndices(categoryIndex));
+        return _rateCache[categoryIndex];
+    }
+
+    private SparseRateMatrix[] _sparseRateCache = null;
+    /**
+     * Same as getRateMatrix(), in compressed sparse row format, filled directly from
+     * the supports of the exponential family.
+     */
+    public SparseRateMatrix getSparseRateMatrix(int categoryIndex)
+    {
+        if (_sparseRateCache != null && _sparseRateCache[categoryIndex] != null)
+            return _sparseRateCache[categoryIndex];
+        if (_sparseRateCache == null)
+            _sparseRateCache = new SparseRateMatrix[stateSpace.nCategories];
+        _sparseRateCache[categoryIndex] = getModel().getSparseRateMatrix(stateIndices(categoryIndex));
+        return _sparseRateCache[categoryIndex];
+    }
+
+    /**
+     * @return The stationary distribution of the rate matrix of the given category,
+     *    i.e. the quasi-stationary distribution of the model restricted to its states.
+     */
+    public double [] getStationaryDistribution(int categoryIndex)
+    {
+        final int [] indices = stateIndices(categoryIndex);
+        final double [] pi = getModel().pi;
+        double [] result = new double[indices.length];
+        for (int i = 0; i < indices.length; i++)
+            result[i] = pi[indices[i]];
+        Multinomial.normalize(result);
+        return result;
+    }
 
-        CTMCExpFam<CTMCState>.LearnedReversibleModel model = getModel();
+    private int[][] _stateIndices = null;
+    /**
+     * @return Latent state index -> index of the corresponding state in the exponential family.
+     */
+    private int [] stateIndices(int categoryIndex)
+    {
+        if (_stateIndices == null)
+            _stateIndices = new int[stateSpace.nCategories][];
+        if (_stateIndices[categoryIndex] != null)
+            return _stateIndices[categoryIndex];
+        final int nLatentStates = stateSpace.latentIndexer.size();
+        int [] result = new int[nLatentStates];
         for (int latentStateIndex = 0; latentStateIndex < nLatentStates; latentStateIndex++)
         {
             Object latentState = stateSpace.latentIndexer.i2o(latentStateIndex);
-            CTMCState source = new CTMCState(categoryIndex, latentState, stateSpace.currentPartition);
-            Counter<CTMCState> rates = model.getRates(source);
-
-            for (int latentStateIndex2 = 0; latentStateIndex2 < nLatentStates; latentStateIndex2++)
-                if (latentStateIndex != latentStateIndex2)
-                {
-                    Object latentState2 = stateSpace.latentIndexer.i2o(latentStateIndex2);
-                    CTMCState dest = new CTMCState(categoryIndex, latentState2, stateSpace.currentPartition);
-                    double rate = rates.getCount(dest);
-                    rateMatrix[latentStateIndex][latentStateIndex2] = rate;
-                }
+            result[latentStateIndex] = globalExponentialFamily.stateIndexer.o2i(new CTMCState(categoryIndex, latentState, stateSpace.currentPartition));
         }
-        RateMatrixUtils.fillRateMatrixDiagonalEntries(rateMatrix);
-        return rateMatrix;
+        _stateIndices[categoryIndex] = result;
+        return result;
     }
 
     private List<Double> _cachedLogPriorPrs = null;
@@ -84,21 +119,15 @@ public class ExpFamParameters
     {
         if (_cachedLogPriorPrs != null)
             return _cachedLogPriorPrs;
-        CTMCExpFam<CTMCState>.LearnedReversibleModel model = getModel();
+        final double [] quasiStationary = getModel().pi;
 
         _cachedLogPriorPrs = Lists.newArrayList();
 
-        Counter<CTMCState> quasiStationary = model.getStationaryDistribution();
-        final int nLatentStates = stateSpace.latentIndexer.size();
         for (int category = 0; category < stateSpace.nCategories; category++)
         {
             double sum = 0.0;
-
-            for (int latentStateIndex = 0; latentStateIndex < nLatentStates; latentStateIndex++)
-            {
-                Object latentState = stateSpace.latentIndexer.i2o(latentStateIndex);
-                sum += quasiStationary.getCount(new CTMCState(category, latentState, stateSpace.currentPartition));
-            }
+            for (int index : stateIndices(category))
+                sum += quasiStationary[index];
             _cachedLogPriorPrs.add(Math.log(sum));
         }
 
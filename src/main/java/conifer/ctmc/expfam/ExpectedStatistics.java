@@ -1,7 +1,9 @@
 package conifer.ctmc.expfam;
 import java.util.Arrays;
+import java.util.List;
 
 import bayonet.distributions.Multinomial;
+import conifer.ctmc.EigenRateMtxExpectations;
 import conifer.ctmc.RateMatrixUtils;
 import conifer.ctmc.RateMtxExpectations;
 import conifer.models.RateMatrixMixture;
@@ -56,22 +58,46 @@ public class ExpectedStatistics<S>
     }
 
 
+    /**
+     * Same as addMarginalizedPath(marginalCounts, rateMtx, T), but all the statistics are
+     * obtained at once from the eigendecomposition held by expectations (see 
+     * EigenRateMtxExpectations), which can be shared by all the edges.
+     */
+    public void addMarginalizedPath(double [][] marginalCounts, EigenRateMtxExpectations expectations, double T)
+    {
+        addMarginalizedPath(marginalCounts, expectations.kernel(T));
+    }
+
+    /**
+     * Same as addMarginalizedPath(marginalCounts, expectations, T), with a kernel that
+     * may come from a cache, see ExpectedStatisticsCache.
+     */
+    public void addMarginalizedPath(double [][] marginalCounts, EigenRateMtxExpectations.Kernel kernel)
+    {
+        final double [][] current = kernel.getDecomposition().expectations(marginalCounts, kernel);
+        final int dim = current.length;
+        for (int state1 = 0; state1 < dim; state1++)
+        {
+            holdTimes[state1] += current[state1][state1];
+            final int [] curSupport = model.supports[state1];
+            for (int state2Idx = 0; state2Idx < curSupport.length; state2Idx++)
+                nTrans[state1][state2Idx] += current[state1][curSupport[state2Idx]];
+        }
+    }
+
+    /**
+     * Reference implementation, with one auxiliary matrix exponential per statistic 
+     * (see RateMtxExpectations).
+     */
     public void addMarginalizedPath(double [][] marginalCounts, double [][] rateMtx, double T){
         final int dim = rateMtx.length;
-        double [][] auxMtx = new double[2*dim][2*dim];
         double [][] simpleExp = RateMatrixUtils.marginalTransitionMtx(rateMtx, T, RateMatrixUtils.MatrixExponentialAlgorithm.DIAGONALIZATION);
         for(int state1=0;state1<dim;state1++){
             int[] curSupport = model.supports[state1];
             for(int state2Idx=0; state2Idx<curSupport.length+1; state2Idx++){
                 boolean isHoldTime = state2Idx== curSupport.length;
                 int state2 = isHoldTime? state1:curSupport[state2Idx];
-                double sum =0.0;
-                double [][] current = RateMtxExpectations._expectations(rateMtx, T, state1, state2, simpleExp, auxMtx);
-                for (int x = 0; x < model.stateIndexer.size(); x++) {
-                    for (int y = 0; y < model.stateIndexer.size(); y++) {
-                        sum += marginalCounts[x][y] * current[x][y];
-                    }
-                }
+                double sum = RateMtxExpectations.expectation(marginalCounts, rateMtx, T, state1, state2, simpleExp);
                 if (isHoldTime)
                     holdTimes[state1] += sum;
                 else
@@ -167,6 +193,39 @@ public class ExpectedStatistics<S>
 //    }
 //  }
 
+    /**
+     * Adds the holding times, transition and initial counts of other (for the same model) to this instance.
+     */
+    public void add(ExpectedStatistics<S> other)
+    {
+        if (other.model != model)
+            throw new RuntimeException("Statistics from different models");
+        for (int state = 0; state < holdTimes.length; state++)
+        {
+            holdTimes[state] += other.holdTimes[state];
+            nInit[state] += other.nInit[state];
+            for (int supportIdx = 0; supportIdx < nTrans[state].length; supportIdx++)
+                nTrans[state][supportIdx] += other.nTrans[state][supportIdx];
+        }
+    }
+
+    /**
+     * Sum of a non-empty list of statistics, added pairwise in a fixed order, ((s0 + s1) + (s2 + s3)) + ...,
+     * so that the result is the same whichever way (e.g. concurrently) the terms were computed.
+     * 
+     * The statistics in the list are modified, the first one holding the result.
+     */
+    public static <S> ExpectedStatistics<S> sum(List<ExpectedStatistics<S>> statistics)
+    {
+        final int size = statistics.size();
+        if (size == 0)
+            throw new RuntimeException();
+        for (int stride = 1; stride < size; stride *= 2)
+            for (int i = 0; i + stride < size; i += 2 * stride)
+                statistics.get(i).add(statistics.get(i + stride));
+        return statistics.get(0);
+    }
+
     public double nSeries()
     {
         return Multinomial.getNormalization(nInit);
@@ -0,0 +1,66 @@
+package conifer.ctmc.expfam;
+
+import java.util.List;
+
+import bayonet.math.SparseVector;
+
+/**
+ * A list of sparse feature vectors stored in compressed sparse row format: the
+ * non-zero entries of row r are (featureIndices[k], values[k]) for
+ * rowPointers[r] <= k < rowPointers[r + 1].
+ *
+ * Used by CTMCExpFam so that the objectives loop over three arrays instead of
+ * one SparseVector object per state or per transition.
+ */
+public class FeatureMatrix
+{
+    public final int [] rowPointers;
+    public final int [] featureIndices;
+    public final double [] values;
+
+    /**
+     * @param rows Null entries are treated as rows without features.
+     */
+    public FeatureMatrix(List<SparseVector> rows)
+    {
+        this.rowPointers = new int[rows.size() + 1];
+        for (int r = 0; r < rows.size(); r++)
+            rowPointers[r + 1] = rowPointers[r] + (rows.get(r) == null ? 0 : rows.get(r).indices.length);
+        final int nEntries = rowPointers[rows.size()];
+        this.featureIndices = new int[nEntries];
+        this.values = new double[nEntries];
+        for (int r = 0; r < rows.size(); r++)
+        {
+            final SparseVector row = rows.get(r);
+            if (row == null)
+                continue;
+            System.arraycopy(row.indices, 0, featureIndices, rowPointers[r], row.indices.length);
+            System.arraycopy(row.values, 0, values, rowPointers[r], row.values.length);
+        }
+    }
+
+    public int nRows()
+    {
+        return rowPointers.length - 1;
+    }
+
+    /**
+     * @return The dot product of the given row with weights.
+     */
+    public double dotProduct(int row, double [] weights)
+    {
+        double sum = 0.0;
+        for (int k = rowPointers[row]; k < rowPointers[row + 1]; k++)
+            sum += values[k] * weights[featureIndices[k]];
+        return sum;
+    }
+
+    /**
+     * result += factor * (the given row)
+     */
+    public void linearIncrement(int row, double factor, double [] result)
+    {
+        for (int k = rowPointers[row]; k < rowPointers[row + 1]; k++)
+            result[featureIndices[k]] += factor * values[k];
+    }
+}
@@ -398,8 +398,19 @@ public class FeatureFactory {
 	}
 	
 	// create unary features and binary features using the feature keys for each pair of states to create codon models
+	// the support contains all the pairs of codons, so the rate matrices are dense and never use SparseCTMC:
+	// callers wanting the sparse path must opt in with codonUsingAminoAcidAndDNAFeatureModel(true), which is a
+	// different model (changes at several positions get a zero rate)
 	public static SerializedExpFamMixture codonUsingAminoAcidAndDNAFeatureModel(){
+		return codonUsingAminoAcidAndDNAFeatureModel(false);
+	}
+	
+	// if singleNucleotideChangesOnly, the support only contains the pairs of codons differing at exactly one position,
+	// so that the rate matrices are sparse and ExpFamMixture uses SparseCTMC for them; see CodonLikelihoodBenchmark
+	// in the tests for the likelihood timings of both
+	public static SerializedExpFamMixture codonUsingAminoAcidAndDNAFeatureModel(boolean singleNucleotideChangesOnly){
 		List<String> orderedLatents = CODON;
+		List<List<String>> codonSupportEdges = singleNucleotideChangesOnly ? Lists.<List<String>>newArrayList() : supportEdges;
 		List<UnaryFeature> unaryFeatures = constructUnaryFeatures(CODON);
 		List<BinaryFeature> binaryFeatures = Lists.newArrayList();
 		
@@ -422,6 +433,12 @@ public class FeatureFactory {
 			
 			for(String state1:wholeState){
 				
+				if (singleNucleotideChangesOnly){
+					if (nDifferences(state0, state1) != 1)
+						continue;
+					codonSupportEdges.add(Lists.newArrayList(state0, state1));
+				}
+				
 				Map<String, Double> features = new LinkedHashMap<>();
 				List<String> allFeatureMapKeys = Lists.newArrayList();
 				CTMCState ctmcState1 = new CTMCState(categoryIndex, state1, partition);
@@ -453,7 +470,15 @@ public class FeatureFactory {
 			}
 		}				
 		
-		return new SerializedExpFamMixture(nCategories, orderedLatents, supportEdges, unaryFeatures, binaryFeatures, fullSupport);
+		return new SerializedExpFamMixture(nCategories, orderedLatents, codonSupportEdges, unaryFeatures, binaryFeatures, fullSupport && !singleNucleotideChangesOnly);
+	}
+	
+	private static int nDifferences(String state0, String state1){
+		int result = 0;
+		for(int i=0; i<state0.length(); i++)
+			if(state0.charAt(i) != state1.charAt(i))
+				result++;
+		return result;
 	}
 		
 	 public static void main(String [] args)
@@ -0,0 +1,82 @@
+package conifer.models;
+
+import java.util.Collections;
+import java.util.Map;
+
+import briefj.collections.UnorderedPair;
+import conifer.TreeNode;
+
+/**
+ * The log likelihood of a tree, along with its first and second derivatives
+ * with respect to each branch length (the other branch lengths being held
+ * fixed, i.e. the diagonal of the Hessian).
+ *
+ * See FelsensteinPruning.branchLengthDerivatives() and
+ * MultiCategorySubstitutionModel.branchLengthDerivatives().
+ */
+public class BranchLengthDerivatives
+{
+  private final double logLikelihood;
+  private final Map<UnorderedPair<TreeNode, TreeNode>, Double> firstDerivatives, secondDerivatives;
+
+  public BranchLengthDerivatives(
+      double logLikelihood,
+      Map<UnorderedPair<TreeNode, TreeNode>, Double> firstDerivatives,
+      Map<UnorderedPair<TreeNode, TreeNode>, Double> secondDerivatives)
+  {
+    this.logLikelihood = logLikelihood;
+    this.firstDerivatives = Collections.unmodifiableMap(firstDerivatives);
+    this.secondDerivatives = Collections.unmodifiableMap(secondDerivatives);
+  }
+
+  public double getLogLikelihood()
+  {
+    return logLikelihood;
+  }
+
+  /**
+   * @return d logL / d b_e
+   */
+  public double getFirstDerivative(UnorderedPair<TreeNode, TreeNode> edge)
+  {
+    return get(firstDerivatives, edge);
+  }
+
+  /**
+   * @return d^2 logL / d b_e^2
+   */
+  public double getSecondDerivative(UnorderedPair<TreeNode, TreeNode> edge)
+  {
+    return get(secondDerivatives, edge);
+  }
+
+  /**
+   * @return The gradient, indexed by edges.
+   */
+  public Map<UnorderedPair<TreeNode, TreeNode>, Double> getFirstDerivatives()
+  {
+    return firstDerivatives;
+  }
+
+  /**
+   * @return The diagonal of the Hessian, indexed by edges.
+   */
+  public Map<UnorderedPair<TreeNode, TreeNode>, Double> getSecondDerivatives()
+  {
+    return secondDerivatives;
+  }
+
+  private static double get(Map<UnorderedPair<TreeNode, TreeNode>, Double> derivatives, UnorderedPair<TreeNode, TreeNode> edge)
+  {
+    Double result = derivatives.get(edge);
+    if (result == null)
+      throw new RuntimeException("Edge not found: " + edge);
+    return result;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "BranchLengthDerivatives[logLikelihood=" + logLikelihood + ",first=" + firstDerivatives + ",second=" + secondDerivatives + "]";
+  }
+}
@@ -0,0 +1,189 @@
+package conifer.models;
+
+import java.util.List;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import com.google.common.collect.Lists;
+
+import blang.inits.Arg;
+import blang.inits.DefaultValue;
+import briefj.collections.UnorderedPair;
+import conifer.SitePatterns;
+import conifer.TreeNode;
+import conifer.UnrootedTree;
+import conifer.io.TreeObservations;
+
+/**
+ * Maximum likelihood estimation of the branch lengths of a fixed topology, by
+ * coordinate ascent: each pass visits the edges in traversal order and sets each
+ * branch length to the maximizer of the likelihood with the other branch lengths
+ * fixed, found by Newton-Raphson safeguarded by a bracket. Passes are repeated
+ * until the improvement of the log likelihood falls below a tolerance.
+ *
+ * Each edge only needs the partials on both of its sides (see EdgeLikelihood),
+ * after which each Newton iteration costs one matrix vector product per site and
+ * category. Since consecutive edges share a node, the pruning engine only
+ * recomputes a few buffers when moving from one edge to the next.
+ */
+public class BranchLengthOptimizer
+{
+  @Arg(description = "Stop when a pass improves the log likelihood by less than this")
+  @DefaultValue("1e-6")
+  public double tolerance = 1e-6;
+
+  @Arg(description = "Maximum number of passes over the edges")
+  @DefaultValue("100")
+  public int maxPasses = 100;
+
+  @Arg(description = "Maximum number of Newton-Raphson iterations per edge and pass")
+  @DefaultValue("20")
+  public int maxIterations = 20;
+
+  @Arg(description = "Stop the Newton-Raphson iterations on an edge when the step is smaller than this, relative to the branch length")
+  @DefaultValue("1e-8")
+  public double relativeStepTolerance = 1e-8;
+
+  @Arg(description = "Smallest branch length considered")
+  @DefaultValue("1e-8")
+  public double minBranchLength = 1e-8;
+
+  @Arg(description = "Largest branch length considered")
+  @DefaultValue("100.0")
+  public double maxBranchLength = 100.0;
+
+  /**
+   * Modifies the branch lengths of the tree in place. The log likelihood never decreases.
+   *
+   * @return A summary of each pass.
+   */
+  public List<PassSummary> optimize(MultiCategorySubstitutionModel<?> model, UnrootedTree tree, TreeObservations observations)
+  {
+    if (!(minBranchLength > 0.0 && minBranchLength < maxBranchLength))
+      throw new RuntimeException("Invalid branch length bounds: " + minBranchLength + ", " + maxBranchLength);
+    // compress once, so that the partials are reused across calls
+    final TreeObservations patterns = SitePatterns.of(observations);
+    final TreeNode start = tree.getTopology().vertexSet().iterator().next();
+    final List<Pair<TreeNode, TreeNode>> edges = tree.getRootedEdges(start);
+    final List<PassSummary> result = Lists.newArrayList();
+    if (edges.isEmpty())
+      return result;
+    // the arrays of the edge likelihoods are shared by all the edges and passes
+    final EdgeLikelihood.Workspace workspace = new EdgeLikelihood.Workspace();
+    double previous = Double.NaN;
+    for (int pass = 0; pass < maxPasses; pass++)
+    {
+      final long startTime = System.currentTimeMillis();
+      int nIterations = 0;
+      double logLikelihood = Double.NaN;
+      for (Pair<TreeNode, TreeNode> edge : edges)
+      {
+        final UnorderedPair<TreeNode, TreeNode> key = UnorderedPair.of(edge.getLeft(), edge.getRight());
+        final EdgeLikelihood edgeLikelihood = model.edgeLikelihood(tree, edge.getLeft(), edge.getRight(), patterns, workspace);
+        final EdgeOptimum optimum = optimize(edgeLikelihood, tree.getBranchLength(key));
+        if (Double.isNaN(previous))
+          previous = optimum.initialLogLikelihood;
+        nIterations += optimum.nIterations;
+        tree.updateBranchLength(key, optimum.branchLength);
+        logLikelihood = optimum.logLikelihood;
+      }
+      final PassSummary summary = new PassSummary(pass, logLikelihood, nIterations, System.currentTimeMillis() - startTime);
+      result.add(summary);
+      if (logLikelihood - previous < tolerance)
+        break;
+      previous = logLikelihood;
+    }
+    return result;
+  }
+
+  /**
+   * Newton-Raphson on one edge. The bracket [low, high] always contains a
+   * stationary point (or the boundary where the derivative points): it is
+   * shrunk after each evaluation according to the sign of the derivative. When
+   * the likelihood is not concave at the current point, or the Newton step leaves
+   * the bracket, the next point is the geometric mean of the bracket's ends
+   * instead, since branch lengths span several orders of magnitude. The best
+   * point evaluated is returned, so the likelihood never decreases.
+   */
+  private EdgeOptimum optimize(EdgeLikelihood edgeLikelihood, double initialBranchLength)
+  {
+    double low = minBranchLength, high = maxBranchLength;
+    double current = Math.min(maxBranchLength, Math.max(minBranchLength, initialBranchLength));
+    // the initial value is always a candidate, even if outside the bounds
+    final double initialLogLikelihood = edgeLikelihood.evaluate(initialBranchLength)[0];
+    double bestBranchLength = initialBranchLength, bestLogLikelihood = initialLogLikelihood;
+    int nIterations = 0;
+    while (nIterations < maxIterations)
+    {
+      final double [] values = edgeLikelihood.evaluate(current);
+      nIterations++;
+      if (values[0] > bestLogLikelihood)
+      {
+        bestLogLikelihood = values[0];
+        bestBranchLength = current;
+      }
+      final double first = values[1], second = values[2];
+      if (first > 0.0)
+        low = current;
+      else
+        high = current;
+      if (first == 0.0 || low >= high)
+        break;
+      double next = current - first / second;
+      if (!(second < 0.0 && next > low && next < high))
+        next = Math.sqrt(low * high);
+      if (Math.abs(next - current) <= relativeStepTolerance * current)
+        break;
+      current = next;
+    }
+    return new EdgeOptimum(bestBranchLength, initialLogLikelihood, bestLogLikelihood, nIterations);
+  }
+
+  private static final class EdgeOptimum
+  {
+    private final double branchLength, initialLogLikelihood, logLikelihood;
+    private final int nIterations;
+
+    private EdgeOptimum(double branchLength, double initialLogLikelihood, double logLikelihood, int nIterations)
+    {
+      this.branchLength = branchLength;
+      this.initialLogLikelihood = initialLogLikelihood;
+      this.logLikelihood = logLikelihood;
+      this.nIterations = nIterations;
+    }
+  }
+
+  public static final class PassSummary
+  {
+    /**
+     * Starting at zero.
+     */
+    public final int pass;
+
+    /**
+     * Log likelihood at the end of the pass.
+     */
+    public final double logLikelihood;
+
+    /**
+     * Total number of Newton-Raphson iterations over all edges.
+     */
+    public final int nIterations;
+
+    public final long timeMillis;
+
+    private PassSummary(int pass, double logLikelihood, int nIterations, long timeMillis)
+    {
+      this.pass = pass;
+      this.logLikelihood = logLikelihood;
+      this.nIterations = nIterations;
+      this.timeMillis = timeMillis;
+    }
+
+    @Override
+    public String toString()
+    {
+      return "pass=" + pass + "\tlogLikelihood=" + logLikelihood + "\tnIterations=" + nIterations + "\ttimeMillis=" + timeMillis;
+    }
+  }
+}
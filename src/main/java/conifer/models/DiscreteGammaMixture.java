@@ -1,10 +1,12 @@
 package conifer.models;
 
+import java.util.Arrays;
 import java.util.List;
 
 
 import bayonet.distributions.Multinomial;
 import blang.core.RealVar;
+import blang.runtime.internals.objectgraph.SkipDependency;
 
 import com.google.common.collect.Lists;
 
@@ -12,10 +14,18 @@ import conifer.Utils;
 import conifer.ctmc.CTMC;
 import conifer.ctmc.CTMCParameters;
 import conifer.ctmc.InvariantCTMCParameters;
-import conifer.ctmc.SimpleRateMatrix;
+import conifer.ctmc.ScaledRateMatrix;
 
 
 
+/**
+ * A mixture of scaled copies of a base rate matrix, with rates given by a
+ * discretized gamma distribution, and optionally an invariant category.
+ * 
+ * All the categories share the process of the base rate matrix (see ScaledCTMC), 
+ * so that its eigendecomposition is computed only when the base rate matrix 
+ * changes, not when the shape parameter or invariant site probability do.
+ */
 public class DiscreteGammaMixture implements RateMatrixMixture
 {
 
@@ -27,6 +37,19 @@ public class DiscreteGammaMixture implements RateMatrixMixture
   
   private final int nPositiveCategories;
   
+  // caches, see getBaseProcess() and getRates()
+  @SkipDependency(isMutable = false)
+  private double [][] cachedBaseMatrix = null;
+  
+  @SkipDependency(isMutable = false)
+  private CTMC cachedBaseProcess = null;
+  
+  @SkipDependency(isMutable = false)
+  private double cachedInvariantSiteProbability = Double.NaN, cachedShapeParameter = Double.NaN;
+  
+  @SkipDependency(isMutable = false)
+  private List<Double> cachedRates = null;
+  
   public DiscreteGammaMixture(
       RealVar invariantSiteProbability,
       RealVar shapeParameter,
@@ -42,23 +65,46 @@ public class DiscreteGammaMixture implements RateMatrixMixture
   @Override
   public CTMCParameters getRateMatrix(int index)
   {
-    double rate = computeDiscreteGammaRates(invariantSiteProbability.doubleValue(), nPositiveCategories, shapeParameter.doubleValue()).get(index);
+    double rate = getRates().get(index);
+    CTMC base = getBaseProcess();
     if (rate == 0.0)
-    {
-      CTMC base = baseRateMatrix.getProcess();
       return new InvariantCTMCParameters(base.stationaryDistribution(), baseRateMatrix.getEmissionModel());
-    }
     else
+      return new ScaledRateMatrix(base, rate, baseRateMatrix.getEmissionModel());
+  }
+  
+  /**
+   * @return The process of the base rate matrix, recreated only when the content of the 
+   *   base rate matrix changed since the last call.
+   */
+  public synchronized CTMC getBaseProcess()
+  {
+    double [][] baseMatrix = baseRateMatrix.getRateMatrix();
+    if (cachedBaseProcess == null || !Arrays.deepEquals(baseMatrix, cachedBaseMatrix))
+    {
+      cachedBaseProcess = baseRateMatrix.getProcess();
+      cachedBaseMatrix = new double[baseMatrix.length][];
+      for (int i = 0; i < baseMatrix.length; i++)
+        cachedBaseMatrix[i] = baseMatrix[i].clone();
+    }
+    return cachedBaseProcess;
+  }
+  
+  /**
+   * @return See computeDiscreteGammaRates(), recomputed only when the parameters changed since the last call.
+   */
+  public synchronized List<Double> getRates()
+  {
+    final double 
+      invariantSiteProbability = this.invariantSiteProbability.doubleValue(),
+      shapeParameter = this.shapeParameter.doubleValue();
+    if (cachedRates == null || invariantSiteProbability != cachedInvariantSiteProbability || shapeParameter != cachedShapeParameter)
     {
-      double [][] baseMatrix = baseRateMatrix.getRateMatrix();
-      final int matrixSize = baseMatrix.length;
-      double [][] scaled = new double[matrixSize][matrixSize];
-      if (rate != 0.0)
-        for (int i = 0; i < matrixSize; i++)
-          for (int j = 0; j < matrixSize; j++)
-            scaled[i][j] = baseMatrix[i][j] * rate;
-      return new SimpleRateMatrix(scaled, baseRateMatrix.getEmissionModel());
+      cachedRates = computeDiscreteGammaRates(invariantSiteProbability, nPositiveCategories, shapeParameter);
+      cachedInvariantSiteProbability = invariantSiteProbability;
+      cachedShapeParameter = shapeParameter;
     }
+    return cachedRates;
   }
 
   @Override
@@ -0,0 +1,217 @@
+package conifer.models;
+
+import java.util.Arrays;
+import java.util.List;
+
+import conifer.ctmc.CTMC;
+import conifer.ctmc.TransitionMatrixCache;
+import conifer.models.ParallelTasks.Task;
+
+/**
+ * The log likelihood of a tree as a function of the length of one of its
+ * edges, all the other branch lengths being held fixed.
+ *
+ * For a site and category, the likelihood is D' P(t) U, where U are the partials
+ * of the child end of the edge and D the product of the contributions of the
+ * rest of the tree at the parent end, both fixed once the partials are up to date
+ * (see FelsensteinPruning.edgeLikelihood()). Since d P(t) / dt = Q P(t), the
+ * derivatives are (Q' D)' P(t) U and (Q'^2 D)' P(t) U, so after precomputing
+ * Q' D and Q'^2 D, each evaluation costs one matrix vector product per site and
+ * category, independently of the size of the tree.
+ *
+ * P(t) is obtained in the same way as in the pruning (closed form for HKY, through
+ * the TransitionMatrixCache otherwise). All the arrays live in a Workspace, which
+ * can be reused from one edge to the next: an EdgeLikelihood is only valid until
+ * its workspace is passed to another call of FelsensteinPruning.edgeLikelihood().
+ */
+public class EdgeLikelihood
+{
+  private final int nCategories, nSites, nStates;
+  private final CTMC [] processes;
+  private final TransitionMatrixCache cache;
+  private final long [] versions;
+  private final double [] priors;
+
+  /**
+   * category -> (site, state), i.e. entry site * nStates + state
+   */
+  private final double [][] outside, firstOutside, secondOutside, inside;
+
+  /**
+   * category -> site -> base 2 exponent of the factors divided out of D and U.
+   */
+  private final int [][] exponents;
+
+  /**
+   * category -> flattened P(t), overwritten by each evaluation.
+   */
+  private final double [][] transitions;
+
+  private final int [] siteWeights;
+  private final int nThreads, blockSize;
+
+  /**
+   * The outside, inside and exponents of the workspace should be filled in
+   * before calling this.
+   */
+  EdgeLikelihood(
+      CTMC [] processes, TransitionMatrixCache cache, long [] versions,
+      double [][] rateMatrices, double [] priors, Workspace workspace,
+      int [] siteWeights, int nThreads, int blockSize)
+  {
+    this.nCategories = workspace.nCategories;
+    this.nSites = workspace.nSites;
+    this.nStates = workspace.nStates;
+    this.processes = processes;
+    this.cache = cache;
+    this.versions = versions;
+    this.priors = priors;
+    this.outside = workspace.outside;
+    this.inside = workspace.inside;
+    this.exponents = workspace.exponents;
+    this.firstOutside = workspace.firstOutside;
+    this.secondOutside = workspace.secondOutside;
+    this.transitions = workspace.transitions;
+    this.siteWeights = siteWeights;
+    this.nThreads = nThreads;
+    this.blockSize = blockSize;
+    for (int category = 0; category < nCategories; category++)
+    {
+      transposedProducts(rateMatrices[category], outside[category], firstOutside[category]);
+      transposedProducts(rateMatrices[category], firstOutside[category], secondOutside[category]);
+    }
+  }
+
+  /**
+   * @param branchLength
+   * @return The log likelihood, and its first and second derivatives with respect
+   *    to the branch length, in this order.
+   */
+  public double [] evaluate(double branchLength)
+  {
+    if (branchLength < 0.0)
+      throw new RuntimeException("Branch lengths should be non-negative: " + branchLength);
+    for (int category = 0; category < nCategories; category++)
+      FelsensteinPruning.fillTransition(cache, versions[category], category, processes[category], branchLength, transitions[category]);
+    // blocks of sites are independent; their sums are added in a fixed order below
+    final int nBlocks = LikelihoodOptions.nBlocks(nSites, blockSize);
+    List<double[]> blockResults = ParallelTasks.map(nBlocks, nThreads, new Task<double[]>() {
+      @Override
+      public double[] compute(int block)
+      {
+        final double [] result = new double[3];
+        final double [] sums = new double[nCategories], posteriors = new double[nCategories], projected = new double[nStates];
+        final double [] firsts = new double[nCategories], seconds = new double[nCategories];
+        final int [] siteExponents = new int[nCategories];
+        for (int site = block * blockSize; site < Math.min(nSites, (block + 1) * blockSize); site++)
+        {
+          final int offset = site * nStates;
+          for (int category = 0; category < nCategories; category++)
+          {
+            final double [] transition = transitions[category], current = inside[category];
+            for (int x = 0; x < nStates; x++)
+            {
+              final int row = x * nStates;
+              double sum = 0.0;
+              for (int y = 0; y < nStates; y++)
+                sum += transition[row + y] * current[offset + y];
+              projected[x] = sum;
+            }
+            double sum = 0.0, first = 0.0, second = 0.0;
+            for (int x = 0; x < nStates; x++)
+            {
+              sum += outside[category][offset + x] * projected[x];
+              first += firstOutside[category][offset + x] * projected[x];
+              second += secondOutside[category][offset + x] * projected[x];
+            }
+            sums[category] = sum;
+            firsts[category] = first;
+            seconds[category] = second;
+            siteExponents[category] = exponents[category][site];
+          }
+          final double siteLogLikelihood = FelsensteinPruning.mixCategories(sums, siteExponents, priors, posteriors);
+          final int weight = siteWeights == null ? 1 : siteWeights[site];
+          result[0] += weight * siteLogLikelihood;
+          if (siteLogLikelihood == Double.NEGATIVE_INFINITY)
+            continue;
+          double first = 0.0, second = 0.0;
+          for (int category = 0; category < nCategories; category++)
+            if (posteriors[category] > 0.0)
+            {
+              first += posteriors[category] * firsts[category] / sums[category];
+              second += posteriors[category] * seconds[category] / sums[category];
+            }
+          result[1] += weight * first;
+          result[2] += weight * (second - first * first);
+        }
+        return result;
+      }
+    });
+    final double [] result = new double[3];
+    for (double [] blockResult : blockResults)
+      for (int i = 0; i < 3; i++)
+        result[i] += blockResult[i];
+    return result;
+  }
+
+  /**
+   * Fill result with, for each site, the product of the transpose of the flattened
+   * square matrix with the vector of that site.
+   */
+  private void transposedProducts(double [] matrix, double [] vectors, double [] result)
+  {
+    Arrays.fill(result, 0.0);
+    for (int offset = 0; offset < vectors.length; offset += nStates)
+      for (int x = 0; x < nStates; x++)
+      {
+        final double factor = vectors[offset + x];
+        if (factor == 0.0)
+          continue;
+        final int row = x * nStates;
+        for (int y = 0; y < nStates; y++)
+          result[offset + y] += matrix[row + y] * factor;
+      }
+  }
+
+  /**
+   * The arrays of an EdgeLikelihood, allocated on first use and kept as long as
+   * the number of categories, sites and states does not change, so that one
+   * workspace serves all the edges visited by an optimizer.
+   */
+  public static final class Workspace
+  {
+    private int nCategories = -1, nSites = -1, nStates = -1;
+    private double [][] outside, firstOutside, secondOutside, inside, transitions;
+    private int [][] exponents;
+
+    void ensureSize(int nCategories, int nSites, int nStates)
+    {
+      if (nCategories == this.nCategories && nSites == this.nSites && nStates == this.nStates)
+        return;
+      this.nCategories = nCategories;
+      this.nSites = nSites;
+      this.nStates = nStates;
+      this.outside = new double[nCategories][nSites * nStates];
+      this.firstOutside = new double[nCategories][nSites * nStates];
+      this.secondOutside = new double[nCategories][nSites * nStates];
+      this.inside = new double[nCategories][nSites * nStates];
+      this.transitions = new double[nCategories][nStates * nStates];
+      this.exponents = new int[nCategories][nSites];
+    }
+
+    double [][] outside()
+    {
+      return outside;
+    }
+
+    double [][] inside()
+    {
+      return inside;
+    }
+
+    int [][] exponents()
+    {
+      return exponents;
+    }
+  }
+}
@@ -14,6 +14,7 @@ import conifer.EvolutionaryModel;
 import conifer.TreeNode;
 import conifer.UnrootedTree;
 import conifer.io.TreeObservations;
+import conifer.models.ParallelTasks.Task;
 
 
 
@@ -43,37 +44,63 @@ public class EvolutionaryModelUtils
       TreeObservations observations,
       boolean useInitialDistribution)
   {
-    List<FactorGraph<TreeNode>> result = Lists.newArrayList();
-    List<Pair<TreeNode,TreeNode>> orientedEdges = tree.getRootedEdges(root); 
+    return buildFactorGraphs(evolutionaryModel, tree, root, observations, useInitialDistribution, 1);
+  }
+  
+  /**
+   * @param nThreads Number of threads used to build the factor graphs concurrently, 
+   *   see ParallelTasks (the result does not depend on it).
+   */
+  public static List<FactorGraph<TreeNode>> buildFactorGraphs( 
+      final EvolutionaryModel evolutionaryModel,
+      final UnrootedTree tree,
+      final TreeNode root,
+      final TreeObservations observations,
+      final boolean useInitialDistribution,
+      int nThreads)
+  {
+    final List<Pair<TreeNode,TreeNode>> orientedEdges = tree.getRootedEdges(root); 
+    return ParallelTasks.map(evolutionaryModel.nFactorGraphs(), nThreads, new Task<FactorGraph<TreeNode>>() {
+      @Override
+      public FactorGraph<TreeNode> compute(int category)
+      {
+        return buildFactorGraph(evolutionaryModel, tree, root, observations, useInitialDistribution, orientedEdges, category);
+      }
+    });
+  }
+  
+  private static FactorGraph<TreeNode> buildFactorGraph( 
+      EvolutionaryModel evolutionaryModel,
+      UnrootedTree tree,
+      TreeNode root,
+      TreeObservations observations,
+      boolean useInitialDistribution,
+      List<Pair<TreeNode,TreeNode>> orientedEdges,
+      int i)
+  {
+    FactorGraph<TreeNode> factorGraph = evolutionaryModel.newFactorGraph(tree.getTopology());
+    LikelihoodFactoryContext context = new LikelihoodFactoryContext(factorGraph, tree, observations, i, 1.0);
     
-    for (int i = 0; i < evolutionaryModel.nFactorGraphs(); i++)
-    {
-      FactorGraph<TreeNode> factorGraph = evolutionaryModel.newFactorGraph(tree.getTopology());
-      LikelihoodFactoryContext context = new LikelihoodFactoryContext(factorGraph, tree, observations, i, 1.0);
-      
-      // initial distribution
-      /* NB: this should be done before observation
-       * as the process of setting observations may involve calling marginalization 
-       * when an observation model is used, which needs to know the number of sites. */
-      if (useInitialDistribution)
-        evolutionaryModel.buildInitialDistribution(root, context);
-      
-      // add observations
-      if (observations != null)
-        for (TreeNode observedNode : observations.getObservedTreeNodes())
-          if (tree.getTopology().vertexSet().contains(observedNode)) // this check is useful when the data contains nodes not in the tree (see for example SRPMove for a use case)
-            evolutionaryModel.buildObservation(observedNode, context);
-        
-      
-      
-      // add transitions
-      for (Pair<TreeNode,TreeNode> edge : orientedEdges)
-        evolutionaryModel.buildTransition(edge.getLeft(), edge.getRight(), context);
+    // initial distribution
+    /* NB: this should be done before observation
+     * as the process of setting observations may involve calling marginalization 
+     * when an observation model is used, which needs to know the number of sites. */
+    if (useInitialDistribution)
+      evolutionaryModel.buildInitialDistribution(root, context);
+    
+    // add observations
+    if (observations != null)
+      for (TreeNode observedNode : observations.getObservedTreeNodes())
+        if (tree.getTopology().vertexSet().contains(observedNode)) // this check is useful when the data contains nodes not in the tree (see for example SRPMove for a use case)
+          evolutionaryModel.buildObservation(observedNode, context);
       
-      result.add(factorGraph);
-    }
     
-    return result;
+    
+    // add transitions
+    for (Pair<TreeNode,TreeNode> edge : orientedEdges)
+      evolutionaryModel.buildTransition(edge.getLeft(), edge.getRight(), context);
+    
+    return factorGraph;
   }
   
   public static List<SumProduct<TreeNode>> getSumProductsFromFactorGraphs(List<FactorGraph<TreeNode>> factorGraphs, TreeNode arbitraryRoot)
@@ -88,6 +115,21 @@ public class EvolutionaryModelUtils
   {
     return getRootMarginals(getSumProductsFromFactorGraphs(factorGraphs, arbitraryRoot), arbitraryRoot);
   }
+  
+  /**
+   * @param nThreads Number of threads used to run sum product on the factor graphs concurrently, 
+   *   see ParallelTasks (the result does not depend on it).
+   */
+  public static List<UnaryFactor<TreeNode>> getRootMarginalsFromFactorGraphs(final List<FactorGraph<TreeNode>> factorGraphs, final TreeNode arbitraryRoot, int nThreads)
+  {
+    return ParallelTasks.map(factorGraphs.size(), nThreads, new Task<UnaryFactor<TreeNode>>() {
+      @Override
+      public UnaryFactor<TreeNode> compute(int category)
+      {
+        return new SumProduct<TreeNode>(factorGraphs.get(category)).computeMarginal(arbitraryRoot);
+      }
+    });
+  }
   public static List<UnaryFactor<TreeNode>> getRootMarginals(List<SumProduct<TreeNode>> sumProds, TreeNode arbitraryRoot)
   {
     List<UnaryFactor<TreeNode>> result = Lists.newArrayList();
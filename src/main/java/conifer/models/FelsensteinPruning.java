@@ -0,0 +1,1141 @@
+package conifer.models;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import briefj.Indexer;
+import briefj.collections.UnorderedPair;
+import conifer.TipStates;
+import conifer.TreeNode;
+import conifer.UnrootedTree;
+import conifer.ctmc.CTMC;
+import conifer.ctmc.CTMCParameters;
+import conifer.ctmc.HKYCTMC;
+import conifer.ctmc.RateMatrixToEmissionModel;
+import conifer.ctmc.ScaledCTMC;
+import conifer.ctmc.TransitionMatrixCache;
+import conifer.io.TreeObservations;
+import conifer.models.ParallelTasks.Task;
+import conifer.models.PartialsArray.PartialsPrecision;
+import conifer.models.PartialsArray.PartialsStorage;
+
+/**
+ * An array-based implementation of Felsenstein's pruning algorithm for
+ * MultiCategorySubstitutionModel.
+ *
+ * This is an alternative to building one bayonet DiscreteFactorGraph per
+ * category (see EvolutionaryModelUtils.buildFactorGraphs()) and running
+ * SumProduct on each of them. Here the partial likelihoods are kept in one
+ * flat array per node, indexed by (category, site, state).
+ *
+ * The partials are cached between calls: each node keeps two buffers, each
+ * remembering the children, branch lengths and child buffer versions it was
+ * computed from. A call to siteLogLikelihoods() (or categoryAndSiteLogLikelihoods()) only recomputes
+ * the nodes whose inputs changed, i.e. the path from a modified edge to the
+ * root. When a move is rejected and the tree reverts, the previous buffers
+ * still match their inputs and are swapped back without recomputation.
+ * Changes in the rate matrices, stationary distributions or emission models
+ * invalidate all buffers.
+ *
+ * The partials are kept in linear space. To avoid underflow on deep trees,
+ * each (node, category, site) vector carries an integer exponent: the actual
+ * values are the stored ones times 2^exponent. A vector is rescaled (by an
+ * exact power of two) only when its maximum leaves the range
+ * [2^-256, 2^256], so most nodes do not need any rescaling, and logarithms
+ * are only taken at the root (once per site in siteLogLikelihoods()).
+ *
+ * The partials can be stored in single precision (see LikelihoodOptions.precision)
+ * to halve their memory footprint, in which case the range triggering rescaling
+ * is narrower. All arithmetic is still done in double precision. They can
+ * also be kept outside of the Java heap (see LikelihoodOptions.storage).
+ *
+ * Observed leaves do not have partials: their observations are encoded with
+ * one short per site (see TipStates), and the contribution of a leaf to its
+ * parent is looked up in a table giving, for each code, the product of the
+ * transition matrix with the corresponding indicators.
+ *
+ * The work is split into independent (category, block of sites) tasks,
+ * processed concurrently when the model's likelihood options ask for more
+ * than one thread.
+ *
+ * The category and site specific log likelihoods are the same as those
+ * obtained by calling DiscreteFactorGraph.siteLogNormalizations() on the
+ * root marginals.
+ */
+public class FelsensteinPruning
+{
+  private final MultiCategorySubstitutionModel<?> model;
+  private final TreeObservations observations;
+
+  private final int nCategories, nSites, nStates;
+  private final PartialsPrecision precision;
+  private final PartialsStorage storage;
+
+  /**
+   * Null if the observations are null or could not be encoded.
+   */
+  private final TipStates tipStates;
+
+  private Indexer<TreeNode> nodeIndexer = null;
+
+  /**
+   * node index -> code of each site, or null if the node is not observed.
+   */
+  private short [][] tipCodes;
+
+  /**
+   * node index -> buffer (0 or 1) -> (category, site, state), i.e. entry
+   * (category * nSites + site) * nStates + state
+   *
+   * Allocated the first time a buffer is computed, so that leaves read 
+   * from their codes do not use any.
+   */
+  private PartialsArray [][] partials;
+
+  /**
+   * Creates the partials arrays, and takes them back when the tree is re-indexed.
+   */
+  private PartialsArray.Allocator allocator = null;
+
+  /**
+   * node index -> buffer (0 or 1) -> (category, site), i.e. entry category * nSites + site
+   *
+   * Base 2 exponent of the factors divided out of the partials to avoid underflow.
+   */
+  private int [][][] scaleExponents;
+
+  private static final double LOG_2 = Math.log(2.0);
+
+  /**
+   * node index -> buffer (0 or 1) -> what was used to compute it, or null if invalid.
+   */
+  private BufferInputs [][] bufferInputs;
+
+  /**
+   * node index -> buffer currently in use.
+   */
+  private int [] currentBuffers;
+
+  private long nextVersion = 0;
+
+  /**
+   * Rate matrices, stationary distributions and emission models used to
+   * compute the buffers, flattened, one per category.
+   */
+  private double [][] processSignatures = null;
+
+  /**
+   * category -> parameters used by the last computation (see updatePartials()).
+   */
+  private final double [][] stationaries;
+  private final double [][] rateMatrices;
+  private final CTMC [] processes;
+  private final RateMatrixToEmissionModel [] emissionModels;
+  private final long [] versions;
+  private final double [][][] tipVectors;
+
+  private long nRecomputedNodes = 0;
+
+  /**
+   * Work arrays of branchLengthDerivatives(), kept between calls: 0, 1, 2 -> category 
+   * -> child node index -> P(t), Q P(t), Q^2 P(t) for the edge above it, flattened,
+   * and one workspace per block of sites. Null until needed, reset by index().
+   */
+  private double [][][][] derivativeTransitions = null;
+  private DerivativeWorkspace [] derivativeWorkspaces = null;
+
+  public FelsensteinPruning(
+      MultiCategorySubstitutionModel<?> model,
+      TreeObservations observations)
+  {
+    this.model = model;
+    this.observations = observations;
+    this.nCategories = model.nCategories();
+    this.nSites = observations == null ? model.nSites : observations.nSites();
+    this.nStates = model.rateMatrixMixture.getRateMatrix(0).getRateMatrix().length;
+    this.stationaries = new double[nCategories][];
+    this.rateMatrices = new double[nCategories][];
+    this.processes = new CTMC[nCategories];
+    this.emissionModels = new RateMatrixToEmissionModel[nCategories];
+    this.versions = new long[nCategories];
+    this.tipVectors = new double[nCategories][][];
+    this.precision = model.likelihoodOptions.precision;
+    this.storage = model.likelihoodOptions.storage;
+    this.tipStates = TipStates.of(observations);
+  }
+
+  /**
+   * @return If this can be used to compute the likelihood of the given observations.
+   */
+  public boolean isCompatible(TreeObservations observations)
+  {
+    return this.observations == observations && nCategories == model.nCategories() && 
+        precision == model.likelihoodOptions.precision && storage == model.likelihoodOptions.storage;
+  }
+
+  /**
+   * Warning: slightly unusual order: category -> site
+   *
+   * @return Entry [c][s] is the log probability of the data at site s assuming category c.
+   */
+  public synchronized double [][] categoryAndSiteLogLikelihoods(UnrootedTree tree, TreeNode root)
+  {
+    final int rootIndex = updatePartials(tree, root);
+    final double [][] result = new double[nCategories][nSites];
+    final double [] sums = new double[nCategories];
+    final int [] exponents = new int[nCategories];
+    for (int site = 0; site < nSites; site++)
+    {
+      rootLikelihoods(rootIndex, site, sums, exponents);
+      for (int category = 0; category < nCategories; category++)
+        result[category][site] = Math.log(sums[category]) + exponents[category] * LOG_2;
+    }
+    return result;
+  }
+
+  /**
+   * The categories are mixed according to the prior probabilities given by
+   * the model's rate matrix mixture, with one logarithm per site.
+   *
+   * @return Entry [s] is the log probability of the data at site s.
+   */
+  public synchronized double [] siteLogLikelihoods(UnrootedTree tree, TreeNode root)
+  {
+    final int rootIndex = updatePartials(tree, root);
+    final double [] priors = new double[nCategories];
+    final List<Double> logPriors = model.rateMatrixMixture.getLogPriorProbabilities();
+    for (int category = 0; category < nCategories; category++)
+      priors[category] = Math.exp(logPriors.get(category));
+    final double [] result = new double[nSites];
+    final double [] sums = new double[nCategories];
+    final int [] exponents = new int[nCategories];
+    for (int site = 0; site < nSites; site++)
+    {
+      rootLikelihoods(rootIndex, site, sums, exponents);
+      result[site] = mixCategories(sums, exponents, priors, null);
+    }
+    return result;
+  }
+
+  /**
+   * First and second derivatives of the log likelihood with respect to each
+   * branch length, computed with one pass over the tree per site (after 
+   * bringing the partials up to date), using d P(t) / dt = Q P(t).
+   *
+   * For each edge from a parent p to a child c, the likelihood of a site and 
+   * category is D' P(t) U, where U are the partials of c and D is the product 
+   * of the contributions of the rest of the tree at p, computed top-down.
+   * The derivatives are D' Q P(t) U and D' Q^2 P(t) U. Only their ratios to the
+   * likelihood are needed, so D can be normalized arbitrarily.
+   *
+   * @param siteWeights Number of times each site should be counted, or null for one.
+   */
+  public synchronized BranchLengthDerivatives branchLengthDerivatives(UnrootedTree tree, TreeNode root, final int [] siteWeights)
+  {
+    final int rootIndex = updatePartials(tree, root);
+    final int nNodes = nodeIndexer.size();
+    final List<Pair<TreeNode,TreeNode>> orientedEdges = tree.getRootedEdges(root);
+    // root first, then top-down
+    final int [] preOrder = new int[orientedEdges.size() + 1];
+    final double [] branchLengths = new double[nNodes];
+    preOrder[0] = rootIndex;
+    for (int e = 0; e < orientedEdges.size(); e++)
+    {
+      final Pair<TreeNode,TreeNode> edge = orientedEdges.get(e);
+      preOrder[e + 1] = nodeIndexer.o2i(edge.getRight());
+      branchLengths[preOrder[e + 1]] = tree.getBranchLength(edge.getLeft(), edge.getRight());
+    }
+
+    if (derivativeTransitions == null)
+      derivativeTransitions = new double[3][nCategories][nNodes][];
+    final double [][][]
+      transitions = derivativeTransitions[0],
+      firstTransitions = derivativeTransitions[1],
+      secondTransitions = derivativeTransitions[2];
+    int maxChildren = 0;
+    for (int node : preOrder)
+      maxChildren = Math.max(maxChildren, bufferInputs[node][currentBuffers[node]].children.length);
+    for (int category = 0; category < nCategories; category++)
+      for (int e = 1; e < preOrder.length; e++)
+      {
+        final int node = preOrder[e];
+        if (transitions[category][node] == null)
+        {
+          transitions[category][node] = new double[nStates * nStates];
+          firstTransitions[category][node] = new double[nStates * nStates];
+          secondTransitions[category][node] = new double[nStates * nStates];
+        }
+        fillTransition(model.getTransitionMatrixCache(), versions[category], category, processes[category], branchLengths[node], transitions[category][node]);
+        multiply(rateMatrices[category], transitions[category][node], firstTransitions[category][node]);
+        multiply(rateMatrices[category], firstTransitions[category][node], secondTransitions[category][node]);
+      }
+
+    final double [] priors = new double[nCategories];
+    final List<Double> logPriors = model.rateMatrixMixture.getLogPriorProbabilities();
+    for (int category = 0; category < nCategories; category++)
+      priors[category] = Math.exp(logPriors.get(category));
+
+    // blocks of sites are independent; their sums are added in a fixed order below
+    final int blockSize = model.likelihoodOptions.siteBlockSize;
+    final int nBlocks = LikelihoodOptions.nBlocks(nSites, blockSize);
+    if (derivativeWorkspaces == null || derivativeWorkspaces.length != nBlocks)
+      derivativeWorkspaces = new DerivativeWorkspace[nBlocks];
+    for (int block = 0; block < nBlocks; block++)
+      if (derivativeWorkspaces[block] == null || derivativeWorkspaces[block].inside.length < maxChildren)
+        derivativeWorkspaces[block] = new DerivativeWorkspace(nNodes, nCategories, nStates, maxChildren);
+    ParallelTasks.map(nBlocks, model.likelihoodOptions.nThreads, new Task<Void>() {
+      @Override
+      public Void compute(int block)
+      {
+        final DerivativeWorkspace workspace = derivativeWorkspaces[block];
+        final double [] first = workspace.first, second = workspace.second;
+        final double [] siteFirst = workspace.siteFirst, siteSecond = workspace.siteSecond;
+        Arrays.fill(first, 0.0);
+        Arrays.fill(second, 0.0);
+        workspace.logLikelihood = 0.0;
+        for (int site = block * blockSize; site < Math.min(nSites, (block + 1) * blockSize); site++)
+        {
+          rootLikelihoods(rootIndex, site, workspace.sums, workspace.exponents);
+          final double siteLogLikelihood = mixCategories(workspace.sums, workspace.exponents, priors, workspace.posteriors);
+          final int weight = siteWeights == null ? 1 : siteWeights[site];
+          workspace.logLikelihood += weight * siteLogLikelihood;
+          if (siteLogLikelihood == Double.NEGATIVE_INFINITY)
+            continue;
+          Arrays.fill(siteFirst, 0.0);
+          Arrays.fill(siteSecond, 0.0);
+          for (int category = 0; category < nCategories; category++)
+            if (workspace.posteriors[category] > 0.0)
+              accumulateDerivatives(category, site, preOrder, transitions[category], firstTransitions[category], secondTransitions[category], 
+                  workspace.posteriors[category], workspace);
+          for (int e = 1; e < preOrder.length; e++)
+          {
+            final int node = preOrder[e];
+            first[node] += weight * siteFirst[node];
+            second[node] += weight * (siteSecond[node] - siteFirst[node] * siteFirst[node]);
+          }
+        }
+        return null;
+      }
+    });
+
+    double logLikelihood = 0.0;
+    final double [] first = new double[nNodes], second = new double[nNodes];
+    for (int block = 0; block < nBlocks; block++)
+    {
+      final DerivativeWorkspace workspace = derivativeWorkspaces[block];
+      for (int node = 0; node < nNodes; node++)
+      {
+        first[node] += workspace.first[node];
+        second[node] += workspace.second[node];
+      }
+      logLikelihood += workspace.logLikelihood;
+    }
+    Map<UnorderedPair<TreeNode, TreeNode>, Double>
+      firstDerivatives = Maps.newLinkedHashMap(),
+      secondDerivatives = Maps.newLinkedHashMap();
+    for (Pair<TreeNode,TreeNode> edge : orientedEdges)
+    {
+      final UnorderedPair<TreeNode, TreeNode> key = UnorderedPair.of(edge.getLeft(), edge.getRight());
+      final int node = nodeIndexer.o2i(edge.getRight());
+      firstDerivatives.put(key, first[node]);
+      secondDerivatives.put(key, second[node]);
+    }
+    return new BranchLengthDerivatives(logLikelihood, firstDerivatives, secondDerivatives);
+  }
+
+  /**
+   * Bring the partials up to date with the parent end of the given edge as the root,
+   * and collect, for each category and site, the partials U of the child and the
+   * product D of the contributions of the rest of the tree at the parent (see
+   * EdgeLikelihood). Rerooting at neighbouring nodes only recomputes the buffers
+   * on the path between them, so visiting the edges in traversal order is cheap.
+   *
+   * @param siteWeights Number of times each site should be counted, or null for one.
+   * @param workspace Arrays of the result, see EdgeLikelihood.Workspace; the
+   *   EdgeLikelihood previously built with it should no longer be used.
+   */
+  public synchronized EdgeLikelihood edgeLikelihood(UnrootedTree tree, TreeNode parent, TreeNode child, int [] siteWeights, EdgeLikelihood.Workspace workspace)
+  {
+    if (!tree.getTopology().containsEdge(parent, child))
+      throw new RuntimeException("Not an edge of the tree: " + parent + ", " + child);
+    final int rootIndex = updatePartials(tree, parent);
+    final int childIndex = nodeIndexer.o2i(child);
+    final BufferInputs inputs = bufferInputs[rootIndex][currentBuffers[rootIndex]];
+    workspace.ensureSize(nCategories, nSites, nStates);
+    final double [][] outside = workspace.outside(), inside = workspace.inside();
+    final int [][] exponents = workspace.exponents();
+    final double [] transition = new double[nStates * nStates];
+    final double [] work = new double[nStates], projected = new double[nStates];
+    for (int category = 0; category < nCategories; category++)
+    {
+      final double [] stationary = stationaries[category];
+      for (int site = 0; site < nSites; site++)
+      {
+        final int offset = site * nStates;
+        ownVector(rootIndex, category, site, work);
+        for (int state = 0; state < nStates; state++)
+          outside[category][offset + state] = stationary[state] * work[state];
+        childVector(childIndex, category, site, work);
+        System.arraycopy(work, 0, inside[category], offset, nStates);
+        exponents[category][site] = childExponent(childIndex, category, site);
+      }
+      for (int i = 0; i < inputs.children.length; i++)
+      {
+        final int sibling = inputs.children[i];
+        if (sibling == childIndex)
+          continue;
+        fillTransition(model.getTransitionMatrixCache(), versions[category], category, processes[category], inputs.branchLengths[i], transition);
+        for (int site = 0; site < nSites; site++)
+        {
+          final int offset = site * nStates;
+          childVector(sibling, category, site, work);
+          for (int x = 0; x < nStates; x++)
+          {
+            final int row = x * nStates;
+            double sum = 0.0;
+            for (int y = 0; y < nStates; y++)
+              sum += transition[row + y] * work[y];
+            projected[x] = sum;
+          }
+          double max = 0.0;
+          for (int x = 0; x < nStates; x++)
+          {
+            outside[category][offset + x] *= projected[x];
+            max = Math.max(max, outside[category][offset + x]);
+          }
+          exponents[category][site] += childExponent(sibling, category, site);
+          if (max == 0.0 || (max >= precision.minUnscaled && max <= precision.maxUnscaled))
+            continue;
+          final int exponent = Math.getExponent(max);
+          for (int x = 0; x < nStates; x++)
+            outside[category][offset + x] = Math.scalb(outside[category][offset + x], -exponent);
+          exponents[category][site] += exponent;
+        }
+      }
+    }
+    final double [][] categoryRateMatrices = new double[nCategories][];
+    final double [] priors = new double[nCategories];
+    final List<Double> logPriors = model.rateMatrixMixture.getLogPriorProbabilities();
+    for (int category = 0; category < nCategories; category++)
+    {
+      categoryRateMatrices[category] = rateMatrices[category].clone();
+      priors[category] = Math.exp(logPriors.get(category));
+    }
+    return new EdgeLikelihood(processes.clone(), model.getTransitionMatrixCache(), versions.clone(),
+        categoryRateMatrices, priors, workspace, siteWeights, model.likelihoodOptions.nThreads, model.likelihoodOptions.siteBlockSize);
+  }
+
+  /**
+   * @return The base 2 exponent of the factor divided out of the vector returned by childVector().
+   */
+  private int childExponent(int node, int category, int site)
+  {
+    if (tipCodes[node] != null && bufferInputs[node][currentBuffers[node]].children.length == 0)
+      return 0;
+    return scaleExponents[node][currentBuffers[node]][category * nSites + site];
+  }
+
+  /**
+   * For one category and site, visit the nodes top-down, adding to siteFirst[c] and 
+   * siteSecond[c] the ratios of the first and second derivatives to the likelihood
+   * for the edge above each node c, weighted by the given posterior probability 
+   * of the category (siteFirst and siteSecond are those of the workspace).
+   */
+  private void accumulateDerivatives(
+      int category, int site, int [] preOrder, 
+      double [][] transitions, double [][] firstTransitions, double [][] secondTransitions, 
+      double posterior, DerivativeWorkspace workspace)
+  {
+    final double [][] outside = workspace.outside, inside = workspace.inside, projected = workspace.projected;
+    final double [] complement = workspace.complement, work = workspace.work;
+    final double [] siteFirst = workspace.siteFirst, siteSecond = workspace.siteSecond;
+    final double [] stationary = stationaries[category];
+    final int rootIndex = preOrder[0];
+    ownVector(rootIndex, category, site, outside[rootIndex]);
+    for (int state = 0; state < nStates; state++)
+      outside[rootIndex][state] *= stationary[state];
+    for (int node : preOrder)
+    {
+      final int [] children = bufferInputs[node][currentBuffers[node]].children;
+      if (children.length == 0)
+        continue;
+      // partials of the children, and their images under P(t)
+      for (int i = 0; i < children.length; i++)
+      {
+        childVector(children[i], category, site, inside[i]);
+        multiply(transitions[children[i]], inside[i], nStates, projected[i]);
+      }
+      for (int i = 0; i < children.length; i++)
+      {
+        final int child = children[i];
+        // everything except the subtree of the child, at the node
+        for (int x = 0; x < nStates; x++)
+        {
+          double product = outside[node][x];
+          for (int j = 0; j < children.length; j++)
+            if (j != i)
+              product *= projected[j][x];
+          complement[x] = product;
+        }
+        final double likelihood = dot(complement, projected[i]);
+        if (likelihood > 0.0)
+        {
+          multiply(firstTransitions[child], inside[i], nStates, work);
+          siteFirst[child] += posterior * dot(complement, work) / likelihood;
+          multiply(secondTransitions[child], inside[i], nStates, work);
+          siteSecond[child] += posterior * dot(complement, work) / likelihood;
+        }
+        if (bufferInputs[child][currentBuffers[child]].children.length == 0)
+          continue;
+        // propagate down the edge: outside(y) = own(y) sum_x complement(x) P(x, y), normalized
+        final double [] transition = transitions[child];
+        final double [] childOutside = outside[child];
+        ownVector(child, category, site, childOutside);
+        double max = 0.0;
+        for (int y = 0; y < nStates; y++)
+        {
+          double sum = 0.0;
+          for (int x = 0; x < nStates; x++)
+            sum += complement[x] * transition[x * nStates + y];
+          childOutside[y] *= sum;
+          max = Math.max(max, childOutside[y]);
+        }
+        if (max > 0.0)
+          for (int y = 0; y < nStates; y++)
+            childOutside[y] /= max;
+      }
+    }
+  }
+
+  /**
+   * Fill result with the partials of the given node (a leaf read from its codes, or
+   * a node with buffers), up to a positive factor.
+   */
+  private void childVector(int node, int category, int site, double [] result)
+  {
+    if (tipCodes[node] != null && bufferInputs[node][currentBuffers[node]].children.length == 0)
+      System.arraycopy(tipVectors[category][tipCodes[node][site]], 0, result, 0, nStates);
+    else
+      partials[node][currentBuffers[node]].read((category * nSites + site) * nStates, result, nStates);
+  }
+
+  /**
+   * Fill result with the contribution of the observations at the node itself
+   * (see recompute()), ones if it is not observed.
+   */
+  private void ownVector(int node, int category, int site, double [] result)
+  {
+    if (tipCodes[node] != null)
+    {
+      System.arraycopy(tipVectors[category][tipCodes[node][site]], 0, result, 0, nStates);
+      return;
+    }
+    final double [][] observation = observation(node);
+    if (observation == null)
+    {
+      Arrays.fill(result, 1.0);
+      return;
+    }
+    final RateMatrixToEmissionModel emissionModel = emissionModels[category];
+    if (emissionModel == null)
+    {
+      System.arraycopy(observation[site], 0, result, 0, nStates);
+      return;
+    }
+    multiply(emissionModel.getMatrixStatesToObservationProbabilities(1.0), observation[site], result);
+  }
+
+  /**
+   * Mix the categories, given sums and exponents as computed by rootLikelihoods().
+   *
+   * @param posteriors If not null, filled with the posterior probability of each category.
+   * @return The log probability of the site.
+   */
+  static double mixCategories(double [] sums, int [] exponents, double [] priors, double [] posteriors)
+  {
+    final int nCategories = sums.length;
+    // factor out the largest exponent among the categories with positive probability
+    int maxExponent = Integer.MIN_VALUE;
+    for (int category = 0; category < nCategories; category++)
+      if (sums[category] > 0.0 && priors[category] > 0.0 && exponents[category] > maxExponent)
+        maxExponent = exponents[category];
+    if (maxExponent == Integer.MIN_VALUE)
+    {
+      if (posteriors != null)
+        Arrays.fill(posteriors, 0.0);
+      return Double.NEGATIVE_INFINITY;
+    }
+    double sum = 0.0;
+    for (int category = 0; category < nCategories; category++)
+    {
+      final double term = priors[category] * Math.scalb(sums[category], exponents[category] - maxExponent);
+      if (posteriors != null)
+        posteriors[category] = term;
+      sum += term;
+    }
+    if (posteriors != null)
+      for (int category = 0; category < nCategories; category++)
+        posteriors[category] /= sum;
+    return Math.log(sum) + maxExponent * LOG_2;
+  }
+
+  /**
+   * Bring the buffers in use up to date with the given tree.
+   *
+   * @return The index of the root.
+   */
+  private int updatePartials(UnrootedTree tree, TreeNode root)
+  {
+    if (nodeIndexer == null || !isIndexed(tree))
+      index(tree);
+
+    if (updateProcesses())
+      for (BufferInputs [] inputs : bufferInputs)
+        Arrays.fill(inputs, null);
+    for (int category = 0; category < nCategories; category++)
+      tipVectors[category] = tipVectors(emissionModels[category]);
+
+    // orient the edges
+    final int nNodes = nodeIndexer.size();
+    List<Pair<TreeNode,TreeNode>> orientedEdges = tree.getRootedEdges(root);
+    int [] parents = new int[nNodes];
+    double [] branchLengths = new double[nNodes];
+    int [] nChildren = new int[nNodes];
+    for (Pair<TreeNode,TreeNode> edge : orientedEdges)
+    {
+      final int child = nodeIndexer.o2i(edge.getRight());
+      parents[child] = nodeIndexer.o2i(edge.getLeft());
+      branchLengths[child] = tree.getBranchLength(edge.getLeft(), edge.getRight());
+      nChildren[parents[child]]++;
+    }
+    int [][] children = new int[nNodes][];
+    for (int node = 0; node < nNodes; node++)
+      children[node] = new int[nChildren[node]];
+    Arrays.fill(nChildren, 0);
+    for (Pair<TreeNode,TreeNode> edge : orientedEdges)
+    {
+      final int child = nodeIndexer.o2i(edge.getRight());
+      children[parents[child]][nChildren[parents[child]]++] = child;
+    }
+
+    // find the nodes to recompute; getRootedEdges() returns the edges top-down, so visit them backward, then the root
+    final int rootIndex = nodeIndexer.o2i(root);
+    final List<Integer> recomputedNodes = Lists.newArrayList();
+    for (int e = orientedEdges.size() - 1; e >= 0; e--)
+    {
+      final int node = nodeIndexer.o2i(orientedEdges.get(e).getRight());
+      if (update(node, children, branchLengths))
+        recomputedNodes.add(node);
+    }
+    if (update(rootIndex, children, branchLengths))
+      recomputedNodes.add(rootIndex);
+    nRecomputedNodes += recomputedNodes.size();
+
+    // recompute them, the categories and blocks of sites being independent
+    final int blockSize = model.likelihoodOptions.siteBlockSize;
+    final int nBlocks = LikelihoodOptions.nBlocks(nSites, blockSize);
+    try
+    {
+      ParallelTasks.map(nCategories * nBlocks, model.likelihoodOptions.nThreads, new Task<Void>() {
+        @Override
+        public Void compute(int task)
+        {
+          final int
+            category = task / nBlocks,
+            start = (task % nBlocks) * blockSize,
+            end = Math.min(nSites, start + blockSize);
+          recompute(category, start, end, recomputedNodes, processes[category], emissionModels[category], tipVectors[category], versions[category]);
+          return null;
+        }
+      });
+    }
+    catch (RuntimeException e)
+    {
+      // the buffers may not match their inputs
+      processSignatures = null;
+      throw e;
+    }
+    return rootIndex;
+  }
+
+  /**
+   * @return Number of times the partials of a node had to be recomputed so far (useful for diagnostics).
+   */
+  public long nRecomputedNodes()
+  {
+    return nRecomputedNodes;
+  }
+
+  /**
+   * Make sure the buffer in use for the given node matches its current inputs,
+   * assuming this has been done for its children already.
+   *
+   * @return True if the content of the buffer now in use should be recomputed.
+   */
+  private boolean update(int node, int [][] children, double [] branchLengths)
+  {
+    final int [] nodeChildren = children[node];
+    if (nodeChildren.length == 0 && tipCodes[node] != null)
+    {
+      // read directly from the codes by the parent, see recompute()
+      if (!isTip(bufferInputs[node][currentBuffers[node]]))
+      {
+        // keep the buffer computed when this leaf was the root, in case it becomes the root again
+        final int other = 1 - currentBuffers[node];
+        currentBuffers[node] = other;
+        if (!isTip(bufferInputs[node][other]))
+          bufferInputs[node][other] = new BufferInputs(nodeChildren, new double[0], new long[0], nextVersion++);
+      }
+      return false;
+    }
+    final long [] childVersions = new long[nodeChildren.length];
+    final double [] childBranchLengths = new double[nodeChildren.length];
+    for (int i = 0; i < nodeChildren.length; i++)
+    {
+      final int child = nodeChildren[i];
+      childVersions[i] = bufferInputs[child][currentBuffers[child]].version;
+      childBranchLengths[i] = branchLengths[child];
+    }
+
+    final int current = currentBuffers[node], other = 1 - current;
+    if (matches(bufferInputs[node][current], nodeChildren, childBranchLengths, childVersions))
+      return false;
+    currentBuffers[node] = other;
+    if (matches(bufferInputs[node][other], nodeChildren, childBranchLengths, childVersions))
+      return false;
+
+    // the buffer that was not in use will be recomputed
+    bufferInputs[node][other] = new BufferInputs(nodeChildren, childBranchLengths, childVersions, nextVersion++);
+    if (partials[node][other] == null)
+    {
+      partials[node][other] = allocator.allocate();
+      scaleExponents[node][other] = new int[nCategories * nSites];
+    }
+    return true;
+  }
+
+  /**
+   * Compute the partials of the given nodes (in the given order) for one category
+   * and the sites start (inclusive) to end (exclusive). The vector of each site 
+   * is accumulated in double precision from the observations at the node and the
+   * contributions of all its children, rescaled, then written once, so that with
+   * PartialsPrecision.FLOAT only the final, rescaled vector is rounded.
+   */
+  private void recompute(int category, int start, int end, List<Integer> nodes, CTMC process, RateMatrixToEmissionModel emissionModel, double [][] tipVectors, long version)
+  {
+    final TransitionMatrixCache transitionMatrixCache = model.getTransitionMatrixCache();
+    final double [][] latent2Observation = emissionModel == null ?
+        null :
+        emissionModel.getMatrixStatesToObservationProbabilities(1.0);
+    final double [] work = new double[nStates], childWork = new double[nStates];
+    double [][] transitions = new double[0][], tables = new double[0][];
+    for (int node : nodes)
+    {
+      final int buffer = currentBuffers[node];
+      final BufferInputs inputs = bufferInputs[node][buffer];
+      final int nChildren = inputs.children.length;
+      if (transitions.length < nChildren)
+      {
+        transitions = new double[nChildren][nStates * nStates];
+        tables = new double[nChildren][];
+      }
+      // children read from their codes use the products of P(t) with the vector of 
+      // each code, computed once (for unambiguous codes, these are columns of P(t))
+      final short [][] childCodes = new short[nChildren][];
+      final PartialsArray [] childPartials = new PartialsArray[nChildren];
+      final int [][] childScaleExponents = new int[nChildren][];
+      for (int i = 0; i < nChildren; i++)
+      {
+        final int child = inputs.children[i];
+        fillTransition(transitionMatrixCache, version, category, process, inputs.branchLengths[i], transitions[i]);
+        if (tipCodes[child] != null && isTip(bufferInputs[child][currentBuffers[child]]))
+        {
+          childCodes[i] = tipCodes[child];
+          if (tables[i] == null)
+            tables[i] = new double[tipVectors.length * nStates];
+          for (int code = 0; code < tipVectors.length; code++)
+            multiply(transitions[i], tipVectors[code], nStates, tables[i], code * nStates);
+        }
+        else
+        {
+          childPartials[i] = partials[child][currentBuffers[child]];
+          childScaleExponents[i] = scaleExponents[child][currentBuffers[child]];
+        }
+      }
+      final double [][] observation = tipCodes[node] == null ? observation(node) : null;
+      final PartialsArray partial = partials[node][buffer];
+      final int [] scaleExponent = scaleExponents[node][buffer];
+      for (int site = start; site < end; site++)
+      {
+        final int scaleIndex = category * nSites + site;
+        final int offset = scaleIndex * nStates;
+        // the observations at the node itself
+        if (tipCodes[node] != null)
+          System.arraycopy(tipVectors[tipCodes[node][site]], 0, work, 0, nStates);
+        else if (observation == null)
+          Arrays.fill(work, 1.0);
+        else if (latent2Observation == null)
+          System.arraycopy(observation[site], 0, work, 0, nStates);
+        else
+          multiply(latent2Observation, observation[site], work);
+        // times sum_y P(x, y) child(y) for each child
+        int exponent = 0;
+        for (int i = 0; i < nChildren; i++)
+        {
+          if (childCodes[i] != null)
+          {
+            final double [] table = tables[i];
+            final int tableOffset = childCodes[i][site] * nStates;
+            for (int x = 0; x < nStates; x++)
+              work[x] *= table[tableOffset + x];
+            continue;
+          }
+          final double [] transition = transitions[i];
+          childPartials[i].read(offset, childWork, nStates);
+          for (int x = 0; x < nStates; x++)
+          {
+            final int row = x * nStates;
+            double sum = 0.0;
+            for (int y = 0; y < nStates; y++)
+              sum += transition[row + y] * childWork[y];
+            work[x] *= sum;
+          }
+          exponent += childScaleExponents[i][scaleIndex];
+        }
+        scaleExponent[scaleIndex] = exponent + rescale(work);
+        partial.write(offset, work, nStates);
+      }
+    }
+  }
+
+  /**
+   * If the maximum of the vector is outside [precision.minUnscaled, precision.maxUnscaled],
+   * multiply it by a power of two bringing the maximum in [1, 2). Multiplying by powers 
+   * of two is exact, so rescaling does not introduce round-off error.
+   * 
+   * @return The base 2 exponent of the factor divided out.
+   */
+  private int rescale(double [] vector)
+  {
+    double max = 0.0;
+    for (int state = 0; state < nStates; state++)
+      if (vector[state] > max)
+        max = vector[state];
+    if (max == 0.0 || (max >= precision.minUnscaled && max <= precision.maxUnscaled))
+      return 0;
+    final int exponent = Math.getExponent(max);
+    final double factor = Math.scalb(1.0, -exponent);
+    for (int state = 0; state < nStates; state++)
+      vector[state] *= factor;
+    return exponent;
+  }
+
+  /**
+   * @return The observations at the given node, or null if it is not observed.
+   */
+  private double [][] observation(int node)
+  {
+    final double [][] result = observations == null ?
+        null :
+        (double[][]) observations.get(nodeIndexer.i2o(node));
+    if (result != null && result.length != nSites)
+      throw new RuntimeException("Number of sites in the observations (" + result.length + ") differs from the model (" + nSites + ")");
+    return result;
+  }
+
+  private static boolean isTip(BufferInputs inputs)
+  {
+    return inputs != null && inputs.children.length == 0;
+  }
+
+  private static boolean matches(BufferInputs inputs, int [] children, double [] branchLengths, long [] childVersions)
+  {
+    return inputs != null &&
+        Arrays.equals(inputs.children, children) &&
+        Arrays.equals(inputs.branchLengths, branchLengths) &&
+        Arrays.equals(inputs.childVersions, childVersions);
+  }
+
+  /**
+   * @return For each code, the indicators transformed by the emission model if 
+   *   there is one, or null if the observations are not encoded.
+   */
+  private double [][] tipVectors(RateMatrixToEmissionModel emissionModel)
+  {
+    if (tipStates == null)
+      return null;
+    final double [][] latent2Observation = emissionModel == null ?
+        null :
+        emissionModel.getMatrixStatesToObservationProbabilities(1.0);
+    final double [][] result = new double[tipStates.nCodes()][];
+    for (int code = 0; code < result.length; code++)
+    {
+      final double [] indicators = tipStates.getIndicators(code);
+      if (latent2Observation == null)
+        result[code] = indicators;
+      else
+      {
+        result[code] = new double[nStates];
+        for (int state = 0; state < nStates; state++)
+        {
+          double sum = 0.0;
+          final double [] row = latent2Observation[state];
+          for (int obs = 0; obs < indicators.length; obs++)
+            sum += row[obs] * indicators[obs];
+          result[code][state] = sum;
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Fill sums and exponents so that the probability of the data at the given
+   * site assuming category c is sums[c] * 2^exponents[c].
+   */
+  private void rootLikelihoods(int rootIndex, int site, double [] sums, int [] exponents)
+  {
+    final PartialsArray partial = partials[rootIndex][currentBuffers[rootIndex]];
+    final int [] scaleExponent = scaleExponents[rootIndex][currentBuffers[rootIndex]];
+    for (int category = 0; category < nCategories; category++)
+    {
+      final double [] stationary = stationaries[category];
+      final int scaleIndex = category * nSites + site;
+      final int offset = scaleIndex * nStates;
+      double sum = 0.0;
+      for (int state = 0; state < nStates; state++)
+        sum += stationary[state] * partial.get(offset + state);
+      sums[category] = sum;
+      exponents[category] = scaleExponent[scaleIndex];
+    }
+  }
+
+  /**
+   * Fill in the processes, emission models, rate matrices and rate matrix versions 
+   * (see TransitionMatrixCache) of each category, and check if they differ from
+   * those used to compute the cached buffers.
+   *
+   * @return True if the cached buffers should be discarded.
+   */
+  private boolean updateProcesses()
+  {
+    double [][] signatures = new double[nCategories][];
+    for (int category = 0; category < nCategories; category++)
+    {
+      CTMCParameters parameters = model.rateMatrixMixture.getRateMatrix(category);
+      processes[category] = parameters.getProcess();
+      emissionModels[category] = parameters.getEmissionModel();
+      versions[category] = model.getTransitionMatrixCache().version(category, parameters.getRateMatrix());
+      stationaries[category] = processes[category].stationaryDistribution();
+      rateMatrices[category] = new double[nStates * nStates];
+      flatten(parameters.getRateMatrix(), rateMatrices[category]);
+      signatures[category] = signature(parameters.getRateMatrix(), stationaries[category], emissionModels[category]);
+    }
+    boolean changed = !Arrays.deepEquals(signatures, processSignatures);
+    processSignatures = signatures;
+    return changed;
+  }
+
+  private static double [] signature(double [][] rateMatrix, double [] stationary, RateMatrixToEmissionModel emissionModel)
+  {
+    final double [][] emissions = emissionModel == null ?
+        new double[0][] :
+        emissionModel.getMatrixStatesToObservationProbabilities(1.0);
+    int size = stationary.length;
+    for (double [] row : rateMatrix)
+      size += row.length;
+    for (double [] row : emissions)
+      size += row.length;
+    double [] result = new double[size];
+    int i = 0;
+    for (double [] row : rateMatrix)
+      for (double entry : row)
+        result[i++] = entry;
+    for (double entry : stationary)
+      result[i++] = entry;
+    for (double [] row : emissions)
+      for (double entry : row)
+        result[i++] = entry;
+    return result;
+  }
+
+  private boolean isIndexed(UnrootedTree tree)
+  {
+    if (tree.getTopology().vertexSet().size() != nodeIndexer.size())
+      return false;
+    for (TreeNode node : tree.getTopology().vertexSet())
+      if (!nodeIndexer.containsObject(node))
+        return false;
+    return true;
+  }
+
+  private void index(UnrootedTree tree)
+  {
+    nodeIndexer = new Indexer<TreeNode>(tree.getTopology().vertexSet());
+    final int nNodes = nodeIndexer.size();
+    if ((long) nCategories * nSites * nStates > Integer.MAX_VALUE)
+      throw new RuntimeException("Too many categories, sites and states for one array of partials: " + nCategories + " x " + nSites + " x " + nStates);
+    if (allocator == null)
+      allocator = new PartialsArray.Allocator(nCategories * nSites * nStates, precision, storage);
+    else
+      for (PartialsArray [] nodePartials : partials)
+        for (PartialsArray partial : nodePartials)
+          if (partial != null)
+            allocator.release(partial);
+    partials = new PartialsArray[nNodes][2];
+    scaleExponents = new int[nNodes][2][];
+    tipCodes = new short[nNodes][];
+    if (tipStates != null)
+      for (int node = 0; node < nNodes; node++)
+        tipCodes[node] = tipStates.getCodes(nodeIndexer.i2o(node));
+    bufferInputs = new BufferInputs[nNodes][2];
+    currentBuffers = new int[nNodes];
+    derivativeTransitions = null;
+    derivativeWorkspaces = null;
+  }
+
+  /**
+   * Fill result with the product of two flattened square matrices.
+   */
+  private void multiply(double [] left, double [] right, double [] result)
+  {
+    Arrays.fill(result, 0.0);
+    for (int i = 0; i < nStates; i++)
+      for (int k = 0; k < nStates; k++)
+      {
+        final double factor = left[i * nStates + k];
+        if (factor == 0.0)
+          continue;
+        for (int j = 0; j < nStates; j++)
+          result[i * nStates + j] += factor * right[k * nStates + j];
+      }
+  }
+
+  /**
+   * Fill result with the product of a flattened square matrix with a vector.
+   */
+  private static void multiply(double [] matrix, double [] vector, int size, double [] result)
+  {
+    multiply(matrix, vector, size, result, 0);
+  }
+
+  /**
+   * Same as multiply(double[], double[], int, double[]), writing from the given offset of result.
+   */
+  private static void multiply(double [] matrix, double [] vector, int size, double [] result, int offset)
+  {
+    for (int x = 0; x < size; x++)
+    {
+      double sum = 0.0;
+      for (int y = 0; y < size; y++)
+        sum += matrix[x * size + y] * vector[y];
+      result[offset + x] = sum;
+    }
+  }
+
+  /**
+   * Fill result with the product of a (not necessarily square) matrix with a vector.
+   */
+  private static void multiply(double [][] matrix, double [] vector, double [] result)
+  {
+    for (int x = 0; x < matrix.length; x++)
+    {
+      double sum = 0.0;
+      final double [] row = matrix[x];
+      for (int y = 0; y < vector.length; y++)
+        sum += row[y] * vector[y];
+      result[x] = sum;
+    }
+  }
+
+  private static double dot(double [] first, double [] second)
+  {
+    double sum = 0.0;
+    for (int i = 0; i < first.length; i++)
+      sum += first[i] * second[i];
+    return sum;
+  }
+
+  /**
+   * Fill result with P(t) flattened, directly from the closed form of
+   * HKYCTMC when available (possibly scaled, e.g. by a discrete gamma mixture), 
+   * otherwise through the cache.
+   */
+  static void fillTransition(TransitionMatrixCache cache, long version, int category, CTMC process, double branchLength, double [] result)
+  {
+    double scale = 1.0;
+    CTMC base = process;
+    if (base instanceof ScaledCTMC)
+    {
+      scale = ((ScaledCTMC) base).getRate();
+      base = ((ScaledCTMC) base).getBase();
+    }
+    if (base instanceof HKYCTMC)
+      ((HKYCTMC) base).marginalTransitionProbability(scale * branchLength, result);
+    else
+      flatten(cache.marginalTransitionProbability(version, category, process, branchLength), result);
+  }
+
+  private static void flatten(double [][] matrix, double [] result)
+  {
+    final int size = matrix.length;
+    for (int row = 0; row < size; row++)
+      System.arraycopy(matrix[row], 0, result, row * size, size);
+  }
+
+  /**
+   * Work arrays for one block of sites in branchLengthDerivatives(), and the sums
+   * over the block.
+   */
+  private static final class DerivativeWorkspace
+  {
+    private final double [] first, second, siteFirst, siteSecond;
+    private final double [] sums, posteriors;
+    private final int [] exponents;
+    private final double [][] outside, inside, projected;
+    private final double [] complement, work;
+    private double logLikelihood;
+
+    private DerivativeWorkspace(int nNodes, int nCategories, int nStates, int maxChildren)
+    {
+      this.first = new double[nNodes];
+      this.second = new double[nNodes];
+      this.siteFirst = new double[nNodes];
+      this.siteSecond = new double[nNodes];
+      this.sums = new double[nCategories];
+      this.posteriors = new double[nCategories];
+      this.exponents = new int[nCategories];
+      this.outside = new double[nNodes][nStates];
+      this.inside = new double[maxChildren][nStates];
+      this.projected = new double[maxChildren][nStates];
+      this.complement = new double[nStates];
+      this.work = new double[nStates];
+    }
+  }
+
+  /**
+   * What a buffer was computed from. The version uniquely identifies the content
+   * of the buffer, so that parents can detect changes in their children.
+   */
+  private static final class BufferInputs
+  {
+    private final int [] children;
+    private final double [] branchLengths;
+    private final long [] childVersions;
+    private final long version;
+
+    private BufferInputs(int [] children, double [] branchLengths, long [] childVersions, long version)
+    {
+      this.children = children;
+      this.branchLengths = branchLengths;
+      this.childVersions = childVersions;
+      this.version = version;
+    }
+  }
+}
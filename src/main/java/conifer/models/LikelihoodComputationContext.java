@@ -19,13 +19,39 @@ public class LikelihoodComputationContext
     this.factorGraphs = factorGraphs;
     this.arbitraryRoot = arbitraryRoot;
     this.rootMarginals = null;
+    this.siteLogLikelihoods = null;
+    this.siteWeights = null;
   }
   
   public LikelihoodComputationContext(List<UnaryFactor<TreeNode>> rootMarginals)
+  {
+    this(rootMarginals, null);
+  }
+  
+  /**
+   * @param rootMarginals
+   * @param siteWeights Can be null
+   */
+  public LikelihoodComputationContext(List<UnaryFactor<TreeNode>> rootMarginals, int [] siteWeights)
   {
     this.rootMarginals = rootMarginals;
     this.arbitraryRoot = null;
     this.factorGraphs = null;
+    this.siteLogLikelihoods = null;
+    this.siteWeights = siteWeights;
+  }
+  
+  /**
+   * @param siteLogLikelihoods See FelsensteinPruning.siteLogLikelihoods()
+   * @param siteWeights Can be null
+   */
+  public LikelihoodComputationContext(double [] siteLogLikelihoods, int [] siteWeights)
+  {
+    this.siteLogLikelihoods = siteLogLikelihoods;
+    this.rootMarginals = null;
+    this.arbitraryRoot = null;
+    this.factorGraphs = null;
+    this.siteWeights = siteWeights;
   }
   
   // standard way:
@@ -35,8 +61,40 @@ public class LikelihoodComputationContext
   // or more directly(useful when efficiently visiting neighborhood systems)
   private final List<UnaryFactor<TreeNode>> rootMarginals;
   
+  // or bypassing factor graphs altogether (see FelsensteinPruning)
+  // (in which case the categories are already mixed)
+  private final double [] siteLogLikelihoods;
+  
+  // when sites are compressed into patterns (see SitePatterns), the multiplicity of each; null if not compressed
+  private final int [] siteWeights;
+  
+  /**
+   * @return Number of times the likelihood of the given site (pattern) should be counted.
+   */
+  public int getSiteWeight(int site)
+  {
+    return siteWeights == null ? 1 : siteWeights[site];
+  }
+  
+  public boolean usePruning()
+  {
+    return siteLogLikelihoods != null;
+  }
+  
+  /**
+   * @return Entry [s] is the log probability of site s, marginalizing over the categories.
+   */
+  public double [] getSiteLogLikelihoods()
+  {
+    if (!usePruning())
+      throw new RuntimeException();
+    return siteLogLikelihoods;
+  }
+  
   private boolean useDirectSpec()
   {
+    if (usePruning())
+      throw new RuntimeException("Root marginals are not available when using pruning");
     boolean direct = rootMarginals != null;
     boolean check = factorGraphs != null && arbitraryRoot != null;
     if ((direct && check) || (!direct && ! check))
@@ -0,0 +1,69 @@
+package conifer.models;
+
+import blang.inits.Arg;
+import blang.inits.DefaultValue;
+import conifer.models.PartialsArray.PartialsPrecision;
+import conifer.models.PartialsArray.PartialsStorage;
+
+/**
+ * Options controlling how the likelihood of a MultiCategorySubstitutionModel
+ * is computed. These do not change the value of the likelihood (up to 
+ * round-off errors), only the way it is evaluated.
+ */
+public class LikelihoodOptions
+{
+  @Arg(description = "Algorithm used to compute the likelihood: flat array pruning or bayonet factor graphs")
+  @DefaultValue("PRUNING")
+  public LikelihoodEngine engine = LikelihoodEngine.PRUNING;
+
+  @Arg(description = "Maximum number of transition probability matrices kept in cache (ideally at least the number of categories times the number of edges)")
+  @DefaultValue("4096")
+  public int transitionMatrixCacheSize = 4096;
+
+  @Arg(description = "Memory budget, in megabytes, of the cache of quantities used to compute expected sufficient statistics for each rate matrix and branch length")
+  @DefaultValue("64")
+  public int expectedStatisticsCacheMegabytes = 64;
+
+  @Arg(description = "Print the statistics of the expected statistics cache (hits, misses, evictions, bytes) after each E-step of the rate matrix objective")
+  @DefaultValue("false")
+  public boolean printCacheStatistics = false;
+
+  @Arg(description = "Number of threads used to compute the likelihood, expected statistics and objective (independent rate categories, blocks of sites or edges are processed concurrently; the result does not depend on it)")
+  @DefaultValue("1")
+  public int nThreads = 1;
+
+  @Arg(description = "Number of sites processed together by one thread when computing the likelihood")
+  @DefaultValue("1024")
+  public int siteBlockSize = 1024;
+
+  @Arg(description = "Precision used to store the partial likelihoods of the pruning engine (FLOAT halves the memory, computations are still done in double precision)")
+  @DefaultValue("DOUBLE")
+  public PartialsPrecision precision = PartialsPrecision.DOUBLE;
+
+  @Arg(description = "Where the partial likelihoods of the pruning engine are stored: HEAP, DIRECT (off-heap buffers) or MAPPED (memory mapped temporary files, for alignments larger than the memory)")
+  @DefaultValue("HEAP")
+  public PartialsStorage storage = PartialsStorage.HEAP;
+
+  /**
+   * @return Number of blocks of at most blockSize sites needed to cover nSites sites.
+   */
+  public static int nBlocks(int nSites, int blockSize)
+  {
+    if (blockSize < 1)
+      throw new RuntimeException("The block size should be positive: " + blockSize);
+    return (nSites + blockSize - 1) / blockSize;
+  }
+
+  public static enum LikelihoodEngine
+  {
+    /**
+     * See FelsensteinPruning.
+     */
+    PRUNING,
+
+    /**
+     * See EvolutionaryModelUtils.buildFactorGraphs().
+     */
+    FACTOR_GRAPH
+  }
+}
@@ -11,7 +11,6 @@ import conifer.ctmc.expfam.SerializedExpFamMixture;
 
 import org.apache.commons.lang3.tuple.Pair;
 import org.ejml.simple.SimpleMatrix;
-import org.jblas.DoubleMatrix;
 import org.jgrapht.UndirectedGraph;
 
 import bayonet.distributions.Multinomial;
@@ -25,6 +24,7 @@ import bayonet.marginal.algo.SumProduct;
 import bayonet.math.NumericalUtils;
 import blang.inits.ConstructorArg;
 import blang.inits.DesignatedConstructor;
+import blang.runtime.internals.objectgraph.SkipDependency;
 import briefj.BriefMath;
 import briefj.collections.Counter;
 import briefj.collections.UnorderedPair;
@@ -33,10 +33,12 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 import conifer.EvolutionaryModel;
+import conifer.SitePatterns;
 import conifer.TopologyUtils;
 import conifer.TreeNode;
 import conifer.UnrootedTree;
 import conifer.io.TreeObservations;
+import conifer.models.ParallelTasks.Task;
 
 
 /**
@@ -62,11 +64,56 @@ public class MultiCategorySubstitutionModel<T extends RateMatrixMixture> impleme
 
     public final int nSites;
 
+    public final LikelihoodOptions likelihoodOptions;
+
+    /**
+     * Partial likelihoods kept between evaluations so that local changes to the
+     * tree only trigger local recomputations. Created lazily, and recreated when 
+     * the observations are not compatible with the previous ones.
+     */
+    @SkipDependency(isMutable = false)
+    private FelsensteinPruning pruning = null;
+
+    /**
+     * Transition matrices of each category for recently seen branch lengths, at most 
+     * likelihoodOptions.transitionMatrixCacheSize of them, used by the pruning engine.
+     */
+    @SkipDependency(isMutable = false)
+    private final TransitionMatrixCache transitionMatrixCache;
+
+    /**
+     * Decompositions of the rate matrices and kernels of each branch length used by 
+     * getTotalExpectedStatistics(), within likelihoodOptions.expectedStatisticsCacheMegabytes.
+     */
+    @SkipDependency(isMutable = false)
+    private final ExpectedStatisticsCache expectedStatisticsCache;
+
     @DesignatedConstructor
-    public MultiCategorySubstitutionModel(@ConstructorArg("mixture") T rateMatrixMixture, @ConstructorArg("nSites") int nSites)
+    public MultiCategorySubstitutionModel(
+            @ConstructorArg("mixture") T rateMatrixMixture,
+            @ConstructorArg("nSites") int nSites,
+            @ConstructorArg("likelihood") LikelihoodOptions likelihoodOptions)
     {
         this.rateMatrixMixture = rateMatrixMixture;
         this.nSites = nSites;
+        this.likelihoodOptions = likelihoodOptions;
+        this.transitionMatrixCache = new TransitionMatrixCache(likelihoodOptions.transitionMatrixCacheSize);
+        this.expectedStatisticsCache = new ExpectedStatisticsCache(likelihoodOptions.expectedStatisticsCacheMegabytes * 1024L * 1024L);
+    }
+
+    public TransitionMatrixCache getTransitionMatrixCache()
+    {
+        return transitionMatrixCache;
+    }
+
+    public ExpectedStatisticsCache getExpectedStatisticsCache()
+    {
+        return expectedStatisticsCache;
+    }
+
+    public MultiCategorySubstitutionModel(T rateMatrixMixture, int nSites)
+    {
+        this(rateMatrixMixture, nSites, new LikelihoodOptions());
     }
 
     /**
@@ -264,7 +311,7 @@ public class MultiCategorySubstitutionModel<T extends RateMatrixMixture> impleme
         final int categoryIndex = context.getFactorGraphIndex();
         CTMC ctmc = getCTMC(context.getCache(), categoryIndex);
         double branchLength = context.getBranchLength(parent, children);
-        double [][] transitionMatrix = ctmc.marginalTransitionProbability(branchLength);
+        double [][] transitionMatrix = transitionMatrixCache.marginalTransitionProbability(getRateMatrixVersion(context.getCache(), categoryIndex, ctmc), categoryIndex, ctmc, branchLength);
         context.getDiscreteFactorGraph().setBinary(parent, children, new SimpleMatrix(transitionMatrix));
     }
 
@@ -279,6 +326,17 @@ public class MultiCategorySubstitutionModel<T extends RateMatrixMixture> impleme
         return result;
     }
 
+    private final Object versionKey = new Object();
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private long getRateMatrixVersion(Map cache, int categoryIndex, CTMC ctmc)
+    {
+        if (cache.containsKey(versionKey))
+            return (Long) cache.get(versionKey);
+        long result = transitionMatrixCache.version(categoryIndex, ctmc.getRateMatrix());
+        cache.put(versionKey, result);
+        return result;
+    }
+
     @Override
     public void buildInitialDistribution(TreeNode node,
                                          LikelihoodFactoryContext context)
@@ -286,6 +344,8 @@ public class MultiCategorySubstitutionModel<T extends RateMatrixMixture> impleme
         final int categoryIndex = context.getFactorGraphIndex();
         CTMC ctmc = getCTMC(context.getCache(), categoryIndex);
         double [] stationary = ctmc.stationaryDistribution();
+        // the observations may be compressed into fewer sites (see SitePatterns)
+        final int nSites = context.getObservations() == null ? this.nSites : context.getObservations().nSites();
         double [][] allStatios = new double[nSites][stationary.length];
         for (int siteIndex = 0; siteIndex < nSites; siteIndex++)
             allStatios[siteIndex] = stationary;
@@ -293,24 +353,105 @@ public class MultiCategorySubstitutionModel<T extends RateMatrixMixture> impleme
     }
 
     @Override
-    public double computeLogLikelihood(LikelihoodComputationContext context)
+    public LikelihoodComputationContext buildLikelihoodComputationContext(UnrootedTree tree, TreeNode root, TreeObservations observations)
     {
-        // Note: not particularly efficient: lots of logs and array accessed in bad ways,
-        // but this occurs only at one point of the tree, so should not be a huge bottleneck in large trees
-        // (but could be when the number of sites is large; in which case we could rewrite this with scalings)
-        List<UnaryFactor<TreeNode>> rootMarginals = context.getRootMarginals();
-        final int nCat = nCategories();
-        List<Double> categoryPriorLogPrs = rateMatrixMixture.getLogPriorProbabilities();
-        double[][] categoryAndSiteSpecificLikelihoods = categoryAndSiteSpecificLikelihoods(rootMarginals);
-        final int nSites = categoryAndSiteSpecificLikelihoods[0].length;
-        final double [] workArray = new double[nCat];
-        double sum = 0.0;
-        for (int s = 0; s < nSites; s++)
+        // evaluate each distinct column once, and count it as many times as it occurs
+        SitePatterns patterns = SitePatterns.of(observations);
+        int [] weights = patterns == null ? null : patterns.getWeights();
+        switch (likelihoodOptions.engine)
         {
-            for (int c = 0; c < nCat; c++)
-                workArray[c] = categoryAndSiteSpecificLikelihoods[c][s] + categoryPriorLogPrs.get(c);
-            sum += NumericalUtils.logAdd(workArray);
+            case PRUNING :
+                return new LikelihoodComputationContext(getPruning(patterns).siteLogLikelihoods(tree, root), weights);
+            case FACTOR_GRAPH :
+                List<FactorGraph<TreeNode>> factorGraphs = EvolutionaryModelUtils.buildFactorGraphs(this, tree, root, patterns, true, likelihoodOptions.nThreads);
+                return new LikelihoodComputationContext(EvolutionaryModelUtils.getRootMarginalsFromFactorGraphs(factorGraphs, root, likelihoodOptions.nThreads), weights);
+            default :
+                throw new RuntimeException();
         }
+    }
+
+    private synchronized FelsensteinPruning getPruning(TreeObservations patterns)
+    {
+        if (pruning == null || !pruning.isCompatible(patterns))
+            pruning = new FelsensteinPruning(this, patterns);
+        return pruning;
+    }
+
+    /**
+     * Computed with the pruning engine (whatever the value of likelihoodOptions.engine),
+     * in time comparable to a few likelihood evaluations.
+     * 
+     * @return The log likelihood and its first and second derivatives with respect to 
+     *    each branch length, see FelsensteinPruning.branchLengthDerivatives()
+     */
+    public BranchLengthDerivatives branchLengthDerivatives(UnrootedTree tree, TreeNode root, TreeObservations observations)
+    {
+        SitePatterns patterns = SitePatterns.of(observations);
+        return getPruning(patterns).branchLengthDerivatives(tree, root, patterns == null ? null : patterns.getWeights());
+    }
+
+    /**
+     * Computed with the pruning engine (whatever the value of likelihoodOptions.engine).
+     *
+     * @return The log likelihood as a function of the length of the edge between parent
+     *    and child, the other branch lengths being fixed, see FelsensteinPruning.edgeLikelihood()
+     */
+    public EdgeLikelihood edgeLikelihood(UnrootedTree tree, TreeNode parent, TreeNode child, TreeObservations observations)
+    {
+        return edgeLikelihood(tree, parent, child, observations, new EdgeLikelihood.Workspace());
+    }
+
+    /**
+     * As above, but with the arrays of the result taken from the workspace, so that
+     * they are not reallocated for each edge. The EdgeLikelihood previously built
+     * with the same workspace should no longer be used.
+     */
+    public EdgeLikelihood edgeLikelihood(UnrootedTree tree, TreeNode parent, TreeNode child, TreeObservations observations, EdgeLikelihood.Workspace workspace)
+    {
+        SitePatterns patterns = SitePatterns.of(observations);
+        return getPruning(patterns).edgeLikelihood(tree, parent, child, patterns == null ? null : patterns.getWeights(), workspace);
+    }
+
+    @Override
+    public double computeLogLikelihood(final LikelihoodComputationContext context)
+    {
+        // Note: with factor graphs, not particularly efficient: lots of logs and array accessed in bad ways,
+        // but this occurs only at one point of the tree, so should not be a huge bottleneck in large trees.
+        // The pruning engine mixes the categories in linear space instead (see FelsensteinPruning.siteLogLikelihoods())
+        final int nCat = nCategories();
+        final List<Double> categoryPriorLogPrs = rateMatrixMixture.getLogPriorProbabilities();
+        final double[] siteLogLikelihoods = context.usePruning() ?
+                context.getSiteLogLikelihoods() :
+                null;
+        final double[][] categoryAndSiteSpecificLikelihoods = context.usePruning() ?
+                null :
+                categoryAndSiteSpecificLikelihoods(context.getRootMarginals());
+        final int nSites = context.usePruning() ? siteLogLikelihoods.length : categoryAndSiteSpecificLikelihoods[0].length;
+        // sums over blocks of sites, added in a fixed order so that the result does not depend on the number of threads
+        final int blockSize = likelihoodOptions.siteBlockSize;
+        List<Double> blockSums = ParallelTasks.map(LikelihoodOptions.nBlocks(nSites, blockSize), likelihoodOptions.nThreads, new Task<Double>() {
+            @Override
+            public Double compute(int block)
+            {
+                final double [] workArray = new double[nCat];
+                double sum = 0.0;
+                for (int s = block * blockSize; s < Math.min(nSites, (block + 1) * blockSize); s++)
+                {
+                    if (siteLogLikelihoods != null)
+                    {
+                        sum += context.getSiteWeight(s) * siteLogLikelihoods[s];
+                        continue;
+                    }
+                    for (int c = 0; c < nCat; c++)
+                        workArray[c] = categoryAndSiteSpecificLikelihoods[c][s] + categoryPriorLogPrs.get(c);
+                    sum += context.getSiteWeight(s) * NumericalUtils.logAdd(workArray);
+                }
+                return sum;
+            }
+        });
+        double sum = 0.0;
+        for (double blockSum : blockSums)
+            sum += blockSum;
         return sum;
     }
 
@@ -389,61 +530,107 @@ public class MultiCategorySubstitutionModel<T extends RateMatrixMixture> impleme
         return getMarginalCount(observations, tree, TopologyUtils.arbitraryNode(tree));
     }
 
-    public List<Map< Pair<TreeNode, TreeNode>, double [][]>> getMarginalCount(TreeObservations observations, UnrootedTree tree, TreeNode root)
+    /**
+     * @return For each category, a map from each edge (top, bottom) to the expected number of sites 
+     *    with each pair of states (top state, bottom state) at its end points.
+     */
+    public List<Map< Pair<TreeNode, TreeNode>, double [][]>> getMarginalCount(TreeObservations observations, final UnrootedTree tree, TreeNode root)
     {
-
-        List<FactorGraph<TreeNode>> factorGraphs = EvolutionaryModelUtils.buildFactorGraphs(this, tree, root, observations);
-        int nSites = -1;
-        List<SumProduct<TreeNode>> sumProds = Lists.newArrayList();
+        // each distinct column is processed once, its expected counts multiplied by its number of occurrences
+        SitePatterns patterns = SitePatterns.of(observations);
+        final int [] weights = patterns == null ? null : patterns.getWeights();
+        List<FactorGraph<TreeNode>> factorGraphs = EvolutionaryModelUtils.buildFactorGraphs(this, tree, root, patterns, true, likelihoodOptions.nThreads);
+        final List<Pair<TreeNode, TreeNode>> edges = Lists.newArrayList(tree.getRootedEdges(root));
         List<Map<Pair<TreeNode, TreeNode>, double [][]>> marginalCountAllCategory = Lists.newArrayList();
-        List<Map<Double, double [][]>>  listExpmRateMtxScaledByBranch = getExpmRateMtxScaledByBrEachCategory(tree);
-        for(int nCat=0; nCat<factorGraphs.size(); nCat++) {
-            FactorGraph<TreeNode> factorGraph = factorGraphs.get(nCat);
-            SumProduct<TreeNode> sumProd = new SumProduct<TreeNode>(factorGraph);
-            sumProds.add(sumProd);
-            int nStates = rateMatrixMixture.getRateMatrix(0).getRateMatrix().length;
-
-            Map<Pair<TreeNode, TreeNode>, double[][]> marginalCountSingleBranch = new HashMap<Pair<TreeNode, TreeNode>, double[][]>();
-            for (Pair<TreeNode, TreeNode> edge : tree.getRootedEdges(root)) {
-                final TreeNode
-                        topNode = edge.getLeft(),
-                        botNode = edge.getRight();
-                final double branchLength = tree.getBranchLength(topNode, botNode);
-                double[][] marginalCountArray = new double[nStates][nStates];
-                DoubleMatrix marginalCountMtx = new DoubleMatrix(marginalCountArray);
-                double[][] p1TopNode = DiscreteFactorGraph.getNormalizedCopy(sumProd.computeMarginal(topNode));
-                double[][] p1botNode = DiscreteFactorGraph.getNormalizedCopy(sumProd.computeMarginal(botNode));
-                double[][] msgBotNode = DiscreteFactorGraph.getNormalizedCopy(sumProd.getMessage(topNode, botNode));
-                double[][] msgTopNode = DiscreteFactorGraph.getNormalizedCopy(sumProd.getMessage(botNode, topNode));
-                double [][] transitionProb = listExpmRateMtxScaledByBranch.get(nCat).get(branchLength);
-
-                nSites = p1TopNode.length;
-                for (int i = 0; i < nSites; i++) {
-                    double [][] unNormalizedMarginalCount= new double[nStates][nStates];
-                    double sum =0;
-                    for (int j = 0; j < nStates; j++) {
-                        for (int k = 0; k < nStates; k++) {
-
-                            unNormalizedMarginalCount[j][k] = p1TopNode[i][j] * p1botNode[i][k]*transitionProb[j][k] / (msgTopNode[i][j] * msgBotNode[i][k]);
-                            sum += unNormalizedMarginalCount[j][k];
-                        }
-
-                    }
-
-                    DoubleMatrix normalizedMarginalCountArraySingleSite = new DoubleMatrix(unNormalizedMarginalCount).div(sum);
-                    marginalCountMtx.addi(normalizedMarginalCountArraySingleSite);
-
+        for (int cat = 0; cat < factorGraphs.size(); cat++)
+        {
+            // SumProduct computes messages lazily, so the node marginals and the messages are all 
+            // obtained here, sequentially and once per node (instead of once per incident edge)
+            SumProduct<TreeNode> sumProd = new SumProduct<TreeNode>(factorGraphs.get(cat));
+            final Map<TreeNode, double [][]> nodeMarginals = Maps.newHashMap();
+            for (TreeNode node : tree.getTopology().vertexSet())
+                nodeMarginals.put(node, DiscreteFactorGraph.getNormalizedCopy(sumProd.computeMarginal(node)));
+            final List<double [][]> 
+                    messagesToTop = Lists.newArrayList(),
+                    messagesToBot = Lists.newArrayList();
+            for (Pair<TreeNode, TreeNode> edge : edges)
+            {
+                messagesToTop.add(DiscreteFactorGraph.getNormalizedCopy(sumProd.getMessage(edge.getRight(), edge.getLeft())));
+                messagesToBot.add(DiscreteFactorGraph.getNormalizedCopy(sumProd.getMessage(edge.getLeft(), edge.getRight())));
+            }
 
+            final int category = cat;
+            final CTMC ctmc = rateMatrixMixture.getRateMatrix(cat).getProcess();
+            final long version = transitionMatrixCache.version(cat, ctmc.getRateMatrix());
+            // edges are independent, each task accumulates in its own buffer
+            List<double [][]> edgeCounts = ParallelTasks.map(edges.size(), likelihoodOptions.nThreads, new Task<double [][]>() {
+                @Override
+                public double [][] compute(int edgeIndex)
+                {
+                    final TreeNode 
+                            topNode = edges.get(edgeIndex).getLeft(),
+                            botNode = edges.get(edgeIndex).getRight();
+                    double [][] transitionProb = transitionMatrixCache.marginalTransitionProbability(version, category, ctmc, tree.getBranchLength(topNode, botNode));
+                    return marginalCount(nodeMarginals.get(topNode), nodeMarginals.get(botNode), 
+                            messagesToTop.get(edgeIndex), messagesToBot.get(edgeIndex), transitionProb, weights);
                 }
-                marginalCountArray = marginalCountMtx.toArray2();
-                marginalCountSingleBranch.put(edge, marginalCountArray);
-
-            }
+            });
 
+            Map<Pair<TreeNode, TreeNode>, double[][]> marginalCountSingleBranch = new HashMap<Pair<TreeNode, TreeNode>, double[][]>();
+            for (int e = 0; e < edges.size(); e++)
+                marginalCountSingleBranch.put(edges.get(e), edgeCounts.get(e));
             marginalCountAllCategory.add(marginalCountSingleBranch);
         }
         return marginalCountAllCategory;
+    }
 
+    /**
+     * At each site, the joint posterior of the states (j, k) at the end points of an edge is 
+     * proportional to a(j) P(j, k) b(k), where a = (top marginal) / (message to top) and 
+     * b = (bottom marginal) / (message to bottom). These are summed over the sites, weighted 
+     * by the number of occurrences of each site pattern (if weights is not null). Sites with
+     * probability zero under the category are skipped.
+     * 
+     * Only the result and two vectors are allocated.
+     */
+    private static double [][] marginalCount(double [][] topMarginals, double [][] botMarginals, 
+            double [][] messagesToTop, double [][] messagesToBot, double [][] transitionProb, int [] weights)
+    {
+        final int nStates = transitionProb.length;
+        double [][] result = new double[nStates][nStates];
+        final double [] top = new double[nStates], bot = new double[nStates];
+        for (int site = 0; site < topMarginals.length; site++)
+        {
+            // a zero message means that the joint posterior is zero for that state (and so is the marginal)
+            for (int j = 0; j < nStates; j++)
+            {
+                top[j] = messagesToTop[site][j] == 0.0 ? 0.0 : topMarginals[site][j] / messagesToTop[site][j];
+                bot[j] = messagesToBot[site][j] == 0.0 ? 0.0 : botMarginals[site][j] / messagesToBot[site][j];
+            }
+            double sum = 0.0;
+            for (int j = 0; j < nStates; j++)
+            {
+                final double [] row = transitionProb[j];
+                double rowSum = 0.0;
+                for (int k = 0; k < nStates; k++)
+                    rowSum += row[k] * bot[k];
+                sum += top[j] * rowSum;
+            }
+            // sites impossible under this category (e.g. variable sites in an invariant category) do not contribute
+            if (!(sum > 0.0))
+                continue;
+            final double scale = (weights == null ? 1.0 : weights[site]) / sum;
+            for (int j = 0; j < nStates; j++)
+            {
+                final double factor = scale * top[j];
+                if (factor == 0.0)
+                    continue;
+                final double [] row = transitionProb[j], resultRow = result[j];
+                for (int k = 0; k < nStates; k++)
+                    resultRow[k] += factor * row[k] * bot[k];
+            }
+        }
+        return result;
     }
 
     /*
@@ -458,31 +645,70 @@ public class MultiCategorySubstitutionModel<T extends RateMatrixMixture> impleme
     public ExpectedStatistics<CTMCState> getTotalExpectedStatistics(TreeObservations observations, UnrootedTree tree, TreeNode root,
                                                                     CTMCExpFam<CTMCState> model)
     {
+        return getTotalExpectedStatistics(observations, tree, root, model, likelihoodOptions.nThreads);
+    }
 
-        List<Map< Pair<TreeNode, TreeNode>, double [][]>> totalMarginalCount = getMarginalCount(observations, tree);
-        ExpectedStatistics<CTMCState> result = new ExpectedStatistics<CTMCState>(model);
-        for(int i=0; i< nCategories(); i++){
-            for (Pair<TreeNode, TreeNode> edge : tree.getRootedEdges(root)) {
-                final TreeNode
-                        topNode = edge.getLeft(),
-                        botNode = edge.getRight();
-                final double branchLength = tree.getBranchLength(topNode, botNode);
-
-                if(topNode.equals(root))
-                    result.nInit = new DoubleMatrix(totalMarginalCount.get(i).get(edge)).rowSums().toArray();
+    /**
+     * Number of consecutive (category, edge) pairs accumulated into the same ExpectedStatistics 
+     * by getTotalExpectedStatistics(). Fixed, so that the order of the additions does not depend 
+     * on the number of threads.
+     */
+    public static final int EXPECTED_STATISTICS_BLOCK_SIZE = 16;
 
-                result.addMarginalizedPath(totalMarginalCount.get(i).get(edge),  rateMatrixMixture.getRateMatrix(i).getRateMatrix(), branchLength);
+    /**
+     * The (category, edge) pairs are split in blocks of EXPECTED_STATISTICS_BLOCK_SIZE, each 
+     * accumulated into its own ExpectedStatistics concurrently; the blocks are then summed 
+     * in a fixed order (see ExpectedStatistics.sum()), so that the result does not depend on 
+     * the number of threads.
+     */
+    public ExpectedStatistics<CTMCState> getTotalExpectedStatistics(TreeObservations observations, final UnrootedTree tree, TreeNode root,
+                                                                    final CTMCExpFam<CTMCState> model, int nThreads)
+    {
+        final List<Map< Pair<TreeNode, TreeNode>, double [][]>> totalMarginalCount = getMarginalCount(observations, tree, root);
+        final List<Pair<TreeNode, TreeNode>> edges = Lists.newArrayList(tree.getRootedEdges(root));
+        // one decomposition per category, shared by all the edges (and by later calls, if the rate matrix did not change)
+        final List<EigenRateMtxExpectations> decompositions = Lists.newArrayList();
+        for (int i = 0; i < nCategories(); i++)
+            decompositions.add(expectedStatisticsCache.decomposition(i, rateMatrixMixture.getRateMatrix(i).getProcess()));
+
+        final int nEdges = edges.size();
+        final int nPairs = nCategories() * nEdges;
+        final int nBlocks = (nPairs + EXPECTED_STATISTICS_BLOCK_SIZE - 1) / EXPECTED_STATISTICS_BLOCK_SIZE;
+        List<ExpectedStatistics<CTMCState>> contributions = ParallelTasks.map(nBlocks, nThreads, new Task<ExpectedStatistics<CTMCState>>() {
+            @Override
+            public ExpectedStatistics<CTMCState> compute(int block)
+            {
+                ExpectedStatistics<CTMCState> result = new ExpectedStatistics<CTMCState>(model);
+                final int end = Math.min(nPairs, (block + 1) * EXPECTED_STATISTICS_BLOCK_SIZE);
+                for (int pair = block * EXPECTED_STATISTICS_BLOCK_SIZE; pair < end; pair++)
+                {
+                    final int category = pair / nEdges;
+                    final Pair<TreeNode, TreeNode> edge = edges.get(pair % nEdges);
+                    final double branchLength = tree.getBranchLength(edge.getLeft(), edge.getRight());
+                    result.addMarginalizedPath(totalMarginalCount.get(category).get(edge), expectedStatisticsCache.kernel(category, decompositions.get(category), branchLength));
+                }
+                return result;
             }
+        });
+        ExpectedStatistics<CTMCState> result = contributions.isEmpty() ? 
+                new ExpectedStatistics<CTMCState>(model) : 
+                ExpectedStatistics.sum(contributions);
 
-            //EigenCTMC ctmc = new EigenCTMC(rateMatrixMixture.getRateMatrix(i).getRateMatrix());
-            //double [] stationaryDist = ctmc.stationaryDistribution();
-            //result.nInit = new DoubleMatrix(stationaryDist).mul(nSites).toArray();
-            //result.nInit = result.holdTimes;
-
-        }
+        for (int i = 0; i < nCategories(); i++)
+            for (Pair<TreeNode, TreeNode> edge : edges)
+                if (edge.getLeft().equals(root))
+                    result.nInit = rowSums(totalMarginalCount.get(i).get(edge));
 
         return result;
+    }
 
+    private static double [] rowSums(double [][] matrix)
+    {
+        double [] result = new double[matrix.length];
+        for (int i = 0; i < matrix.length; i++)
+            for (int j = 0; j < matrix[i].length; j++)
+                result[i] += matrix[i][j];
+        return result;
     }
 
     @SuppressWarnings({ "unchecked", "rawtypes" })
@@ -493,8 +719,11 @@ public class MultiCategorySubstitutionModel<T extends RateMatrixMixture> impleme
             UnrootedTree tree,
             TreeNode root)
     {
+        // sites sharing a pattern still get independent reconstructions
+        if (observations instanceof SitePatterns)
+            observations = ((SitePatterns) observations).expand();
         // sample full paths for all categories (a bit wasteful, but not more costly than doing posterior inference)
-        List<FactorGraph<TreeNode>> factorGraphs = EvolutionaryModelUtils.buildFactorGraphs(this, tree, root, observations);
+        List<FactorGraph<TreeNode>> factorGraphs = EvolutionaryModelUtils.buildFactorGraphs(this, tree, root, observations, true, likelihoodOptions.nThreads);
         List<Map<TreeNode, double[][]>> allSamples = Lists.newArrayList();
         int nSites = -1;
         List<SumProduct<TreeNode>> sumProds = Lists.newArrayList();
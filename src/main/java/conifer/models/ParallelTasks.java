@@ -0,0 +1,94 @@
+package conifer.models;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Utilities to process independent, indexed units of work (rate categories, 
+ * blocks of sites, blocks of edges, ...) concurrently.
+ *
+ * The pools are shared by all models with the same number of threads (and are
+ * therefore not duplicated when models are cloned). The results are always
+ * returned in index order, so as long as each task is deterministic, the
+ * output does not depend on the number of threads.
+ */
+public class ParallelTasks
+{
+  public static interface Task<T>
+  {
+    public T compute(int index);
+  }
+
+  private static final Map<Integer, ForkJoinPool> pools = Maps.newHashMap();
+
+  public static synchronized ForkJoinPool pool(int nThreads)
+  {
+    if (nThreads < 1)
+      throw new RuntimeException("The number of threads should be positive: " + nThreads);
+    ForkJoinPool result = pools.get(nThreads);
+    if (result == null)
+    {
+      result = new ForkJoinPool(nThreads);
+      pools.put(nThreads, result);
+    }
+    return result;
+  }
+
+  /**
+   * If some tasks fail, all the other tasks are still waited for (so that none of them
+   * is still writing in shared buffers when this returns), then the failure of the 
+   * task with the smallest index is rethrown.
+   * 
+   * @param nTasks
+   * @param nThreads If one, the tasks are ran sequentially in the calling thread.
+   * @param task
+   * @return The list of task.compute(i), for i = 0, 1, ..., nTasks - 1
+   */
+  public static <T> List<T> map(int nTasks, int nThreads, final Task<T> task)
+  {
+    List<T> result = Lists.newArrayList();
+    if (nThreads == 1 || nTasks <= 1)
+    {
+      for (int i = 0; i < nTasks; i++)
+        result.add(task.compute(i));
+      return result;
+    }
+    ForkJoinPool pool = pool(nThreads);
+    List<ForkJoinTask<T>> submitted = Lists.newArrayList();
+    for (int i = 0; i < nTasks; i++)
+    {
+      final int index = i;
+      submitted.add(pool.submit(new Callable<T>() {
+        @Override
+        public T call()
+        {
+          return task.compute(index);
+        }
+      }));
+    }
+    Throwable failure = null;
+    for (ForkJoinTask<T> current : submitted)
+    {
+      try
+      {
+        result.add(current.join());
+      }
+      catch (RuntimeException | Error e)
+      {
+        if (failure == null)
+          failure = e;
+      }
+    }
+    if (failure instanceof Error)
+      throw (Error) failure;
+    if (failure != null)
+      throw (RuntimeException) failure;
+    return result;
+  }
+}
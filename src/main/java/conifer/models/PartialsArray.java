@@ -0,0 +1,472 @@
+package conifer.models;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * A flat array of partial likelihoods, see FelsensteinPruning.
+ *
+ * Computations are always done in double precision, this only controls how
+ * the values are stored between computations. Storing in single precision
+ * halves the memory and bandwidth needed for the partials, which dominate for
+ * models with many states (e.g. proteins and codons).
+ *
+ * The values can also be stored outside of the Java heap, either in direct
+ * buffers or in memory mapped temporary files (see PartialsStorage), so that
+ * large alignments do not require a large heap and do not slow down garbage
+ * collection. Such arrays are obtained from an Allocator, which carves them out
+ * of a few large regions. Arrays are split in chunks of at most 2^26 entries
+ * since a single buffer cannot exceed 2GB. All accesses use absolute indices
+ * (no position state and no per access allocation), so different threads can
+ * access disjoint ranges of the same chunk concurrently.
+ */
+public abstract class PartialsArray
+{
+  public abstract double get(int index);
+
+  public abstract void set(int index, double value);
+
+  /**
+   * Copy the entries from, from + 1, ..., from + length - 1 into destination[0], ..., destination[length - 1]
+   */
+  public abstract void read(int from, double [] destination, int length);
+
+  /**
+   * Copy source[0], ..., source[length - 1] into the entries from, from + 1, ..., from + length - 1
+   */
+  public abstract void write(int from, double [] source, int length);
+
+  /**
+   * Set the entries from (inclusive) to to (exclusive) to the given value.
+   */
+  public abstract void fill(int from, int to, double value);
+
+  public abstract int size();
+
+  public static enum PartialsStorage
+  {
+    /**
+     * Java arrays.
+     */
+    HEAP,
+
+    /**
+     * Direct buffers, allocated outside of the heap (see -XX:MaxDirectMemorySize).
+     */
+    DIRECT,
+
+    /**
+     * Temporary files (in java.io.tmpdir) mapped in memory, paged by the operating system.
+     */
+    MAPPED
+  }
+
+  private static final int CHUNK_SHIFT = 26;
+  private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  /**
+   * Number of arrays sharing an off-heap region, unless that would exceed CHUNK_SIZE entries.
+   */
+  private static final int REGION_ARRAYS = 16;
+
+  /**
+   * Creates the arrays of one engine (see FelsensteinPruning), all of the same size,
+   * and recycles those it no longer uses.
+   *
+   * With DIRECT and MAPPED storage, consecutive arrays are slices of shared regions 
+   * of up to REGION_ARRAYS arrays, so the number of direct buffers or mappings grows 
+   * with the number of arrays divided by REGION_ARRAYS. With MAPPED storage, all the 
+   * regions are mapped from a single temporary file per allocator, deleted as soon
+   * as created. It stays open (so that the file can grow) until the allocator is 
+   * garbage collected, which is also when the off-heap memory is released. Released 
+   * arrays are handed out again by later calls of allocate(), so an engine never
+   * uses more memory than at its peak.
+   *
+   * Not thread safe.
+   */
+  public static final class Allocator
+  {
+    private final int size;
+    private final PartialsPrecision precision;
+    private final PartialsStorage storage;
+    private final List<PartialsArray> released = Lists.newArrayList();
+    private ByteBuffer region = null;
+    private RandomAccessFile file = null;
+    private long fileLength = 0;
+
+    public Allocator(int size, PartialsPrecision precision, PartialsStorage storage)
+    {
+      this.size = size;
+      this.precision = precision;
+      this.storage = storage;
+    }
+
+    /**
+     * @return An array of the allocator's size, with arbitrary content.
+     */
+    public PartialsArray allocate()
+    {
+      if (!released.isEmpty())
+        return released.remove(released.size() - 1);
+      if (storage == PartialsStorage.HEAP)
+        switch (precision)
+        {
+          case DOUBLE :
+            return new DoublePartials(size);
+          case FLOAT :
+            return new FloatPartials(size);
+          default :
+            throw new RuntimeException();
+        }
+      final int nChunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+      ByteBuffer [] chunks = new ByteBuffer[nChunks];
+      for (int chunk = 0; chunk < nChunks; chunk++)
+        chunks[chunk] = slice(Math.min(CHUNK_SIZE, size - chunk * CHUNK_SIZE) * precision.nBytes);
+      switch (precision)
+      {
+        case DOUBLE :
+          return new DoubleBufferPartials(size, chunks);
+        case FLOAT :
+          return new FloatBufferPartials(size, chunks);
+        default :
+          throw new RuntimeException();
+      }
+    }
+
+    /**
+     * The given array, created by this allocator, will not be used by the caller anymore.
+     */
+    public void release(PartialsArray array)
+    {
+      if (array.size() != size)
+        throw new RuntimeException("Not an array of this allocator");
+      released.add(array);
+    }
+
+    /**
+     * @return The next nBytes of the current region, starting a new region if needed.
+     */
+    private ByteBuffer slice(int nBytes)
+    {
+      if (region == null || region.remaining() < nBytes)
+        region = newRegion((int) Math.max(nBytes, Math.min((long) REGION_ARRAYS * size, CHUNK_SIZE) * precision.nBytes));
+      ByteBuffer result = region.duplicate();
+      result.limit(region.position() + nBytes);
+      result = result.slice().order(ByteOrder.nativeOrder());
+      region.position(region.position() + nBytes);
+      return result;
+    }
+
+    private ByteBuffer newRegion(int nBytes)
+    {
+      if (storage == PartialsStorage.DIRECT)
+        return ByteBuffer.allocateDirect(nBytes);
+      try
+      {
+        if (file == null)
+        {
+          File temp = File.createTempFile("conifer-partials", ".bin");
+          temp.deleteOnExit();
+          file = new RandomAccessFile(temp, "rw");
+          // the file stays accessible through the open descriptor on most systems
+          temp.delete();
+        }
+        file.setLength(fileLength + nBytes);
+        ByteBuffer result = file.getChannel().map(MapMode.READ_WRITE, fileLength, nBytes);
+        fileLength += nBytes;
+        return result;
+      }
+      catch (IOException e)
+      {
+        throw new RuntimeException("Could not allocate the partials in a memory mapped file", e);
+      }
+    }
+  }
+
+  public static enum PartialsPrecision
+  {
+    DOUBLE (8, Math.scalb(1.0, -256), Math.scalb(1.0, 256)),
+
+    /**
+     * The smallest normal float is 2^-126, so the partials are rescaled more
+     * often, leaving room for the product of the children's contributions.
+     */
+    FLOAT  (4, Math.scalb(1.0, -24),  Math.scalb(1.0, 24));
+
+    /**
+     * Number of bytes per entry.
+     */
+    public final int nBytes;
+
+    /**
+     * Partials are rescaled when the maximum of a (category, site) vector
+     * is outside [minUnscaled, maxUnscaled].
+     */
+    public final double minUnscaled, maxUnscaled;
+
+    private PartialsPrecision(int nBytes, double minUnscaled, double maxUnscaled)
+    {
+      this.nBytes = nBytes;
+      this.minUnscaled = minUnscaled;
+      this.maxUnscaled = maxUnscaled;
+    }
+  }
+
+  private static final class DoublePartials extends PartialsArray
+  {
+    private final double [] values;
+
+    private DoublePartials(int size)
+    {
+      this.values = new double[size];
+    }
+
+    @Override
+    public double get(int index)
+    {
+      return values[index];
+    }
+
+    @Override
+    public void set(int index, double value)
+    {
+      values[index] = value;
+    }
+
+    @Override
+    public void read(int from, double [] destination, int length)
+    {
+      System.arraycopy(values, from, destination, 0, length);
+    }
+
+    @Override
+    public void write(int from, double [] source, int length)
+    {
+      System.arraycopy(source, 0, values, from, length);
+    }
+
+    @Override
+    public void fill(int from, int to, double value)
+    {
+      Arrays.fill(values, from, to, value);
+    }
+
+    @Override
+    public int size()
+    {
+      return values.length;
+    }
+  }
+
+  private static final class FloatPartials extends PartialsArray
+  {
+    private final float [] values;
+
+    private FloatPartials(int size)
+    {
+      this.values = new float[size];
+    }
+
+    @Override
+    public double get(int index)
+    {
+      return values[index];
+    }
+
+    @Override
+    public void set(int index, double value)
+    {
+      values[index] = (float) value;
+    }
+
+    @Override
+    public void read(int from, double [] destination, int length)
+    {
+      for (int i = 0; i < length; i++)
+        destination[i] = values[from + i];
+    }
+
+    @Override
+    public void write(int from, double [] source, int length)
+    {
+      for (int i = 0; i < length; i++)
+        values[from + i] = (float) source[i];
+    }
+
+    @Override
+    public void fill(int from, int to, double value)
+    {
+      Arrays.fill(values, from, to, (float) value);
+    }
+
+    @Override
+    public int size()
+    {
+      return values.length;
+    }
+  }
+
+  private static final class DoubleBufferPartials extends PartialsArray
+  {
+    private final int size;
+    private final DoubleBuffer [] chunks;
+
+    private DoubleBufferPartials(int size, ByteBuffer [] bytes)
+    {
+      this.size = size;
+      this.chunks = new DoubleBuffer[bytes.length];
+      for (int chunk = 0; chunk < bytes.length; chunk++)
+        chunks[chunk] = bytes[chunk].asDoubleBuffer();
+    }
+
+    @Override
+    public double get(int index)
+    {
+      return chunks[index >>> CHUNK_SHIFT].get(index & CHUNK_MASK);
+    }
+
+    @Override
+    public void set(int index, double value)
+    {
+      chunks[index >>> CHUNK_SHIFT].put(index & CHUNK_MASK, value);
+    }
+
+    @Override
+    public void read(int from, double [] destination, int length)
+    {
+      for (int done = 0; done < length; )
+      {
+        final int index = from + done;
+        final DoubleBuffer chunk = chunks[index >>> CHUNK_SHIFT];
+        final int offset = index & CHUNK_MASK;
+        final int n = Math.min(length - done, chunk.limit() - offset);
+        for (int i = 0; i < n; i++)
+          destination[done + i] = chunk.get(offset + i);
+        done += n;
+      }
+    }
+
+    @Override
+    public void write(int from, double [] source, int length)
+    {
+      for (int done = 0; done < length; )
+      {
+        final int index = from + done;
+        final DoubleBuffer chunk = chunks[index >>> CHUNK_SHIFT];
+        final int offset = index & CHUNK_MASK;
+        final int n = Math.min(length - done, chunk.limit() - offset);
+        for (int i = 0; i < n; i++)
+          chunk.put(offset + i, source[done + i]);
+        done += n;
+      }
+    }
+
+    @Override
+    public void fill(int from, int to, double value)
+    {
+      for (int index = from; index < to; )
+      {
+        final DoubleBuffer chunk = chunks[index >>> CHUNK_SHIFT];
+        final int offset = index & CHUNK_MASK;
+        final int n = Math.min(to - index, chunk.limit() - offset);
+        for (int i = 0; i < n; i++)
+          chunk.put(offset + i, value);
+        index += n;
+      }
+    }
+
+    @Override
+    public int size()
+    {
+      return size;
+    }
+  }
+
+  private static final class FloatBufferPartials extends PartialsArray
+  {
+    private final int size;
+    private final FloatBuffer [] chunks;
+
+    private FloatBufferPartials(int size, ByteBuffer [] bytes)
+    {
+      this.size = size;
+      this.chunks = new FloatBuffer[bytes.length];
+      for (int chunk = 0; chunk < bytes.length; chunk++)
+        chunks[chunk] = bytes[chunk].asFloatBuffer();
+    }
+
+    @Override
+    public double get(int index)
+    {
+      return chunks[index >>> CHUNK_SHIFT].get(index & CHUNK_MASK);
+    }
+
+    @Override
+    public void set(int index, double value)
+    {
+      chunks[index >>> CHUNK_SHIFT].put(index & CHUNK_MASK, (float) value);
+    }
+
+    @Override
+    public void read(int from, double [] destination, int length)
+    {
+      for (int done = 0; done < length; )
+      {
+        final int index = from + done;
+        final FloatBuffer chunk = chunks[index >>> CHUNK_SHIFT];
+        final int offset = index & CHUNK_MASK;
+        final int n = Math.min(length - done, chunk.limit() - offset);
+        for (int i = 0; i < n; i++)
+          destination[done + i] = chunk.get(offset + i);
+        done += n;
+      }
+    }
+
+    @Override
+    public void write(int from, double [] source, int length)
+    {
+      for (int done = 0; done < length; )
+      {
+        final int index = from + done;
+        final FloatBuffer chunk = chunks[index >>> CHUNK_SHIFT];
+        final int offset = index & CHUNK_MASK;
+        final int n = Math.min(length - done, chunk.limit() - offset);
+        for (int i = 0; i < n; i++)
+          chunk.put(offset + i, (float) source[done + i]);
+        done += n;
+      }
+    }
+
+    @Override
+    public void fill(int from, int to, double value)
+    {
+      final float converted = (float) value;
+      for (int index = from; index < to; )
+      {
+        final FloatBuffer chunk = chunks[index >>> CHUNK_SHIFT];
+        final int offset = index & CHUNK_MASK;
+        final int n = Math.min(to - index, chunk.limit() - offset);
+        for (int i = 0; i < n; i++)
+          chunk.put(offset + i, converted);
+        index += n;
+      }
+    }
+
+    @Override
+    public int size()
+    {
+      return size;
+    }
+  }
+}
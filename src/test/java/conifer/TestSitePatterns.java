@@ -0,0 +1,52 @@
+package conifer;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bayonet.math.NumericalUtils;
+import conifer.io.PhylogeneticObservationFactory;
+import conifer.models.DiscreteGammaMixture;
+import conifer.models.FelsensteinPruning;
+import conifer.models.LikelihoodComputationContext;
+import conifer.models.LikelihoodTestUtils;
+import conifer.models.MultiCategorySubstitutionModel;
+
+
+
+/**
+ * Check that compressing the alignment into site patterns does not change
+ * the likelihood, and that the patterns can be expanded back.
+ */
+public class TestSitePatterns
+{
+  @Test
+  public void testCompressedLikelihood()
+  {
+    Random rand = new Random(1);
+    final int nSites = 500;
+    List<TreeNode> leaves = TopologyUtils.syntheticTaxaList(4);
+    UnrootedTree tree = LikelihoodTestUtils.randomTree(rand, leaves);
+    DiscreteGammaMixture mixture = LikelihoodTestUtils.kimuraMixture(1.0, 4);
+    MultiCategorySubstitutionModel<DiscreteGammaMixture> model = new MultiCategorySubstitutionModel<DiscreteGammaMixture>(mixture, nSites);
+
+    TreeNode root = TopologyUtils.arbitraryNode(tree);
+    SequenceAlignment data = LikelihoodTestUtils.simulate(rand, model, PhylogeneticObservationFactory.nucleotidesFactory(), tree, root);
+
+    SitePatterns patterns = data.sitePatterns();
+    Assert.assertTrue(patterns.nSites() < nSites);
+    Assert.assertEquals(nSites, patterns.nOriginalSites());
+
+    // expand back to the original sites
+    SequenceAlignment expanded = patterns.expand();
+    for (TreeNode leaf : data.getObservedTreeNodes())
+      for (int site = 0; site < nSites; site++)
+        Assert.assertArrayEquals(data.get(leaf)[site], expanded.get(leaf)[site], 0.0);
+
+    // compare to the uncompressed computation
+    double uncompressed = model.computeLogLikelihood(new LikelihoodComputationContext(new FelsensteinPruning(model, data).siteLogLikelihoods(tree, root), null));
+    NumericalUtils.checkIsClose(uncompressed, LikelihoodTestUtils.logLikelihood(model, tree, root, data));
+  }
+}
@@ -0,0 +1,76 @@
+package conifer.ctmc;
+
+import java.util.Random;
+
+import conifer.ctmc.RateMatrixUtils.MatrixExponentialAlgorithm;
+
+
+
+/**
+ * Compares the cost and accuracy of the ways of computing transition
+ * probabilities: eigendecomposition (EigenCTMC), uniformization
+ * (UniformizationCTMC, at a few tolerances) and Pade approximation (pure Java,
+ * see PadeExponential, and jblas, skipped if the native library is not available).
+ *
+ * For each state space size, a process is created for each of a series of
+ * random GTR matrices, and the transition matrices for a range of branch
+ * lengths are computed from it, as done when the rate matrix parameters change
+ * during sampling. Errors are measured against Jama's diagonalization.
+ */
+public class CTMCBenchmark
+{
+  public static final int [] SIZES = {4, 20, 61};
+  public static final double [] TOLERANCES = {1e-6, 1e-9, 1e-12};
+  public static final double [] BRANCH_LENGTHS = {0.01, 0.05, 0.1, 0.2, 0.5, 1.0, 2.0};
+  public static final int N_MATRICES = 20;
+
+  public static void main(String [] args)
+  {
+    for (int size : SIZES)
+    {
+      System.out.println("nStates=" + size);
+      report("eigen", size, CTMCAlgorithm.EIGEN, 0.0, null);
+      for (double tolerance : TOLERANCES)
+        report("uniformization(" + tolerance + ")", size, CTMCAlgorithm.UNIFORMIZATION, tolerance, null);
+      report("pade", size, null, 0.0, MatrixExponentialAlgorithm.PADE);
+      try
+      {
+        report("pade(jblas)", size, null, 0.0, MatrixExponentialAlgorithm.BLAS);
+      }
+      catch (Throwable t)
+      {
+        System.out.println("  pade(jblas): unavailable (" + t + ")");
+      }
+    }
+  }
+
+  /**
+   * @param algorithm Null to call exponential directly on each branch length instead.
+   */
+  private static void report(String name, int size, CTMCAlgorithm algorithm, double tolerance, MatrixExponentialAlgorithm exponential)
+  {
+    Random rand = new Random(1);
+    long time = 0;
+    double maxError = 0.0;
+    for (int i = 0; i < N_MATRICES; i++)
+    {
+      double [][] rates = RateMatrices.randomGTR(rand, size).getRateMatrix();
+      double [][][] results = new double[BRANCH_LENGTHS.length][][];
+      long start = System.nanoTime();
+      CTMC process = algorithm == null ? null : algorithm.create(rates, tolerance);
+      for (int b = 0; b < BRANCH_LENGTHS.length; b++)
+        results[b] = process == null ?
+            exponential.marginalTransitionMtx(rates, BRANCH_LENGTHS[b]) :
+            process.marginalTransitionProbability(BRANCH_LENGTHS[b]);
+      time += System.nanoTime() - start;
+      for (int b = 0; b < BRANCH_LENGTHS.length; b++)
+      {
+        double [][] reference = MatrixExponentialAlgorithm.DIAGONALIZATION.marginalTransitionMtx(rates, BRANCH_LENGTHS[b]);
+        for (int row = 0; row < size; row++)
+          for (int column = 0; column < size; column++)
+            maxError = Math.max(maxError, Math.abs(reference[row][column] - results[b][row][column]));
+      }
+    }
+    System.out.println("  " + name + ": ms/process=" + (time / 1e6 / N_MATRICES) + " maxError=" + maxError);
+  }
+}
@@ -0,0 +1,75 @@
+package conifer.ctmc;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+
+public class TestEigenRateMtxExpectations
+{
+  @Test
+  public void testAgreesWithExpm()
+  {
+    Random rand = new Random(1);
+    for (int j = 0; j < 10; j++)
+    {
+      final int size = 2 + rand.nextInt(10);
+      double [] statio = new double[size];
+      double [][] rates = RateMatrices.randomGTR(rand, size, statio).getRateMatrix();
+      double [][] counts = new double[size][size];
+      for (int i = 0; i < size; i++)
+        for (int k = 0; k < size; k++)
+          counts[i][k] = rand.nextDouble() < 0.3 ? 0.0 : 10.0 * rand.nextDouble();
+      EigenRateMtxExpectations symmetric = new EigenRateMtxExpectations(new ReversibleCTMC(rates, statio));
+      EigenRateMtxExpectations general = new EigenRateMtxExpectations(rates);
+      for (double t : new double[]{1e-3, 0.1, 1.0, 5.0})
+      {
+        double [][] expected = RateMtxExpectations.expectations(counts, rates, t);
+        check(expected, symmetric.expectations(counts, t));
+        check(expected, general.expectations(counts, t));
+      }
+    }
+  }
+
+  @Test
+  public void testRepeatedEigenvalues()
+  {
+    // Jukes-Cantor has a triple eigenvalue
+    double [][] rates = RateMatrices.jukesCantor1969().getRateMatrix();
+    EigenRateMtxExpectations expectations = EigenRateMtxExpectations.fromProcess(new EigenCTMC(rates));
+    double [][] counts = {{1, 2, 0, 0}, {0, 3, 1, 0}, {0, 0, 0, 4}, {5, 0, 0, 1}};
+    check(RateMtxExpectations.expectations(counts, rates, 0.3), expectations.expectations(counts, 0.3));
+  }
+
+  @Test
+  public void testStreamingAgreesWithTensor()
+  {
+    Random rand = new Random(2);
+    for (int size : new int[]{3, 5, 3})
+    {
+      double [][] rates = RateMatrices.randomGTR(rand, size).getRateMatrix();
+      double [][] counts = new double[size][size];
+      for (int i = 0; i < size; i++)
+        for (int k = 0; k < size; k++)
+          counts[i][k] = rand.nextDouble() < 0.3 ? 0.0 : 10.0 * rand.nextDouble();
+      final double t = 0.7;
+      double [][][][] tensor = RateMtxExpectations.expectations(rates, t);
+      double [][] expected = new double[size][size];
+      for (int i = 0; i < size; i++)
+        for (int k = 0; k < size; k++)
+          for (int a = 0; a < size; a++)
+            for (int b = 0; b < size; b++)
+              expected[a][b] += counts[i][k] * tensor[i][k][a][b];
+      check(expected, RateMtxExpectations.expectations(counts, rates, t));
+    }
+  }
+
+  private static void check(double [][] expected, double [][] actual)
+  {
+    for (int i = 0; i < expected.length; i++)
+      for (int k = 0; k < expected.length; k++)
+        Assert.assertEquals(expected[i][k], actual[i][k], 1e-8 * Math.max(1.0, Math.abs(expected[i][k])));
+  }
+}
@@ -0,0 +1,64 @@
+package conifer.ctmc;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import conifer.ctmc.EigenRateMtxExpectations.Kernel;
+
+
+
+public class TestExpectedStatisticsCache
+{
+  @Test
+  public void testReuseAndEviction()
+  {
+    Random rand = new Random(1);
+    final int size = 10;
+    double [] statio = new double[size];
+    double [][] rates = RateMatrices.randomGTR(rand, size, statio).getRateMatrix();
+    double [][] counts = new double[size][size];
+    for (int i = 0; i < size; i++)
+      for (int j = 0; j < size; j++)
+        counts[i][j] = rand.nextDouble();
+    final double [] branchLengths = {0.1, 0.2, 0.1, 0.3, 0.1, 0.2};
+
+    ExpectedStatisticsCache cache = new ExpectedStatisticsCache(Long.MAX_VALUE);
+    EigenRateMtxExpectations decomposition = cache.decomposition(0, new ReversibleCTMC(rates, statio));
+    for (double t : branchLengths)
+    {
+      Kernel kernel = cache.kernel(0, decomposition, t);
+      Assert.assertArrayEquals(decomposition.expectations(counts, t)[3], decomposition.expectations(counts, kernel)[3], 1e-12);
+    }
+    Assert.assertEquals(3, cache.nMisses());
+    Assert.assertEquals(3, cache.nHits());
+
+    // same content: the decomposition and kernels are kept
+    Assert.assertSame(decomposition, cache.decomposition(0, new ReversibleCTMC(rates.clone(), statio)));
+    cache.kernel(0, decomposition, 0.3);
+    Assert.assertEquals(4, cache.nHits());
+    Assert.assertEquals(1, cache.nDecompositions());
+
+    // changed content: recomputed, stale kernels discarded
+    double [][] scaled = RateMatrixUtils.scale(rates, 2.0);
+    EigenRateMtxExpectations updated = cache.decomposition(0, new ReversibleCTMC(scaled, statio));
+    Assert.assertNotSame(decomposition, updated);
+    Assert.assertEquals(0, cache.size());
+    // the decomposition and the copy of the rate matrix it was computed from
+    final long decompositionBytes = updated.nBytes() + 8L * size * size;
+    Assert.assertEquals(decompositionBytes, cache.nBytes());
+
+    // a budget of two kernels
+    final long kernelBytes = updated.kernel(1.0).nBytes();
+    ExpectedStatisticsCache small = new ExpectedStatisticsCache(decompositionBytes + 2 * kernelBytes);
+    EigenRateMtxExpectations smallDecomposition = small.decomposition(0, new ReversibleCTMC(rates, statio));
+    for (double t : branchLengths)
+    {
+      small.kernel(0, smallDecomposition, t);
+      Assert.assertTrue(small.nBytes() <= decompositionBytes + 2 * kernelBytes);
+    }
+    Assert.assertEquals(2, small.size());
+    Assert.assertTrue(small.nEvictions() > 0);
+  }
+}
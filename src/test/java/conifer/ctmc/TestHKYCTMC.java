@@ -0,0 +1,87 @@
+package conifer.ctmc;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bayonet.distributions.Multinomial;
+import conifer.ctmc.RateMatrixUtils.MatrixExponentialAlgorithm;
+
+
+
+public class TestHKYCTMC
+{
+  @Test
+  public void testResourceMatrices()
+  {
+    for (SimpleRateMatrix matrix : new SimpleRateMatrix[]{RateMatrices.jukesCantor1969(), RateMatrices.kimura1980()})
+    {
+      Assert.assertTrue(matrix.getProcess() instanceof EigenCTMC);
+      CTMC process = matrix.withAlgorithm(CTMCAlgorithm.CLOSED_FORM, 0.0).getProcess();
+      Assert.assertTrue(process instanceof HKYCTMC);
+      Assert.assertArrayEquals(new double[]{0.25, 0.25, 0.25, 0.25}, process.stationaryDistribution(), 1e-15);
+      check((HKYCTMC) process);
+    }
+    Assert.assertEquals(1.0, ((HKYCTMC) CTMCAlgorithm.CLOSED_FORM.create(RateMatrices.jukesCantor1969().getRateMatrix(), 0.0)).getKappa(), 1e-12);
+    Assert.assertEquals(3.0, ((HKYCTMC) CTMCAlgorithm.CLOSED_FORM.create(RateMatrices.kimura1980().getRateMatrix(), 0.0)).getKappa(), 1e-12);
+  }
+
+  @Test
+  public void testRandomHKY()
+  {
+    Random rand = new Random(1);
+    for (int j = 0; j < 20; j++)
+    {
+      double [] stationary = new double[4];
+      for (int i = 0; i < 4; i++)
+        stationary[i] = 0.1 + rand.nextDouble();
+      Multinomial.normalize(stationary);
+      final double kappa = 0.5 + 5.0 * rand.nextDouble(), beta = 0.1 + rand.nextDouble();
+      // any pairing of the states
+      final int partnerOfFirst = 1 + rand.nextInt(3);
+      double [][] rates = new double[4][4];
+      for (int row = 0; row < 4; row++)
+        for (int column = 0; column < 4; column++)
+          if (row != column)
+          {
+            final boolean partners = (row == 0 && column == partnerOfFirst) || (column == 0 && row == partnerOfFirst) ||
+                (row != 0 && column != 0 && row != partnerOfFirst && column != partnerOfFirst);
+            rates[row][column] = (partners ? kappa : 1.0) * beta * stationary[column];
+          }
+      RateMatrixUtils.fillRateMatrixDiagonalEntries(rates);
+      HKYCTMC process = HKYCTMC.fromRateMatrix(rates);
+      Assert.assertNotNull(process);
+      Assert.assertEquals(kappa, process.getKappa(), 1e-10);
+      Assert.assertArrayEquals(stationary, process.stationaryDistribution(), 1e-12);
+      check(process);
+    }
+  }
+
+  @Test
+  public void testOtherMatricesNotDetected()
+  {
+    Random rand = new Random(1);
+    for (int j = 0; j < 10; j++)
+      Assert.assertNull(HKYCTMC.fromRateMatrix(RateMatrices.randomGTR(rand, 4).getRateMatrix()));
+    Assert.assertNull(HKYCTMC.fromRateMatrix(RateMatrices.randomGTR(rand, 5).getRateMatrix()));
+    Assert.assertTrue(RateMatrices.randomGTR(rand, 5).withAlgorithm(CTMCAlgorithm.CLOSED_FORM, 0.0).getProcess() instanceof EigenCTMC);
+  }
+
+  private static void check(HKYCTMC process)
+  {
+    double [] flat = new double[16];
+    for (double t : new double[]{0.0, 1e-5, 0.1, 1.0, 10.0})
+    {
+      double [][] expected = MatrixExponentialAlgorithm.DIAGONALIZATION.marginalTransitionMtx(process.getRateMatrix(), t);
+      double [][] actual = process.marginalTransitionProbability(t);
+      process.marginalTransitionProbability(t, flat);
+      for (int row = 0; row < 4; row++)
+      {
+        Assert.assertArrayEquals(expected[row], actual[row], 1e-12);
+        for (int column = 0; column < 4; column++)
+          Assert.assertEquals(actual[row][column], flat[row * 4 + column], 0.0);
+      }
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package conifer.ctmc;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import Jama.Matrix;
+import conifer.ctmc.RateMatrixUtils.MatrixExponentialAlgorithm;
+
+
+
+public class TestPadeExponential
+{
+  @Test
+  public void testRateMatrices()
+  {
+    Random rand = new Random(1);
+    for (int j = 0; j < 10; j++)
+    {
+      final int size = 2 + rand.nextInt(30);
+      double [][] rates = RateMatrices.randomGTR(rand, size).getRateMatrix();
+      // small to large norms, to go through all the degrees and the squaring
+      for (double t : new double[]{0.0, 1e-4, 1e-2, 0.1, 1.0, 10.0, 100.0})
+      {
+        double [][] expected = MatrixExponentialAlgorithm.DIAGONALIZATION.marginalTransitionMtx(rates, t);
+        double [][] actual = MatrixExponentialAlgorithm.PADE.marginalTransitionMtx(rates, t);
+        for (int row = 0; row < size; row++)
+          Assert.assertArrayEquals(expected[row], actual[row], 1e-10);
+      }
+    }
+  }
+
+  @Test
+  public void testGeneralMatrices()
+  {
+    Random rand = new Random(1);
+    // nilpotent: exp(N) = I + N + N^2 / 2
+    double [][] nilpotent = {{0, 1, 2}, {0, 0, 3}, {0, 0, 0}};
+    double [][] result = new double[3][3];
+    new PadeExponential(3).exp(nilpotent, 1.0, result);
+    Assert.assertArrayEquals(new double[]{1, 1, 3.5}, result[0], 1e-14);
+    Assert.assertArrayEquals(new double[]{0, 1, 3}, result[1], 1e-14);
+    Assert.assertArrayEquals(new double[]{0, 0, 1}, result[2], 1e-14);
+    // exp(A) exp(-A) = I, reusing the same instance
+    final int size = 8;
+    PadeExponential exponential = new PadeExponential(size);
+    for (double scale : new double[]{0.001, 0.5, 3.0})
+    {
+      double [][] matrix = new double[size][size];
+      for (int i = 0; i < size; i++)
+        for (int j = 0; j < size; j++)
+          matrix[i][j] = scale * rand.nextGaussian();
+      double [][] forward = new double[size][size], backward = new double[size][size];
+      exponential.exp(matrix, 1.0, forward);
+      exponential.exp(matrix, -1.0, backward);
+      double [][] product = new Matrix(forward).times(new Matrix(backward)).getArray();
+      for (int i = 0; i < size; i++)
+        for (int j = 0; j < size; j++)
+          Assert.assertEquals(i == j ? 1.0 : 0.0, product[i][j], 1e-9);
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package conifer.ctmc;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import conifer.ctmc.RateMatrixUtils.MatrixExponentialAlgorithm;
+import conifer.ctmc.expfam.ExpFamMixture;
+import conifer.ctmc.expfam.RateMtxNames;
+
+
+
+public class TestReversibleCTMC
+{
+  @Test
+  public void testAgreesWithDiagonalization()
+  {
+    Random rand = new Random(1);
+    for (int j = 0; j < 10; j++)
+    {
+      final int size = 2 + rand.nextInt(30);
+      double [] statio = new double[size];
+      SimpleRateMatrix gtr = RateMatrices.randomGTR(rand, size, statio);
+      check(new ReversibleCTMC(gtr.getRateMatrix(), statio));
+      // the stationary distribution used to build the matrix is passed on to the process
+      CTMC process = gtr.getProcess();
+      Assert.assertTrue(process instanceof ReversibleCTMC);
+      Assert.assertArrayEquals(statio, process.stationaryDistribution(), 0.0);
+    }
+  }
+
+  @Test
+  public void testExpFam()
+  {
+    Random rand = new Random(1);
+    ExpFamMixture mixture = ExpFamMixture.randomGTR(RateMtxNames.PROTEINSIMPLEGTR);
+    double [] weights = new double[mixture.parameters.getDim()];
+    for (int i = 0; i < weights.length; i++)
+      weights[i] = rand.nextGaussian();
+    mixture.parameters.setVector(weights);
+    CTMC process = mixture.getRateMatrix(0).getProcess();
+    Assert.assertTrue(process instanceof ReversibleCTMC);
+    check((ReversibleCTMC) process);
+    // the provided stationary distribution agrees with the one computed by EigenCTMC
+    Assert.assertArrayEquals(new EigenCTMC(process.getRateMatrix()).stationaryDistribution(), process.stationaryDistribution(), 1e-8);
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void testNonReversible()
+  {
+    double [][] cycle = {{-1, 1, 0}, {0, -1, 1}, {1, 0, -1}};
+    new ReversibleCTMC(cycle, new double[]{0.2, 0.3, 0.5});
+  }
+
+  private static void check(ReversibleCTMC ctmc)
+  {
+    final int size = ctmc.getRateMatrix().length;
+    for (double t : new double[]{0.0, 1e-4, 0.1, 1.0, 10.0})
+    {
+      double [][] expected = MatrixExponentialAlgorithm.DIAGONALIZATION.marginalTransitionMtx(ctmc.getRateMatrix(), t);
+      double [][] actual = ctmc.marginalTransitionProbability(t);
+      for (int row = 0; row < size; row++)
+        Assert.assertArrayEquals(expected[row], actual[row], 1e-10);
+    }
+  }
+}
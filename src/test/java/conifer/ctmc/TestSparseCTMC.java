@@ -0,0 +1,81 @@
+package conifer.ctmc;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import conifer.ctmc.expfam.ExpFamMixture;
+import conifer.ctmc.expfam.SerializedExpFamMixture;
+import conifer.io.FeatureFactory;
+
+
+
+public class TestSparseCTMC
+{
+  @Test
+  public void testAgreesWithEigenCTMC()
+  {
+    Random rand = new Random(1);
+    final int size = 20;
+    for (int j = 0; j < 10; j++)
+    {
+      double [] statio = new double[size];
+      double [][] rates = RateMatrices.randomGTR(rand, size, statio).getRateMatrix();
+      // removing pairs of symmetric entries preserves reversibility; keep a path through all states
+      for (int i = 0; i < size; i++)
+        for (int k = i + 2; k < size; k++)
+          if (rand.nextDouble() < 0.8)
+            rates[i][k] = rates[k][i] = 0.0;
+      for (int i = 0; i < size; i++)
+        rates[i][i] = 0.0;
+      RateMatrixUtils.fillRateMatrixDiagonalEntries(rates);
+      check(new SparseCTMC(SparseRateMatrix.fromDense(rates), statio), new EigenCTMC(rates));
+    }
+  }
+
+  @Test
+  public void testCodons()
+  {
+    Random rand = new Random(1);
+    SerializedExpFamMixture serialized = FeatureFactory.codonUsingAminoAcidAndDNAFeatureModel(true);
+    ExpFamMixture mixture = ExpFamMixture.fromSerialized(serialized, serialized.getLatentIndexer(), true);
+    double [] weights = new double[mixture.parameters.getDim()];
+    for (int i = 0; i < weights.length; i++)
+      weights[i] = rand.nextGaussian() / 2.0;
+    mixture.parameters.setVector(weights);
+    CTMCParameters parameters = mixture.getRateMatrix(0);
+    Assert.assertTrue(parameters.getProcess() instanceof SparseCTMC);
+    double [][] dense = mixture.parameters.getRateMatrix(0);
+    for (int i = 0; i < dense.length; i++)
+      Assert.assertArrayEquals(dense[i], parameters.getRateMatrix()[i], 1e-12);
+    check((SparseCTMC) parameters.getProcess(), new EigenCTMC(dense));
+  }
+
+  /**
+   * The default codon model has full support, callers have to opt in for the sparse one.
+   */
+  @Test
+  public void testDefaultCodonModelIsDense()
+  {
+    SerializedExpFamMixture serialized = FeatureFactory.codonUsingAminoAcidAndDNAFeatureModel();
+    ExpFamMixture mixture = ExpFamMixture.fromSerialized(serialized, serialized.getLatentIndexer(), true);
+    Assert.assertFalse(mixture.getRateMatrix(0) instanceof SparseCTMCParameters);
+  }
+
+  private static void check(SparseCTMC sparse, EigenCTMC eigen)
+  {
+    final int size = sparse.getRateMatrix().length;
+    // check the stationary distribution provided
+    double [] stationary = sparse.stationaryDistribution(), product = new double[size];
+    sparse.getSparseRateMatrix().leftMultiply(stationary, product);
+    for (int i = 0; i < size; i++)
+      Assert.assertEquals(0.0, product[i], 1e-10);
+    for (double t : new double[]{0.0, 0.01, 0.3, 2.0, 50.0})
+    {
+      double [][] expected = eigen.marginalTransitionProbability(t), actual = sparse.marginalTransitionProbability(t);
+      for (int i = 0; i < size; i++)
+        Assert.assertArrayEquals(expected[i], actual[i], 1e-8);
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package conifer.ctmc;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import conifer.ctmc.RateMatrixUtils.MatrixExponentialAlgorithm;
+
+
+
+public class TestUniformizationCTMC
+{
+  @Test
+  public void testAgreesWithDiagonalization()
+  {
+    Random rand = new Random(1);
+    for (double tolerance : new double[]{1e-6, 1e-12})
+      for (int j = 0; j < 5; j++)
+      {
+        final int size = 4 + rand.nextInt(20);
+        double [] statio = new double[size];
+        double [][] rates = RateMatrices.randomGTR(rand, size, statio).getRateMatrix();
+        UniformizationCTMC ctmc = new UniformizationCTMC(rates, tolerance);
+        Assert.assertArrayEquals(statio, ctmc.stationaryDistribution(), 1e-10);
+        // includes branch lengths large enough to require squaring
+        for (double t : new double[]{0.0, 1e-4, 0.1, 1.0, 10.0, 100.0})
+        {
+          double [][] expected = MatrixExponentialAlgorithm.DIAGONALIZATION.marginalTransitionMtx(rates, t);
+          double [][] actual = ctmc.marginalTransitionProbability(t);
+          for (int row = 0; row < size; row++)
+            Assert.assertArrayEquals(expected[row], actual[row], 10.0 * tolerance + 1e-12);
+        }
+      }
+  }
+
+  @Test
+  public void testSelectedPerModel()
+  {
+    SimpleRateMatrix eigen = RateMatrices.kimura1980();
+    Assert.assertTrue(eigen.getProcess() instanceof EigenCTMC);
+    SimpleRateMatrix uniformization = eigen.withAlgorithm(CTMCAlgorithm.UNIFORMIZATION, 1e-9);
+    UniformizationCTMC process = (UniformizationCTMC) uniformization.getProcess();
+    Assert.assertEquals(1e-9, process.getTolerance(), 0.0);
+
+    // the sampler reuses the powers of the uniformized matrix of the process
+    EndPointSampler sampler = new EndPointSampler(new ScaledCTMC(process, 2.0));
+    Random rand = new Random(1);
+    for (int i = 0; i < 100; i++)
+      sampler.sample(rand, 0, 1, 1.0, null);
+    Assert.assertTrue(sampler.cacheSize() > 1);
+  }
+}
@@ -0,0 +1,54 @@
+package conifer.ctmc.expfam;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import conifer.models.LikelihoodOptions;
+
+
+
+public class TestExpectedCompleteReversibleObjective
+{
+  @Test
+  public void testGradientAndThreads()
+  {
+    for (boolean isNormalized : new boolean[]{true, false})
+    {
+      // more states than OBJECTIVE_BLOCK_SIZE, so that several blocks are used
+      ExpFamMixture mixture = ExpFamMixture.rateMtxModel(RateMtxNames.PROTEINSIMPLEGTR, isNormalized);
+      CTMCExpFam<CTMCState> model = mixture.parameters.globalExponentialFamily;
+      Assert.assertTrue(model.nStates > CTMCExpFam.OBJECTIVE_BLOCK_SIZE);
+      Random rand = new Random(1);
+      ExpectedStatistics<CTMCState> stats = new ExpectedStatistics<CTMCState>(model);
+      for (int state = 0; state < model.nStates; state++)
+      {
+        stats.holdTimes[state] = 10.0 * rand.nextDouble();
+        stats.nInit[state] = rand.nextDouble();
+        for (int j = 0; j < stats.nTrans[state].length; j++)
+          stats.nTrans[state][j] = rand.nextDouble();
+      }
+      double [] x = new double[model.nFeatures()];
+      for (int i = 0; i < x.length; i++)
+        x[i] = 0.3 * rand.nextGaussian();
+
+      double [] gradient = model.getExpectedCompleteReversibleObjective(1.0, stats).derivativeAt(x);
+      final double value = model.getExpectedCompleteReversibleObjective(1.0, stats).valueAt(x);
+      final double epsilon = 1e-6;
+      for (int f = 0; f < x.length; f += 17)
+      {
+        double [] shifted = x.clone();
+        shifted[f] += epsilon;
+        final double numerical = (model.getExpectedCompleteReversibleObjective(1.0, stats).valueAt(shifted) - value) / epsilon;
+        Assert.assertEquals(numerical, gradient[f], 1e-3 * Math.max(1.0, Math.abs(numerical)));
+      }
+
+      LikelihoodOptions options = new LikelihoodOptions();
+      options.nThreads = 4;
+      CTMCExpFam<CTMCState>.ExpectedCompleteReversibleObjective parallel = model.getExpectedCompleteReversibleObjective(1.0, stats, options);
+      Assert.assertEquals(value, parallel.valueAt(x), 0.0);
+      Assert.assertArrayEquals(gradient, parallel.derivativeAt(x), 0.0);
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package conifer.models;
+
+import java.util.List;
+import java.util.Random;
+
+import conifer.SequenceAlignment;
+import conifer.TopologyUtils;
+import conifer.TreeNode;
+import conifer.UnrootedTree;
+import conifer.ctmc.CTMCParameters;
+import conifer.ctmc.ReversibleRateMatrix;
+import conifer.ctmc.expfam.ExpFamMixture;
+import conifer.ctmc.expfam.SerializedExpFamMixture;
+import conifer.io.FeatureFactory;
+import conifer.io.PhylogeneticObservationFactory;
+import conifer.models.LikelihoodOptions.LikelihoodEngine;
+
+
+
+/**
+ * Times the log likelihood of a codon alignment under the codon feature model
+ * (see FeatureFactory.codonUsingAminoAcidAndDNAFeatureModel()), with new
+ * parameters before each evaluation, as when sampling them, so that every
+ * transition matrix is recomputed. Three settings are compared:
+ *
+ *   full: the default model, whose support contains all pairs of codons
+ *     (dense rate matrices, ReversibleCTMC);
+ *   single/dense: the support restricted to single nucleotide changes, with the
+ *     rate matrices still handled by ReversibleCTMC;
+ *   single/sparse: the same model with SparseCTMC, which ExpFamMixture picks for it.
+ */
+public class CodonLikelihoodBenchmark
+{
+  public static final int N_LEAVES = 10;
+  public static final int N_SITES = 300;
+  public static final int N_EVALUATIONS = 20;
+
+  public static void main(String [] args)
+  {
+    Random rand = new Random(1);
+    List<TreeNode> leaves = TopologyUtils.syntheticTaxaList(N_LEAVES);
+    UnrootedTree tree = LikelihoodTestUtils.randomTree(rand, 5.0, leaves);
+    TreeNode root = TopologyUtils.arbitraryNode(tree);
+    final ExpFamMixture full = mixture(false), single = mixture(true);
+    SequenceAlignment data = LikelihoodTestUtils.simulate(rand,
+        LikelihoodTestUtils.model(single, N_SITES, LikelihoodEngine.PRUNING),
+        PhylogeneticObservationFactory.codonFactory(), tree, root);
+    RateMatrixMixture singleDense = new RateMatrixMixture()
+    {
+      @Override
+      public CTMCParameters getRateMatrix(int index)
+      {
+        return new ReversibleRateMatrix(single.parameters.getRateMatrix(index), single.parameters.getStationaryDistribution(index), single.emissionModel);
+      }
+
+      @Override
+      public List<Double> getLogPriorProbabilities()
+      {
+        return single.getLogPriorProbabilities();
+      }
+    };
+    for (int repeat = 0; repeat < 5; repeat++)
+    {
+      report("full", full, full, tree, root, data);
+      report("single/dense", single, singleDense, tree, root, data);
+      report("single/sparse", single, single, tree, root, data);
+    }
+  }
+
+  private static ExpFamMixture mixture(boolean singleNucleotideChangesOnly)
+  {
+    SerializedExpFamMixture serialized = FeatureFactory.codonUsingAminoAcidAndDNAFeatureModel(singleNucleotideChangesOnly);
+    return ExpFamMixture.fromSerialized(serialized, serialized.getLatentIndexer(), true);
+  }
+
+  /**
+   * @param parameters Mixture whose weights are randomized before each evaluation.
+   * @param mixture Mixture of the model, depending on parameters.
+   */
+  private static void report(String name, ExpFamMixture parameters, RateMatrixMixture mixture, UnrootedTree tree, TreeNode root, SequenceAlignment data)
+  {
+    Random rand = new Random(1);
+    MultiCategorySubstitutionModel<RateMatrixMixture> model = LikelihoodTestUtils.model(mixture, N_SITES, LikelihoodEngine.PRUNING);
+    final double [] weights = new double[parameters.parameters.getDim()];
+    long time = 0;
+    double logLikelihood = 0.0;
+    for (int i = 0; i < N_EVALUATIONS; i++)
+    {
+      for (int j = 0; j < weights.length; j++)
+        weights[j] = rand.nextGaussian() / 2.0;
+      parameters.parameters.setVector(weights);
+      long start = System.nanoTime();
+      logLikelihood = LikelihoodTestUtils.logLikelihood(model, tree, root, data);
+      time += System.nanoTime() - start;
+    }
+    System.out.println(name + ": ms/evaluation=" + (time / 1e6 / N_EVALUATIONS) + " lastLogLikelihood=" + logLikelihood);
+  }
+}
@@ -0,0 +1,66 @@
+package conifer.models;
+
+import java.util.List;
+import java.util.Random;
+
+import blang.core.RealConstant;
+import blang.distributions.Gamma;
+import conifer.SequenceAlignment;
+import conifer.TreeNode;
+import conifer.UnrootedTree;
+import conifer.ctmc.RateMatrices;
+import conifer.factors.NonClockTreePriorUtils;
+import conifer.io.PhylogeneticObservationFactory;
+import conifer.io.TreeObservations;
+import conifer.models.LikelihoodOptions.LikelihoodEngine;
+
+
+
+/**
+ * Trees, models and simulated alignments shared by the likelihood tests.
+ */
+public class LikelihoodTestUtils
+{
+  /**
+   * @param rate Rate of the exponential prior on the branch lengths.
+   */
+  public static UnrootedTree randomTree(Random rand, double rate, List<TreeNode> leaves)
+  {
+    return NonClockTreePriorUtils.sample(rand, Gamma.distribution(new RealConstant(1.0), new RealConstant(rate)), leaves);
+  }
+
+  public static UnrootedTree randomTree(Random rand, List<TreeNode> leaves)
+  {
+    return randomTree(rand, 1.0, leaves);
+  }
+
+  /**
+   * Kimura 1980 with a proportion 0.1 of invariant sites and discrete gamma rates.
+   */
+  public static DiscreteGammaMixture kimuraMixture(double shape, int nCategories)
+  {
+    return new DiscreteGammaMixture(new RealConstant(0.1), new RealConstant(shape), RateMatrices.kimura1980(), nCategories);
+  }
+
+  public static <T extends RateMatrixMixture> MultiCategorySubstitutionModel<T> model(T mixture, int nSites, LikelihoodEngine engine)
+  {
+    LikelihoodOptions options = new LikelihoodOptions();
+    options.engine = engine;
+    return new MultiCategorySubstitutionModel<T>(mixture, nSites, options);
+  }
+
+  /**
+   * @return An alignment of model.nSites sites simulated from the model.
+   */
+  public static SequenceAlignment simulate(Random rand, MultiCategorySubstitutionModel<?> model, PhylogeneticObservationFactory factory, UnrootedTree tree, TreeNode root)
+  {
+    SequenceAlignment result = new SequenceAlignment(factory, model.nSites);
+    model.generateObservationsInPlace(rand, result, tree, root);
+    return result;
+  }
+
+  public static double logLikelihood(MultiCategorySubstitutionModel<?> model, UnrootedTree tree, TreeNode root, TreeObservations observations)
+  {
+    return model.computeLogLikelihood(model.buildLikelihoodComputationContext(tree, root, observations));
+  }
+}
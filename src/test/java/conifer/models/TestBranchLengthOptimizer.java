@@ -0,0 +1,68 @@
+package conifer.models;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bayonet.math.NumericalUtils;
+import briefj.collections.UnorderedPair;
+import conifer.SequenceAlignment;
+import conifer.TopologyUtils;
+import conifer.TreeNode;
+import conifer.UnrootedTree;
+import conifer.io.PhylogeneticObservationFactory;
+import conifer.models.BranchLengthOptimizer.PassSummary;
+import conifer.models.LikelihoodOptions.LikelihoodEngine;
+
+
+
+/**
+ * Check that the branch length optimizer reaches a stationary point of the likelihood.
+ */
+public class TestBranchLengthOptimizer
+{
+  @Test
+  public void testStationaryPoint()
+  {
+    Random rand = new Random(1);
+    final int nSites = 500;
+    List<TreeNode> leaves = TopologyUtils.syntheticTaxaList(10);
+    UnrootedTree tree = LikelihoodTestUtils.randomTree(rand, 5.0, leaves);
+    DiscreteGammaMixture mixture = LikelihoodTestUtils.kimuraMixture(0.8, 4);
+    MultiCategorySubstitutionModel<DiscreteGammaMixture> model = LikelihoodTestUtils.model(mixture, nSites, LikelihoodEngine.PRUNING);
+    TreeNode root = TopologyUtils.arbitraryNode(tree);
+    SequenceAlignment data = LikelihoodTestUtils.simulate(rand, model, PhylogeneticObservationFactory.nucleotidesFactory(), tree, root);
+    final double trueLogLikelihood = LikelihoodTestUtils.logLikelihood(model, tree, root, data);
+
+    // start far from the generating branch lengths
+    for (UnorderedPair<TreeNode, TreeNode> edge : tree.getTopology().edgeSet())
+      tree.updateBranchLength(edge, 1.0);
+    final double initialLogLikelihood = LikelihoodTestUtils.logLikelihood(model, tree, root, data);
+
+    BranchLengthOptimizer optimizer = new BranchLengthOptimizer();
+    List<PassSummary> passes = optimizer.optimize(model, tree, data);
+    Assert.assertTrue(passes.size() < optimizer.maxPasses);
+    double previous = initialLogLikelihood;
+    for (PassSummary pass : passes)
+    {
+      Assert.assertTrue(pass.logLikelihood >= previous);
+      previous = pass.logLikelihood;
+    }
+
+    final double logLikelihood = LikelihoodTestUtils.logLikelihood(model, tree, root, data);
+    NumericalUtils.checkIsClose(previous, logLikelihood);
+    Assert.assertTrue(logLikelihood > trueLogLikelihood);
+    BranchLengthDerivatives derivatives = model.branchLengthDerivatives(tree, root, data);
+    for (UnorderedPair<TreeNode, TreeNode> edge : tree.getTopology().edgeSet())
+      if (tree.getBranchLength(edge) > 10.0 * optimizer.minBranchLength)
+      {
+        // the Newton step left should be negligible
+        Assert.assertTrue(derivatives.getSecondDerivative(edge) < 0.0);
+        Assert.assertEquals(0.0, derivatives.getFirstDerivative(edge) / derivatives.getSecondDerivative(edge), 1e-3 * tree.getBranchLength(edge));
+      }
+      else
+        Assert.assertTrue(derivatives.getFirstDerivative(edge) <= 1e-2);
+  }
+}
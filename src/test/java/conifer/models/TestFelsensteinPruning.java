@@ -0,0 +1,361 @@
+package conifer.models;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.jgrapht.Graphs;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import bayonet.math.NumericalUtils;
+import blang.core.RealConstant;
+import briefj.collections.UnorderedPair;
+import conifer.SequenceAlignment;
+import conifer.TopologyUtils;
+import conifer.TreeNode;
+import conifer.UnrootedTree;
+import conifer.ctmc.RateMatrices;
+import conifer.io.PhylogeneticObservationFactory;
+import conifer.models.LikelihoodOptions.LikelihoodEngine;
+import conifer.models.PartialsArray.PartialsPrecision;
+import conifer.models.PartialsArray.PartialsStorage;
+
+
+
+/**
+ * Check that the pruning and factor graph likelihood computations agree.
+ */
+public class TestFelsensteinPruning
+{
+  @Test
+  public void testAgreesWithFactorGraphs()
+  {
+    Random rand = new Random(1);
+    final int nSites = 50;
+    List<TreeNode> leaves = TopologyUtils.syntheticTaxaList(8);
+    for (int i = 0; i < 10; i++)
+    {
+      UnrootedTree tree = LikelihoodTestUtils.randomTree(rand, leaves);
+      DiscreteGammaMixture mixture = LikelihoodTestUtils.kimuraMixture(0.5 + i, 4);
+      MultiCategorySubstitutionModel<DiscreteGammaMixture>
+        pruningModel = LikelihoodTestUtils.model(mixture, nSites, LikelihoodEngine.PRUNING),
+        factorGraphModel = LikelihoodTestUtils.model(mixture, nSites, LikelihoodEngine.FACTOR_GRAPH);
+
+      TreeNode root = TopologyUtils.arbitraryNode(tree);
+      SequenceAlignment data = LikelihoodTestUtils.simulate(rand, factorGraphModel, PhylogeneticObservationFactory.nucleotidesFactory(), tree, root);
+
+      NumericalUtils.checkIsClose(
+          LikelihoodTestUtils.logLikelihood(factorGraphModel, tree, root, data),
+          LikelihoodTestUtils.logLikelihood(pruningModel, tree, root, data));
+    }
+  }
+
+  /**
+   * Leaves are encoded (see TipStates); check ambiguous symbols and rooting at a leaf.
+   */
+  @Test
+  public void testAmbiguousTips()
+  {
+    Random rand = new Random(1);
+    final String symbols = "ACGTACGTRYN-";
+    final int nSites = 40;
+    List<TreeNode> leaves = TopologyUtils.syntheticTaxaList(6);
+    UnrootedTree tree = LikelihoodTestUtils.randomTree(rand, leaves);
+    PhylogeneticObservationFactory factory = PhylogeneticObservationFactory.nucleotidesFactory();
+    SequenceAlignment data = new SequenceAlignment(factory, nSites);
+    for (TreeNode leaf : leaves)
+    {
+      StringBuilder sequence = new StringBuilder();
+      for (int site = 0; site < nSites; site++)
+        sequence.append(symbols.charAt(rand.nextInt(symbols.length())));
+      data.set(leaf, factory.site2CharacterIndicators(sequence.toString()));
+    }
+    DiscreteGammaMixture mixture = LikelihoodTestUtils.kimuraMixture(1.0, 4);
+    for (TreeNode root : Lists.newArrayList(leaves.get(0), TopologyUtils.arbitraryNode(tree)))
+    {
+      MultiCategorySubstitutionModel<DiscreteGammaMixture>
+        pruningModel = LikelihoodTestUtils.model(mixture, nSites, LikelihoodEngine.PRUNING),
+        factorGraphModel = LikelihoodTestUtils.model(mixture, nSites, LikelihoodEngine.FACTOR_GRAPH);
+      NumericalUtils.checkIsClose(
+          LikelihoodTestUtils.logLikelihood(factorGraphModel, tree, root, data),
+          LikelihoodTestUtils.logLikelihood(pruningModel, tree, root, data));
+    }
+  }
+
+  /**
+   * Reuse the cached partials of one model while the root moves from a leaf to an
+   * internal node and back; a leaf that was the root should be read from its codes.
+   */
+  @Test
+  public void testRerootingAwayFromLeaf()
+  {
+    Random rand = new Random(1);
+    final int nSites = 30;
+    List<TreeNode> leaves = TopologyUtils.syntheticTaxaList(6);
+    UnrootedTree tree = LikelihoodTestUtils.randomTree(rand, leaves);
+    DiscreteGammaMixture mixture = LikelihoodTestUtils.kimuraMixture(1.0, 4);
+    MultiCategorySubstitutionModel<DiscreteGammaMixture> model = LikelihoodTestUtils.model(mixture, nSites, LikelihoodEngine.PRUNING);
+    SequenceAlignment data = LikelihoodTestUtils.simulate(rand, model, PhylogeneticObservationFactory.nucleotidesFactory(), tree, TopologyUtils.arbitraryNode(tree));
+    for (TreeNode root : Lists.newArrayList(leaves.get(0), TopologyUtils.arbitraryNode(tree), leaves.get(0)))
+    {
+      MultiCategorySubstitutionModel<DiscreteGammaMixture> fresh = LikelihoodTestUtils.model(mixture, nSites, LikelihoodEngine.PRUNING);
+      Assert.assertEquals(
+          LikelihoodTestUtils.logLikelihood(fresh, tree, root, data),
+          LikelihoodTestUtils.logLikelihood(model, tree, root, data),
+          1e-10);
+    }
+  }
+
+  /**
+   * Compare the branch length derivatives to finite differences.
+   */
+  @Test
+  public void testBranchLengthDerivatives()
+  {
+    Random rand = new Random(1);
+    final int nSites = 100;
+    List<TreeNode> leaves = TopologyUtils.syntheticTaxaList(8);
+    UnrootedTree tree = LikelihoodTestUtils.randomTree(rand, leaves);
+    DiscreteGammaMixture mixture = LikelihoodTestUtils.kimuraMixture(0.8, 4);
+    MultiCategorySubstitutionModel<DiscreteGammaMixture> model = LikelihoodTestUtils.model(mixture, nSites, LikelihoodEngine.PRUNING);
+    SequenceAlignment data = LikelihoodTestUtils.simulate(rand, model, PhylogeneticObservationFactory.nucleotidesFactory(), tree, TopologyUtils.arbitraryNode(tree));
+    for (TreeNode root : Lists.newArrayList(leaves.get(0), TopologyUtils.arbitraryNode(tree)))
+    {
+      BranchLengthDerivatives derivatives = model.branchLengthDerivatives(tree, root, data);
+      NumericalUtils.checkIsClose(
+          LikelihoodTestUtils.logLikelihood(model, tree, root, data), 
+          derivatives.getLogLikelihood());
+      for (UnorderedPair<TreeNode, TreeNode> edge : Lists.newArrayList(tree.getTopology().edgeSet()))
+      {
+        final double value = tree.getBranchLength(edge);
+        final double h = Math.min(1e-4, value / 10.0);
+        final double center = derivatives.getLogLikelihood();
+        tree.updateBranchLength(edge, value + h);
+        final double plus = LikelihoodTestUtils.logLikelihood(model, tree, root, data);
+        tree.updateBranchLength(edge, value - h);
+        final double minus = LikelihoodTestUtils.logLikelihood(model, tree, root, data);
+        tree.updateBranchLength(edge, value);
+        Assert.assertEquals((plus - minus) / (2 * h), derivatives.getFirstDerivative(edge), 1e-5 * (1.0 + Math.abs(derivatives.getFirstDerivative(edge))));
+        Assert.assertEquals((plus - 2 * center + minus) / (h * h), derivatives.getSecondDerivative(edge), 1e-3 * (1.0 + Math.abs(derivatives.getSecondDerivative(edge))));
+      }
+    }
+  }
+
+  /**
+   * Large trees where the unscaled partials would underflow.
+   */
+  @Test
+  public void testDeepTrees()
+  {
+    Random rand = new Random(1);
+    final int nSites = 5;
+    UnrootedTree tree = LikelihoodTestUtils.randomTree(rand, TopologyUtils.syntheticTaxaList(1000));
+    DiscreteGammaMixture mixture = LikelihoodTestUtils.kimuraMixture(1.0, 4);
+    MultiCategorySubstitutionModel<DiscreteGammaMixture>
+      pruningModel = LikelihoodTestUtils.model(mixture, nSites, LikelihoodEngine.PRUNING),
+      factorGraphModel = LikelihoodTestUtils.model(mixture, nSites, LikelihoodEngine.FACTOR_GRAPH);
+    TreeNode root = TopologyUtils.arbitraryNode(tree);
+    SequenceAlignment data = LikelihoodTestUtils.simulate(rand, factorGraphModel, PhylogeneticObservationFactory.nucleotidesFactory(), tree, root);
+
+    double logLikelihood = LikelihoodTestUtils.logLikelihood(pruningModel, tree, root, data);
+    Assert.assertTrue(logLikelihood < 256 * Math.log(2.0) * -nSites);
+    NumericalUtils.checkIsClose(
+        LikelihoodTestUtils.logLikelihood(factorGraphModel, tree, root, data),
+        logLikelihood);
+
+    // mixing the categories in linear space should agree with mixing them in log space
+    FelsensteinPruning pruning = new FelsensteinPruning(pruningModel, data);
+    double [] siteLogLikelihoods = pruning.siteLogLikelihoods(tree, root);
+    double [][] categoryAndSiteLogLikelihoods = pruning.categoryAndSiteLogLikelihoods(tree, root);
+    List<Double> logPriors = mixture.getLogPriorProbabilities();
+    for (int site = 0; site < nSites; site++)
+    {
+      double [] terms = new double[logPriors.size()];
+      for (int c = 0; c < terms.length; c++)
+        terms[c] = logPriors.get(c) + categoryAndSiteLogLikelihoods[c][site];
+      NumericalUtils.checkIsClose(NumericalUtils.logAdd(terms), siteLogLikelihoods[site]);
+    }
+  }
+
+  /**
+   * Storing the partials in single precision should only cause small errors in
+   * the site log likelihoods.
+   */
+  @Test
+  public void testSinglePrecision()
+  {
+    Random rand = new Random(1);
+    final int nSites = 200;
+    UnrootedTree tree = LikelihoodTestUtils.randomTree(rand, TopologyUtils.syntheticTaxaList(100));
+    DiscreteGammaMixture mixture = new DiscreteGammaMixture(new RealConstant(0.1), new RealConstant(1.0), RateMatrices.randomGTR(rand, 20), 4);
+    MultiCategorySubstitutionModel<DiscreteGammaMixture>
+      doubleModel = LikelihoodTestUtils.model(mixture, nSites, LikelihoodEngine.PRUNING),
+      floatModel = LikelihoodTestUtils.model(mixture, nSites, LikelihoodEngine.PRUNING);
+    floatModel.likelihoodOptions.precision = PartialsPrecision.FLOAT;
+    TreeNode root = TopologyUtils.arbitraryNode(tree);
+    SequenceAlignment data = LikelihoodTestUtils.simulate(rand, doubleModel, PhylogeneticObservationFactory.proteinFactory(), tree, root);
+
+    double []
+      doubleValues = new FelsensteinPruning(doubleModel, data).siteLogLikelihoods(tree, root),
+      floatValues = new FelsensteinPruning(floatModel, data).siteLogLikelihoods(tree, root);
+    for (int site = 0; site < nSites; site++)
+      Assert.assertEquals(doubleValues[site], floatValues[site], 1e-5);
+  }
+
+  /**
+   * The storage backend should not change the results.
+   */
+  @Test
+  public void testStorage()
+  {
+    Random rand = new Random(1);
+    final int nSites = 50;
+    List<TreeNode> leaves = TopologyUtils.syntheticTaxaList(10);
+    UnrootedTree tree = LikelihoodTestUtils.randomTree(rand, leaves);
+    DiscreteGammaMixture mixture = LikelihoodTestUtils.kimuraMixture(1.0, 4);
+    TreeNode root = TopologyUtils.arbitraryNode(tree);
+    SequenceAlignment data = LikelihoodTestUtils.simulate(rand, LikelihoodTestUtils.model(mixture, nSites, LikelihoodEngine.PRUNING), PhylogeneticObservationFactory.nucleotidesFactory(), tree, root);
+    // a tree with other internal nodes, so that the arrays are recycled when re-indexing
+    UnrootedTree otherTree = LikelihoodTestUtils.randomTree(rand, leaves);
+    TreeNode otherRoot = TopologyUtils.arbitraryNode(otherTree);
+    for (PartialsPrecision precision : PartialsPrecision.values())
+    {
+      MultiCategorySubstitutionModel<DiscreteGammaMixture> reference = LikelihoodTestUtils.model(mixture, nSites, LikelihoodEngine.PRUNING);
+      reference.likelihoodOptions.precision = precision;
+      double [] expected = new FelsensteinPruning(reference, data).siteLogLikelihoods(tree, root);
+      double [] otherExpected = new FelsensteinPruning(reference, data).siteLogLikelihoods(otherTree, otherRoot);
+      for (PartialsStorage storage : PartialsStorage.values())
+      {
+        MultiCategorySubstitutionModel<DiscreteGammaMixture> model = LikelihoodTestUtils.model(mixture, nSites, LikelihoodEngine.PRUNING);
+        model.likelihoodOptions.precision = precision;
+        model.likelihoodOptions.storage = storage;
+        FelsensteinPruning pruning = new FelsensteinPruning(model, data);
+        Assert.assertArrayEquals(expected, pruning.siteLogLikelihoods(tree, root), 0.0);
+        Assert.assertArrayEquals(otherExpected, pruning.siteLogLikelihoods(otherTree, otherRoot), 0.0);
+        Assert.assertArrayEquals(expected, pruning.siteLogLikelihoods(tree, root), 0.0);
+      }
+    }
+  }
+
+  /**
+   * Processing the categories and blocks of sites concurrently should give exactly 
+   * the same result, and the block size should only cause round-off differences.
+   */
+  @Test
+  public void testParallelTasksDeterministic()
+  {
+    Random rand = new Random(1);
+    final int nSites = 100;
+    UnrootedTree tree = LikelihoodTestUtils.randomTree(rand, TopologyUtils.syntheticTaxaList(10));
+    DiscreteGammaMixture mixture = LikelihoodTestUtils.kimuraMixture(0.7, 6);
+    TreeNode root = TopologyUtils.arbitraryNode(tree);
+    SequenceAlignment data = LikelihoodTestUtils.simulate(rand, LikelihoodTestUtils.model(mixture, nSites, LikelihoodEngine.PRUNING), PhylogeneticObservationFactory.nucleotidesFactory(), tree, root);
+    for (LikelihoodEngine engine : LikelihoodEngine.values())
+    {
+      MultiCategorySubstitutionModel<DiscreteGammaMixture>
+        reference = LikelihoodTestUtils.model(mixture, nSites, engine),
+        sequential = LikelihoodTestUtils.model(mixture, nSites, engine),
+        parallel = LikelihoodTestUtils.model(mixture, nSites, engine);
+      sequential.likelihoodOptions.siteBlockSize = 7;
+      parallel.likelihoodOptions.siteBlockSize = 7;
+      parallel.likelihoodOptions.nThreads = 4;
+      double sequentialValue = LikelihoodTestUtils.logLikelihood(sequential, tree, root, data);
+      Assert.assertEquals(
+          sequentialValue,
+          LikelihoodTestUtils.logLikelihood(parallel, tree, root, data),
+          0.0);
+      NumericalUtils.checkIsClose(
+          LikelihoodTestUtils.logLikelihood(reference, tree, root, data), 
+          sequentialValue);
+    }
+  }
+
+  /**
+   * Perform random branch length changes and nearest neighbor interchanges, some of
+   * them reverted as in a rejected MH move, and check that the cached partials give
+   * the same answer as computing from scratch.
+   */
+  @Test
+  public void testIncrementalUpdates()
+  {
+    Random rand = new Random(1);
+    final int nSites = 20;
+    UnrootedTree tree = LikelihoodTestUtils.randomTree(rand, TopologyUtils.syntheticTaxaList(30));
+    DiscreteGammaMixture mixture = LikelihoodTestUtils.kimuraMixture(1.0, 4);
+    MultiCategorySubstitutionModel<DiscreteGammaMixture> model = LikelihoodTestUtils.model(mixture, nSites, LikelihoodEngine.PRUNING);
+    TreeNode root = TopologyUtils.arbitraryNode(tree);
+    SequenceAlignment data = LikelihoodTestUtils.simulate(rand, model, PhylogeneticObservationFactory.nucleotidesFactory(), tree, root);
+
+    FelsensteinPruning cached = new FelsensteinPruning(model, data);
+    cached.categoryAndSiteLogLikelihoods(tree, root);
+    for (int i = 0; i < 100; i++)
+    {
+      List<UnorderedPair<TreeNode, TreeNode>> edges = Lists.newArrayList(tree.getTopology().edgeSet());
+      UnorderedPair<TreeNode, TreeNode> edge = edges.get(rand.nextInt(edges.size()));
+      double oldValue = tree.getBranchLength(edge);
+      long before = cached.nRecomputedNodes();
+      tree.updateBranchLength(edge, oldValue * (0.5 + rand.nextDouble()));
+      check(cached, model, data, tree, root);
+      // only the path from the edge to the root is recomputed
+      Assert.assertTrue(cached.nRecomputedNodes() - before <= depth(tree, root, edge));
+      if (rand.nextBoolean())
+      {
+        // reject: the previous partials are restored without recomputation
+        tree.updateBranchLength(edge, oldValue);
+        before = cached.nRecomputedNodes();
+        check(cached, model, data, tree, root);
+        Assert.assertEquals(before, cached.nRecomputedNodes());
+      }
+
+      List<UnorderedPair<TreeNode, TreeNode>> nonTerminalEdges = TopologyUtils.nonTerminalEdges(tree.getTopology());
+      UnorderedPair<TreeNode, TreeNode> referenceEdge = nonTerminalEdges.get(rand.nextInt(nonTerminalEdges.size()));
+      TreeNode
+        moved1 = otherNeighbor(tree, referenceEdge.getFirst(), referenceEdge.getSecond()),
+        moved2 = otherNeighbor(tree, referenceEdge.getSecond(), referenceEdge.getFirst());
+      tree.interchange(moved1, referenceEdge.getFirst(), moved2, referenceEdge.getSecond());
+      check(cached, model, data, tree, root);
+      if (rand.nextBoolean())
+      {
+        tree.interchange(moved2, referenceEdge.getFirst(), moved1, referenceEdge.getSecond());
+        check(cached, model, data, tree, root);
+      }
+    }
+  }
+
+  private static void check(FelsensteinPruning cached, MultiCategorySubstitutionModel<DiscreteGammaMixture> model, SequenceAlignment data, UnrootedTree tree, TreeNode root)
+  {
+    double [][]
+      incremental = cached.categoryAndSiteLogLikelihoods(tree, root),
+      fromScratch = new FelsensteinPruning(model, data).categoryAndSiteLogLikelihoods(tree, root);
+    for (int c = 0; c < incremental.length; c++)
+      Assert.assertArrayEquals(fromScratch[c], incremental[c], 1e-10);
+  }
+
+  private static int depth(UnrootedTree tree, TreeNode root, UnorderedPair<TreeNode, TreeNode> edge)
+  {
+    Map<TreeNode, TreeNode> parents = Maps.newHashMap();
+    for (Pair<TreeNode, TreeNode> rootedEdge : tree.getRootedEdges(root))
+      parents.put(rootedEdge.getRight(), rootedEdge.getLeft());
+    TreeNode current = parents.get(edge.getFirst()) == edge.getSecond() ? edge.getSecond() : edge.getFirst();
+    int result = 1;
+    while (current != root)
+    {
+      current = parents.get(current);
+      result++;
+    }
+    return result;
+  }
+
+  private static TreeNode otherNeighbor(UnrootedTree tree, TreeNode node, TreeNode excluded)
+  {
+    for (TreeNode neighbor : Graphs.neighborListOf(tree.getTopology(), node))
+      if (!neighbor.equals(excluded))
+        return neighbor;
+    throw new RuntimeException();
+  }
+}
@@ -0,0 +1,98 @@
+package conifer.models;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Assert;
+import org.junit.Test;
+
+import blang.core.RealConstant;
+import conifer.SequenceAlignment;
+import conifer.TopologyUtils;
+import conifer.TreeNode;
+import conifer.UnrootedTree;
+import conifer.ctmc.RateMatrices;
+import conifer.ctmc.expfam.CTMCState;
+import conifer.ctmc.expfam.ExpFamMixture;
+import conifer.ctmc.expfam.ExpectedStatistics;
+import conifer.ctmc.expfam.RateMtxNames;
+import conifer.io.PhylogeneticObservationFactory;
+import conifer.models.LikelihoodOptions.LikelihoodEngine;
+
+
+
+public class TestMarginalCount
+{
+  @Test
+  public void testCountsAndThreads()
+  {
+    Random rand = new Random(1);
+    final int nSites = 100;
+    UnrootedTree tree = LikelihoodTestUtils.randomTree(rand, 5.0, TopologyUtils.syntheticTaxaList(7));
+    DiscreteGammaMixture mixture = new DiscreteGammaMixture(new RealConstant(0.1), new RealConstant(1.0), RateMatrices.randomGTR(rand, 4), 3);
+    TreeNode root = TopologyUtils.arbitraryNode(tree);
+    MultiCategorySubstitutionModel<DiscreteGammaMixture> 
+      sequential = LikelihoodTestUtils.model(mixture, nSites, LikelihoodEngine.PRUNING), 
+      parallel = LikelihoodTestUtils.model(mixture, nSites, LikelihoodEngine.PRUNING);
+    parallel.likelihoodOptions.nThreads = 4;
+    SequenceAlignment data = LikelihoodTestUtils.simulate(rand, sequential, PhylogeneticObservationFactory.nucleotidesFactory(), tree, root);
+
+    List<Map<Pair<TreeNode, TreeNode>, double [][]>>
+      expected = sequential.getMarginalCount(data, tree, root),
+      actual = parallel.getMarginalCount(data, tree, root);
+    Assert.assertEquals(sequential.nCategories(), expected.size());
+    for (int cat = 0; cat < expected.size(); cat++)
+      for (Pair<TreeNode, TreeNode> edge : tree.getRootedEdges(root))
+      {
+        double [][] counts = expected.get(cat).get(edge);
+        double sum = 0.0;
+        for (int i = 0; i < counts.length; i++)
+          for (int j = 0; j < counts.length; j++)
+          {
+            Assert.assertTrue(counts[i][j] >= 0.0);
+            Assert.assertEquals(counts[i][j], actual.get(cat).get(edge)[i][j], 0.0);
+            sum += counts[i][j];
+          }
+        // one pair of end point states per site, including the sites compressed into patterns
+        // (category 0 has the invariant sites, to which the variable sites do not contribute)
+        if (cat == 0)
+          Assert.assertTrue(sum <= nSites + 1e-8);
+        else
+          Assert.assertEquals(nSites, sum, 1e-8);
+      }
+  }
+
+  @Test
+  public void testParallelExpectedStatistics()
+  {
+    Random rand = new Random(1);
+    final int nSites = 100;
+    // enough edges for several blocks
+    UnrootedTree tree = LikelihoodTestUtils.randomTree(rand, 5.0, TopologyUtils.syntheticTaxaList(20));
+    Assert.assertTrue(tree.getRootedEdges(TopologyUtils.arbitraryNode(tree)).size() > 2 * MultiCategorySubstitutionModel.EXPECTED_STATISTICS_BLOCK_SIZE);
+    ExpFamMixture mixture = ExpFamMixture.randomGTR(RateMtxNames.DNAGTR);
+    double [] weights = new double[mixture.parameters.getDim()];
+    for (int i = 0; i < weights.length; i++)
+      weights[i] = rand.nextGaussian();
+    mixture.parameters.setVector(weights);
+    MultiCategorySubstitutionModel<ExpFamMixture> model = new MultiCategorySubstitutionModel<ExpFamMixture>(mixture, nSites);
+    TreeNode root = TopologyUtils.arbitraryNode(tree);
+    SequenceAlignment data = LikelihoodTestUtils.simulate(rand, model, PhylogeneticObservationFactory.nucleotidesFactory(), tree, root);
+
+    ExpectedStatistics<CTMCState> 
+      sequential = model.getTotalExpectedStatistics(data, tree, root, mixture.parameters.globalExponentialFamily, 1),
+      parallel = model.getTotalExpectedStatistics(data, tree, root, mixture.parameters.globalExponentialFamily, 4);
+    Assert.assertArrayEquals(sequential.holdTimes, parallel.holdTimes, 0.0);
+    Assert.assertArrayEquals(sequential.nInit, parallel.nInit, 0.0);
+    for (int state = 0; state < sequential.nTrans.length; state++)
+      Assert.assertArrayEquals(sequential.nTrans[state], parallel.nTrans[state], 0.0);
+
+    // the holding times add up to the total branch length, once per site
+    double totalLength = 0.0;
+    for (Pair<TreeNode, TreeNode> edge : tree.getRootedEdges(root))
+      totalLength += tree.getBranchLength(edge.getLeft(), edge.getRight());
+    Assert.assertEquals(nSites * totalLength, sequential.totalTime(), 1e-6 * nSites * totalLength);
+  }
+}
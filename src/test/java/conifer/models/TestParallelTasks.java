@@ -0,0 +1,70 @@
+package conifer.models;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import conifer.models.ParallelTasks.Task;
+
+
+
+public class TestParallelTasks
+{
+  @Test
+  public void testOrder()
+  {
+    for (int nThreads : new int[]{1, 3})
+    {
+      List<Integer> result = ParallelTasks.map(20, nThreads, new Task<Integer>() {
+        @Override
+        public Integer compute(int index)
+        {
+          return index * index;
+        }
+      });
+      Assert.assertEquals(20, result.size());
+      for (int i = 0; i < result.size(); i++)
+        Assert.assertEquals(i * i, (int) result.get(i));
+    }
+  }
+
+  /**
+   * A failure should only be rethrown once all the other tasks are done.
+   */
+  @Test
+  public void testFailureWaitsForAllTasks()
+  {
+    final int nTasks = 8;
+    final AtomicIntegerArray done = new AtomicIntegerArray(nTasks);
+    try
+    {
+      ParallelTasks.map(nTasks, 2, new Task<Void>() {
+        @Override
+        public Void compute(int index)
+        {
+          if (index == 0)
+            throw new RuntimeException("task " + index);
+          try
+          {
+            Thread.sleep(20);
+          }
+          catch (InterruptedException e)
+          {
+            throw new RuntimeException(e);
+          }
+          done.set(index, 1);
+          return null;
+        }
+      });
+      Assert.fail();
+    }
+    catch (RuntimeException e)
+    {
+      Assert.assertTrue(e.getMessage().contains("task 0"));
+    }
+    for (int i = 1; i < nTasks; i++)
+      Assert.assertEquals(1, done.get(i));
+  }
+}